@@ -0,0 +1,273 @@
+package com.harveyvo.java.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// Rate limits for one tunnel, checked on every chunk the forwarders count. Each direction has the
+// tunnel's own token bucket and, when the profile sets a limit, a weighted share of a link bucket
+// that all tunnels on the same pooled session draw from. Only tunnels that are moving data split
+// the link, so an idle interactive tunnel costs a busy backup nothing until it wakes up, and then
+// gets its weighted share right away. Buckets go into debt instead of refusing: the relay sends
+// what it has read and pauses for the returned time before reading more. Downloads are only paced
+// by the NIO engine, which writes to the client off the session thread; see CountingSockets.
+public class BandwidthShaper {
+
+    public static final BandwidthShaper UNLIMITED = new BandwidthShaper(null, null, null, null, 0, 0);
+
+    // How long a tunnel counts as active after its last chunk
+    private static final long ACTIVE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MIN_BURST_BYTES = 16 * 1024;
+
+    // Link buckets per pooled session and direction, dropped when their last tunnel leaves
+    private static final Map<String, Link> links = new ConcurrentHashMap<>();
+
+    private final TokenBucket upBucket;
+    private final TokenBucket downBucket;
+    private final Link.Member upShare;
+    private final Link.Member downShare;
+    private final long upLimit;
+    private final long downLimit;
+
+    private BandwidthShaper(TokenBucket upBucket, TokenBucket downBucket, Link.Member upShare, Link.Member downShare,
+                            long upLimit, long downLimit) {
+        this.upBucket = upBucket;
+        this.downBucket = downBucket;
+        this.upShare = upShare;
+        this.downShare = downShare;
+        this.upLimit = upLimit;
+        this.downLimit = downLimit;
+    }
+
+    // Limits are in bytes per second, 0 meaning none; the profile's limits apply to its whole session.
+    // A tunnel spread over several profiles passes null and only gets its own limits.
+    public static BandwidthShaper create(SSHProfile profile, long upBytesPerSecond, long downBytesPerSecond, int weight) {
+        return create(profile, upBytesPerSecond, downBytesPerSecond, weight, System::nanoTime);
+    }
+
+    // Buckets and a newly made link read the time from clock, so tests can step it
+    static BandwidthShaper create(SSHProfile profile, long upBytesPerSecond, long downBytesPerSecond, int weight, LongSupplier clock) {
+        long profileUp = profile != null ? profile.getUploadLimit() * 1024 : 0;
+        long profileDown = profile != null ? profile.getDownloadLimit() * 1024 : 0;
+        if (upBytesPerSecond <= 0 && downBytesPerSecond <= 0 && profileUp <= 0 && profileDown <= 0) {
+            return UNLIMITED;
+        }
+        String session = profile != null ? SessionPool.keyOf(profile) : null;
+        int share = Math.max(1, weight);
+        return new BandwidthShaper(
+                upBytesPerSecond > 0 ? new TokenBucket(upBytesPerSecond, clock) : null,
+                downBytesPerSecond > 0 ? new TokenBucket(downBytesPerSecond, clock) : null,
+                profileUp > 0 ? join(session + "/up", profileUp, share, clock) : null,
+                profileDown > 0 ? join(session + "/down", profileDown, share, clock) : null,
+                effectiveLimit(upBytesPerSecond, profileUp),
+                effectiveLimit(downBytesPerSecond, profileDown));
+    }
+
+    private static long effectiveLimit(long tunnel, long link) {
+        if (tunnel <= 0 || link <= 0) {
+            return Math.max(tunnel, link);
+        }
+        return Math.min(tunnel, link);
+    }
+
+    private static Link.Member join(String key, long bytesPerSecond, int weight, LongSupplier clock) {
+        while (true) {
+            Link link = links.computeIfAbsent(key, newKey -> new Link(newKey, clock));
+            Link.Member member = link.join(bytesPerSecond, weight);
+            if (member != null) {
+                return member;
+            }
+            // The link was just emptied and dropped; join its replacement
+        }
+    }
+
+    // Nanoseconds to wait before relaying more data into the tunnel
+    public long reserveUp(long bytes) {
+        return Math.max(reserve(upBucket, bytes), upShare != null ? upShare.reserve(bytes) : 0);
+    }
+
+    // Nanoseconds to wait before relaying more data out of the tunnel
+    public long reserveDown(long bytes) {
+        return Math.max(reserve(downBucket, bytes), downShare != null ? downShare.reserve(bytes) : 0);
+    }
+
+    private static long reserve(TokenBucket bucket, long bytes) {
+        return bucket != null ? bucket.reserve(bytes) : 0;
+    }
+
+    // Whether tunnels on the profile's session still share a link bucket
+    static boolean hasLink(SSHProfile profile) {
+        String session = SessionPool.keyOf(profile);
+        return links.containsKey(session + "/up") || links.containsKey(session + "/down");
+    }
+
+    public boolean isUnlimited() {
+        return this == UNLIMITED;
+    }
+
+    // The tighter of the tunnel and profile limits in bytes per second, 0 if neither is set
+    public long getUpLimit() {
+        return upLimit;
+    }
+
+    public long getDownLimit() {
+        return downLimit;
+    }
+
+    // Leave the session's links; the tunnel's share goes to the others
+    public void close() {
+        if (upShare != null) {
+            upShare.leave();
+        }
+        if (downShare != null) {
+            downShare.leave();
+        }
+    }
+
+    // Kept as the time at which the bucket was (or will be) empty: the tokens at any moment are the
+    // time since then times the rate, capped at the burst. A reservation moves that time forward by
+    // the bytes' cost with one compare-and-set, so relays never queue on a lock.
+    private static class TokenBucket {
+        private final double nanosPerByte;
+        private final long burstNanos;
+        private final AtomicLong emptyAtNanos;
+        private final LongSupplier clock;
+
+        private TokenBucket(long bytesPerSecond, LongSupplier clock) {
+            this.nanosPerByte = 1e9 / bytesPerSecond;
+            this.burstNanos = (long) (Math.max(MIN_BURST_BYTES, bytesPerSecond / 4.0) * nanosPerByte);
+            this.clock = clock;
+            this.emptyAtNanos = new AtomicLong(clock.getAsLong() - burstNanos);  // Starts full
+        }
+
+        private long reserve(long bytes) {
+            long now = clock.getAsLong();
+            long cost = (long) (bytes * nanosPerByte);
+            long emptyAt = emptyAtNanos.accumulateAndGet(cost, (previous, added) -> Math.max(previous, now - burstNanos) + added);
+            return Math.max(0, emptyAt - now);
+        }
+    }
+
+    // One direction of one pooled session. Refills are split between the active members by weight;
+    // what a member cannot hold above its burst goes to the members still below theirs.
+    private static class Link {
+        private final String key;
+        private final LongSupplier clock;
+        private final List<Member> members = new ArrayList<>();
+        private double bytesPerNano;
+        private long lastRefillNanos;
+        private boolean retired;
+
+        private Link(String key, LongSupplier clock) {
+            this.key = key;
+            this.clock = clock;
+            this.lastRefillNanos = clock.getAsLong();
+        }
+
+        private synchronized Member join(long bytesPerSecond, int weight) {
+            if (retired) {
+                return null;
+            }
+            bytesPerNano = bytesPerSecond / 1e9;  // The latest profile settings win
+            Member member = new Member(weight);
+            members.add(member);
+            return member;
+        }
+
+        private synchronized void leave(Member member) {
+            members.remove(member);
+            if (members.isEmpty()) {
+                retired = true;
+                links.remove(key, this);
+            }
+        }
+
+        private synchronized long reserve(Member member, long bytes) {
+            long now = clock.getAsLong();
+            refill(now);
+            member.lastActiveNanos = now;
+            member.tokens -= bytes;
+            if (member.tokens >= 0) {
+                return 0;
+            }
+            double share = bytesPerNano * member.weight / activeWeight(now);
+            return (long) (-member.tokens / share);
+        }
+
+        private void refill(long now) {
+            double available = (now - lastRefillNanos) * bytesPerNano;
+            lastRefillNanos = now;
+            int activeWeight = activeWeight(now);
+            if (activeWeight == 0) {
+                return;
+            }
+            // Two passes: everyone gets their weighted share, then the overflow of full members is shared again
+            for (int pass = 0; pass < 2 && available > 0; pass++) {
+                double overflow = 0;
+                int receivingWeight = 0;
+                for (Member member : members) {
+                    if (member.isActive(now) && member.tokens < burst(member, activeWeight)) {
+                        receivingWeight += member.weight;
+                    }
+                }
+                if (receivingWeight == 0) {
+                    return;
+                }
+                for (Member member : members) {
+                    double cap = burst(member, activeWeight);
+                    if (!member.isActive(now) || member.tokens >= cap) {
+                        continue;
+                    }
+                    member.tokens += available * member.weight / receivingWeight;
+                    if (member.tokens > cap) {
+                        overflow += member.tokens - cap;
+                        member.tokens = cap;
+                    }
+                }
+                available = overflow;
+            }
+        }
+
+        private int activeWeight(long now) {
+            int weight = 0;
+            for (Member member : members) {
+                if (member.isActive(now)) {
+                    weight += member.weight;
+                }
+            }
+            return weight;
+        }
+
+        private double burst(Member member, int activeWeight) {
+            return Math.max(MIN_BURST_BYTES, bytesPerNano * 1e9 / 4 * member.weight / activeWeight);
+        }
+
+        private class Member {
+            private final int weight;
+            // Guarded by the link
+            private double tokens = MIN_BURST_BYTES;
+            private long lastActiveNanos = clock.getAsLong() - ACTIVE_WINDOW_NANOS;
+
+            private Member(int weight) {
+                this.weight = weight;
+            }
+
+            // A member in debt is waiting for its share, so it still counts
+            private boolean isActive(long now) {
+                return tokens < 0 || now - lastActiveNanos < ACTIVE_WINDOW_NANOS;
+            }
+
+            private long reserve(long bytes) {
+                return Link.this.reserve(this, bytes);
+            }
+
+            private void leave() {
+                Link.this.leave(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+// Measures throughput per cipher and recommends a preference order for SSHProfile.setCiphers.
+// Against a host, each cipher gets its own session and pushes data into "cat > /dev/null", so the
+// result includes the server's cost and the link. Locally, only this machine's encryption speed is
+// measured, which is still the deciding factor on fast links.
+public class CipherBenchmark {
+
+    // Ciphers JSch implements that are still worth offering; GCM and chacha20 are not available in JSch
+    public static final List<String> CANDIDATE_CIPHERS = List.of(
+            "aes128-ctr", "aes192-ctr", "aes256-ctr", "aes128-cbc", "aes256-cbc", "3des-ctr");
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final long TRANSFER_TIMEOUT_MILLIS = 60_000;
+    private static final int LOCAL_ROUNDS = 3;
+
+    private CipherBenchmark() {
+    }
+
+    // True if JSch has an implementation of the cipher and this JVM's crypto provider can run it
+    public static boolean isAvailable(String cipher) {
+        try {
+            createCipher(cipher).init(Cipher.ENCRYPT_MODE, new byte[64], new byte[64]);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Encrypt megabytes of data in memory with each candidate
+    public static List<Result> runLocal(int megabytes, Consumer<String> progress) {
+        List<Result> results = new ArrayList<>();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        new Random(1).nextBytes(buffer);
+        long totalBytes = (long) megabytes * 1024 * 1024;
+        // The JIT compiles the shared AES and CTR code on first use, so every candidate is warmed up
+        // before any is measured, and the best of a few rounds is kept
+        for (String name : CANDIDATE_CIPHERS) {
+            try {
+                encrypt(initCipher(name), buffer, totalBytes / 4);
+            } catch (Exception e) {
+                // Reported below
+            }
+        }
+        for (String name : CANDIDATE_CIPHERS) {
+            try {
+                Cipher cipher = initCipher(name);
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < LOCAL_ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    encrypt(cipher, buffer, totalBytes);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                results.add(Result.measured(name, totalBytes, best));
+            } catch (Exception e) {
+                results.add(Result.failed(name, e.getMessage()));
+            }
+            progress.accept(results.get(results.size() - 1).toString());
+        }
+        return sorted(results);
+    }
+
+    // Connect once per candidate and stream megabytes through it; needs a shell account with cat
+    public static List<Result> runAgainstHost(SSHProfile profile, int megabytes, Consumer<String> progress) {
+        List<Result> results = new ArrayList<>();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        new Random(1).nextBytes(buffer);  // Random data, so a compressing server cannot skew the numbers
+        long totalBytes = (long) megabytes * 1024 * 1024;
+        for (String name : CANDIDATE_CIPHERS) {
+            Session session = null;
+            try {
+                session = connect(profile, name);
+                long elapsedNanos = transfer(session, buffer, totalBytes);
+                results.add(Result.measured(name, totalBytes, elapsedNanos));
+            } catch (Exception e) {
+                results.add(Result.failed(name, e.getMessage()));
+            } finally {
+                if (session != null) {
+                    session.disconnect();
+                }
+            }
+            progress.accept(results.get(results.size() - 1).toString());
+        }
+        return sorted(results);
+    }
+
+    // Fastest first, usable as the value of SSHProfile.setCiphers
+    public static String recommendation(List<Result> results) {
+        return results.stream()
+                .filter(result -> result.getError() == null)
+                .map(Result::getCipher)
+                .collect(Collectors.joining(","));
+    }
+
+    private static Cipher initCipher(String name) throws Exception {
+        Cipher cipher = createCipher(name);
+        cipher.init(Cipher.ENCRYPT_MODE, new byte[cipher.getBlockSize()], new byte[cipher.getIVSize()]);
+        return cipher;
+    }
+
+    private static Cipher createCipher(String name) throws Exception {
+        String className = JSch.getConfig(name);
+        if (className == null) {
+            throw new IllegalArgumentException("Not supported by JSch");
+        }
+        return (Cipher) Class.forName(className).getDeclaredConstructor().newInstance();
+    }
+
+    private static void encrypt(Cipher cipher, byte[] buffer, long totalBytes) throws Exception {
+        for (long done = 0; done < totalBytes; done += buffer.length) {
+            cipher.update(buffer, 0, buffer.length, buffer, 0);
+        }
+    }
+
+    private static Session connect(SSHProfile profile, String cipher) throws Exception {
+        Session session = IdentityCache.getInstance().newSession(profile);
+        session.setConfig("StrictHostKeyChecking", "no");
+        SSHTunnelManager.applyAlgorithmPreferences(session, profile);
+        // Only the cipher under test may be negotiated, and compression would hide its cost
+        session.setConfig("cipher.c2s", cipher);
+        session.setConfig("cipher.s2c", cipher);
+        session.setConfig("compression.c2s", "none");
+        session.setConfig("compression.s2c", "none");
+        // Behind jump hosts the numbers include their links; the hops keep their own preferences
+        JumpHosts.attach(session, profile, SSHTunnelManager::openSession);
+        session.connect(CONNECT_TIMEOUT);
+        return session;
+    }
+
+    // Time from the first byte until the server has consumed everything and closed the channel
+    private static long transfer(Session session, byte[] buffer, long totalBytes) throws Exception {
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        channel.setCommand("cat > /dev/null");
+        try {
+            OutputStream out = channel.getOutputStream();
+            channel.connect(CONNECT_TIMEOUT);
+            long start = System.nanoTime();
+            for (long sent = 0; sent < totalBytes; sent += buffer.length) {
+                out.write(buffer);
+            }
+            out.close();
+            waitForClose(channel);
+            if (channel.getExitStatus() != 0) {
+                throw new IllegalStateException("cat exited with status " + channel.getExitStatus());
+            }
+            return System.nanoTime() - start;
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    private static void waitForClose(Channel channel) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TRANSFER_TIMEOUT_MILLIS);
+        while (!channel.isClosed()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out waiting for the server");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Result> sorted(List<Result> results) {
+        results.sort(Comparator.comparingDouble(Result::getMegabytesPerSecond).reversed());
+        return results;
+    }
+
+    public static class Result {
+        private final String cipher;
+        private final double megabytesPerSecond;
+        private final String error;
+
+        private Result(String cipher, double megabytesPerSecond, String error) {
+            this.cipher = cipher;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.error = error;
+        }
+
+        private static Result measured(String cipher, long bytes, long elapsedNanos) {
+            return new Result(cipher, bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9), null);
+        }
+
+        private static Result failed(String cipher, String error) {
+            return new Result(cipher, 0, error);
+        }
+
+        public String getCipher() {
+            return cipher;
+        }
+
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond;
+        }
+
+        // Why the cipher could not be measured, or null
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return error == null
+                    ? String.format("%-12s %8.1f MB/s", cipher, megabytesPerSecond)
+                    : String.format("%-12s failed: %s", cipher, error);
+        }
+    }
+}
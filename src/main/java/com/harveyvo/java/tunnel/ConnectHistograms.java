@@ -0,0 +1,99 @@
+package com.harveyvo.java.tunnel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Distribution of each connect phase over every connect since start: tunnels, reconnects, lazy
+// warm-ups, jump hosts, tests and NIO channel opens. Buckets have fixed upper bounds that roughly
+// double, so recording is a bucket search and a few adds, and percentiles are read off the buckets.
+public class ConnectHistograms {
+
+    // Upper bounds in milliseconds; the last bucket takes everything slower
+    private static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final Histogram[] histograms = new Histogram[ConnectTiming.Phase.values().length];
+
+    private ConnectHistograms() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    private static class ConnectHistogramsHolder {
+        private static final ConnectHistograms INSTANCE = new ConnectHistograms();
+    }
+
+    public static ConnectHistograms getInstance() {
+        return ConnectHistogramsHolder.INSTANCE;
+    }
+
+    public void record(ConnectTiming.Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    public Histogram get(ConnectTiming.Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    // Label of each bucket, e.g. "<= 20 ms" and "> 10000 ms"
+    public static String bucketLabel(int bucket) {
+        return bucket < BOUNDS_MILLIS.length ? "<= " + BOUNDS_MILLIS[bucket] + " ms" : "> " + BOUNDS_MILLIS[BOUNDS_MILLIS.length - 1] + " ms";
+    }
+
+    public static int bucketCount() {
+        return BOUNDS_MILLIS.length + 1;
+    }
+
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_MILLIS.length && nanos > BOUNDS_MILLIS[bucket] * 1_000_000) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        public long getBucket(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        // Upper bound of the bucket holding the given fraction of samples, capped at the slowest one seen
+        public double getPercentileMillis(double fraction) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int bucket = 0; bucket < BOUNDS_MILLIS.length; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(BOUNDS_MILLIS[bucket], getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.harveyvo.java.tunnel;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+
+// Histograms of every connect phase since start, refreshed once a second while open
+public class ConnectStatsDialog {
+
+    private static final int BAR_WIDTH = 40;
+
+    private final ConnectHistograms histograms = ConnectHistograms.getInstance();
+    private TextArea statsTextArea;
+
+    public void showConnectStatsDialog(Stage parentStage) {
+        Stage dialog = new Stage();
+        dialog.setTitle("Connect Stats");
+        dialog.initOwner(parentStage);
+
+        statsTextArea = new TextArea();
+        statsTextArea.setEditable(false);
+        statsTextArea.setFont(Font.font("Monospaced", 12));
+        statsTextArea.setPrefHeight(600);
+
+        VBox dialogVbox = new VBox(10);
+        dialogVbox.setPadding(new Insets(10));
+        dialogVbox.getChildren().add(statsTextArea);
+
+        Scene dialogScene = new Scene(dialogVbox, 700, 700);
+        dialog.setScene(dialogScene);
+        dialog.show();
+        refresh();
+
+        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(1), event -> refresh()));
+        timeline.setCycleCount(Timeline.INDEFINITE);
+        timeline.play();
+        dialog.setOnHidden(event -> timeline.stop());
+    }
+
+    private void refresh() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-8s %7s %9s %9s %9s %9s %9s%n", "Phase", "count", "mean ms", "p50", "p90", "p99", "max"));
+        for (ConnectTiming.Phase phase : ConnectTiming.Phase.values()) {
+            ConnectHistograms.Histogram histogram = histograms.get(phase);
+            text.append(String.format("%-8s %7d %9.1f %9.1f %9.1f %9.1f %9.1f%n", phase.getLabel(), histogram.getCount(),
+                    histogram.getMeanMillis(), histogram.getPercentileMillis(0.5), histogram.getPercentileMillis(0.9),
+                    histogram.getPercentileMillis(0.99), histogram.getMaxMillis()));
+        }
+        for (ConnectTiming.Phase phase : ConnectTiming.Phase.values()) {
+            ConnectHistograms.Histogram histogram = histograms.get(phase);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            text.append('\n').append(phase.getLabel()).append('\n');
+            long largest = 0;
+            for (int bucket = 0; bucket < ConnectHistograms.bucketCount(); bucket++) {
+                largest = Math.max(largest, histogram.getBucket(bucket));
+            }
+            for (int bucket = 0; bucket < ConnectHistograms.bucketCount(); bucket++) {
+                long count = histogram.getBucket(bucket);
+                int width = (int) Math.ceil((double) count * BAR_WIDTH / largest);
+                text.append(String.format("  %-11s %7d %s%n", ConnectHistograms.bucketLabel(bucket), count, "#".repeat(width)));
+            }
+        }
+        double scroll = statsTextArea.getScrollTop();
+        statsTextArea.setText(text.toString());
+        statsTextArea.setScrollTop(scroll);
+    }
+}
@@ -0,0 +1,178 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Phase durations of one SSH connect. Session.connect runs the whole handshake on the calling thread
+// and logs a line after each step, so JSchLogger hands those lines to the timing that is current on
+// that thread. A jump-host connect nested inside a proxy gets a timing of its own and puts the outer
+// one back when it is done. Behind a jump host there is no DNS lookup of our own, and TCP is the
+// channel through the hop.
+public class ConnectTiming {
+
+    public enum Phase {
+        RESOLVE("DNS"), TCP("TCP"), BANNER("Banner"), KEX("KEX"), AUTH("Auth"), CHANNEL_OPEN("Channel");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final ThreadLocal<ConnectTiming> CURRENT = new ThreadLocal<>();
+    // Timing of the handshake that opened each session; JSch sessions compare by identity
+    private static final Map<Session, ConnectTiming> BY_SESSION = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final String host;
+    // Nanoseconds per phase, -1 where the phase was not measured
+    private final long[] nanos = new long[Phase.values().length];
+    private final ConnectTiming previous;
+    private Phase phase = Phase.TCP;
+    private long phaseStart = System.nanoTime();
+
+    private ConnectTiming(String host, ConnectTiming previous) {
+        this.host = host;
+        this.previous = previous;
+        Arrays.fill(nanos, -1);
+    }
+
+    // Start timing a connect on this thread; end() must follow in a finally block
+    public static ConnectTiming begin(String host) {
+        ConnectTiming timing = new ConnectTiming(host, CURRENT.get());
+        CURRENT.set(timing);
+        return timing;
+    }
+
+    public void end() {
+        if (previous != null) {
+            CURRENT.set(previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    // The handshake timing of a session opened by this process, or null
+    public static ConnectTiming of(Session session) {
+        return session == null ? null : BY_SESSION.get(session);
+    }
+
+    // Look up the SSH host right before connecting, so JSch finds it in the JVM's cache and TCP starts clean
+    public void resolve(SSHProfile profile) {
+        long start = System.nanoTime();
+        if (JumpHosts.parse(profile.getJumpHosts()).isEmpty()) {
+            try {
+                InetAddress.getByName(profile.getSshHost());
+                nanos[Phase.RESOLVE.ordinal()] = System.nanoTime() - start;
+            } catch (UnknownHostException e) {
+                // JSch reports it when it tries the same lookup
+            }
+        }
+        phase = Phase.TCP;
+        phaseStart = System.nanoTime();
+    }
+
+    // Called by JSchLogger for every line; only the connecting thread's own lines move its phase on
+    static void onLog(String message) {
+        ConnectTiming timing = CURRENT.get();
+        if (timing == null) {
+            return;
+        }
+        if (message.startsWith("Connection established")) {
+            timing.next(Phase.TCP, Phase.BANNER);
+        } else if (message.startsWith("Remote version string")) {
+            timing.next(Phase.BANNER, Phase.KEX);
+        } else if (message.startsWith("SSH_MSG_NEWKEYS received")) {
+            timing.next(Phase.KEX, Phase.AUTH);
+        }
+    }
+
+    private void next(Phase expected, Phase following) {
+        if (phase != expected) {
+            return;  // A re-key after the connect, or a line we already passed
+        }
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] = now - phaseStart;
+        phase = following;
+        phaseStart = now;
+    }
+
+    // Session.connect returned: close the running phase, remember the timing and feed the histograms
+    public void finish(Session session) {
+        nanos[phase.ordinal()] = System.nanoTime() - phaseStart;
+        BY_SESSION.put(session, this);
+        ConnectHistograms histograms = ConnectHistograms.getInstance();
+        for (Phase measured : Phase.values()) {
+            if (nanos[measured.ordinal()] >= 0) {
+                histograms.record(measured, nanos[measured.ordinal()]);
+            }
+        }
+    }
+
+    // Time a "session" channel open as the channel phase; servers that refuse one leave it unmeasured
+    public void timeChannelOpen(Session session, int timeoutMillis) {
+        Channel channel = null;
+        long start = System.nanoTime();
+        try {
+            channel = session.openChannel("session");
+            channel.connect(timeoutMillis);
+            nanos[Phase.CHANNEL_OPEN.ordinal()] = System.nanoTime() - start;
+            ConnectHistograms.getInstance().record(Phase.CHANNEL_OPEN, nanos[Phase.CHANNEL_OPEN.ordinal()]);
+        } catch (JSchException e) {
+            // Not measured
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    // Nanoseconds, or -1 if the phase was not measured
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    // Everything up to an authenticated session
+    public long getHandshakeNanos() {
+        long total = 0;
+        for (Phase measured : Phase.values()) {
+            if (measured != Phase.CHANNEL_OPEN && nanos[measured.ordinal()] > 0) {
+                total += nanos[measured.ordinal()];
+            }
+        }
+        return total;
+    }
+
+    // e.g. "DNS 1.2 | TCP 30.5 | Banner 40.1 | KEX 85.0 | Auth 120.3 ms"
+    public String describe() {
+        List<String> parts = new ArrayList<>();
+        for (Phase measured : Phase.values()) {
+            if (nanos[measured.ordinal()] >= 0) {
+                parts.add(measured.getLabel() + " " + formatMillis(nanos[measured.ordinal()]));
+            }
+        }
+        return String.join(" | ", parts) + " ms";
+    }
+
+    static String formatMillis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
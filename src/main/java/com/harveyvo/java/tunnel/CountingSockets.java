@@ -0,0 +1,157 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.ServerSocketFactory;
+import com.jcraft.jsch.SocketFactory;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+// Socket factories handed to JSch so the sockets it actually relays are counted, shaped and tuned.
+// Local forwards count the accepted client sockets, remote forwards count the sockets JSch opens
+// to the local target. Reads happen on JSch's thread for that connection, so uploads are paced
+// there. Writes happen on the session thread, which delivers every channel of the session, so
+// downloads are only counted: pausing there would throttle every tunnel on the session, and JSch
+// keeps granting window, so there is nothing to hold back instead. Download limits need the NIO engine.
+public class CountingSockets {
+
+    private CountingSockets() {
+    }
+
+    // For setPortForwardingL: every accepted client socket is counted
+    public static ServerSocketFactory serverSocketFactory(TrafficStats stats, TunnelTuning tuning) {
+        return (port, backlog, bindAddress) -> {
+            ServerSocket serverSocket = new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    while (true) {
+                        CountingSocket socket = new CountingSocket();
+                        implAccept(socket);
+                        try {
+                            tuning.applyTo(socket);
+                            socket.attach(stats.openConnection(String.valueOf(socket.getRemoteSocketAddress())));
+                            return socket;
+                        } catch (IOException | RuntimeException e) {
+                            // Only this client is dropped; an exception out of here would end JSch's accept
+                            // loop and with it the forward
+                            LogManager.getInstance().log("Dropped client on port " + getLocalPort() + ": " + e.getMessage(),
+                                    LogManager.LogLevel.WARNING);
+                            closeQuietly(socket);
+                        }
+                    }
+                }
+            };
+            try {
+                // The receive buffer must be set before bind to take effect on accepted sockets
+                tuning.applyTo(serverSocket);
+                serverSocket.bind(new InetSocketAddress(bindAddress, port), backlog);
+            } catch (IOException e) {
+                serverSocket.close();
+                throw e;
+            }
+            return serverSocket;
+        };
+    }
+
+    // For setPortForwardingR: every socket JSch opens to the local target is counted
+    public static SocketFactory socketFactory(TrafficStats stats, TunnelTuning tuning) {
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                CountingSocket socket = new CountingSocket();
+                try {
+                    tuning.applyTo(socket);
+                    socket.connect(new InetSocketAddress(InetAddress.getByName(host), port));
+                } catch (IOException | RuntimeException e) {
+                    closeQuietly(socket);
+                    throw e;
+                }
+                socket.attach(stats.openConnection(host + ":" + port));
+                return socket;
+            }
+
+            @Override
+            public InputStream getInputStream(Socket socket) throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream(Socket socket) throws IOException {
+                return socket.getOutputStream();
+            }
+        };
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // Reads from the local socket go into the tunnel (sent), writes come out of it (received)
+    private static class CountingSocket extends Socket {
+        private TrafficStats.ConnectionTraffic traffic;
+        private InputStream in;
+        private OutputStream out;
+
+        private void attach(TrafficStats.ConnectionTraffic traffic) {
+            this.traffic = traffic;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new ProxyInputStream(super.getInputStream()) {
+                    @Override
+                    protected void afterRead(int n) {
+                        if (n > 0) {
+                            pause(traffic.addSent(n));
+                        }
+                    }
+                };
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new ProxyOutputStream(super.getOutputStream()) {
+                    @Override
+                    protected void beforeWrite(int n) {
+                        traffic.countReceived(n);
+                    }
+                };
+            }
+            return out;
+        }
+
+        private static void pause(long nanos) {
+            if (nanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            super.close();
+            if (traffic != null) {
+                traffic.close();
+            }
+        }
+    }
+}
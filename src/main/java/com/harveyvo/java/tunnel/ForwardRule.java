@@ -0,0 +1,123 @@
+package com.harveyvo.java.tunnel;
+
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+
+import java.util.concurrent.TimeUnit;
+
+// A further -L, -R or -D forward on a session's SSH connection, added and removed while the session
+// runs. Hosts and ports mean the same as on SessionStatus: for -R the remote side is where the server
+// listens and the local side is the target. Each rule counts its own traffic; the properties are
+// refreshed by UiPulse through its session.
+public class ForwardRule {
+
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final SSHTunnelManager.TunnelMode mode;
+    private final String localHost;
+    private final int localPort;
+    private final String remoteHost;  // null for -D
+    private final int remotePort;
+    private final SSHTunnelManager.ForwardingEngine engine;
+    private final TrafficStats trafficStats = new TrafficStats();
+
+    private final StringProperty status = new SimpleStringProperty("Stopped");
+    private final StringProperty bytesSent = new SimpleStringProperty("0 MB");
+    private final StringProperty bytesReceived = new SimpleStringProperty("0 MB");
+    private final StringProperty rate = new SimpleStringProperty("-");
+    private long rateSampleNanos;
+    private long rateSampleSent;
+    private long rateSampleReceived;
+
+    public ForwardRule(SSHTunnelManager.TunnelMode mode, String localHost, int localPort, String remoteHost, int remotePort,
+                       SSHTunnelManager.ForwardingEngine engine) {
+        this.mode = mode;
+        this.localHost = localHost;
+        this.localPort = localPort;
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+        // Only -L has a choice; SOCKS is NIO-only and -R is always relayed by JSch
+        this.engine = mode == SSHTunnelManager.TunnelMode.DYNAMIC ? SSHTunnelManager.ForwardingEngine.NIO
+                : mode == SSHTunnelManager.TunnelMode.REMOTE ? SSHTunnelManager.ForwardingEngine.JSCH : engine;
+    }
+
+    // e.g. "-L 127.0.0.1:5432 -> db:5432"
+    public String describe() {
+        switch (mode) {
+            case REMOTE:
+                return mode.getFlag() + " " + remoteHost + ":" + remotePort + " -> " + localHost + ":" + localPort;
+            case DYNAMIC:
+                return mode.getFlag() + " " + localHost + ":" + localPort;
+            default:
+                return mode.getFlag() + " " + localHost + ":" + localPort + " -> " + remoteHost + ":" + remotePort;
+        }
+    }
+
+    // Pull the rule's counters into its row; must run on the FX thread
+    public void refresh() {
+        long sent = trafficStats.getBytesSent();
+        long received = trafficStats.getBytesReceived();
+        bytesSent.set(SessionStatus.formatMegabytes(sent));
+        bytesReceived.set(SessionStatus.formatMegabytes(received));
+        long now = System.nanoTime();
+        if (rateSampleNanos != 0 && now - rateSampleNanos < RATE_WINDOW_NANOS) {
+            return;
+        }
+        if (rateSampleNanos != 0) {
+            double seconds = (now - rateSampleNanos) / 1e9;
+            rate.set("↑ " + SessionStatus.formatRate((sent - rateSampleSent) / seconds)
+                    + "  ↓ " + SessionStatus.formatRate((received - rateSampleReceived) / seconds));
+        }
+        rateSampleNanos = now;
+        rateSampleSent = sent;
+        rateSampleReceived = received;
+    }
+
+    public SSHTunnelManager.TunnelMode getMode() {
+        return mode;
+    }
+
+    public String getLocalHost() {
+        return localHost;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    public SSHTunnelManager.ForwardingEngine getEngine() {
+        return engine;
+    }
+
+    public TrafficStats getTrafficStats() {
+        return trafficStats;
+    }
+
+    public StringProperty statusProperty() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status.set(status);
+    }
+
+    public StringProperty bytesSentProperty() {
+        return bytesSent;
+    }
+
+    public StringProperty bytesReceivedProperty() {
+        return bytesReceived;
+    }
+
+    public StringProperty rateProperty() {
+        return rate;
+    }
+}
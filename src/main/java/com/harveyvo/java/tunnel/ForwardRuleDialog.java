@@ -0,0 +1,102 @@
+package com.harveyvo.java.tunnel;
+
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.Modality;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+
+import java.util.function.Consumer;
+
+// Asks for one more -L, -R or -D rule for a session; the fields mean the same as in the main form
+public class ForwardRuleDialog {
+
+    public void show(Window owner, String connectionName, Consumer<ForwardRule> onAdd) {
+        Stage dialog = new Stage();
+        dialog.setTitle("Add Rule to " + connectionName);
+        dialog.initModality(Modality.APPLICATION_MODAL);
+        dialog.initOwner(owner);
+
+        ComboBox<SSHTunnelManager.TunnelMode> modeComboBox = new ComboBox<>();
+        modeComboBox.getItems().addAll(SSHTunnelManager.TunnelMode.values());
+        modeComboBox.setValue(SSHTunnelManager.TunnelMode.LOCAL);
+        ComboBox<SSHTunnelManager.ForwardingEngine> engineComboBox = new ComboBox<>();
+        engineComboBox.getItems().addAll(SSHTunnelManager.ForwardingEngine.values());
+        engineComboBox.setValue(SSHTunnelManager.ForwardingEngine.NIO);
+        TextField localHostField = new TextField("127.0.0.1");
+        TextField localPortField = new TextField();
+        TextField remoteHostField = new TextField("localhost");
+        TextField remotePortField = new TextField();
+
+        // -D has no remote side and -R is always relayed by JSch
+        modeComboBox.setOnAction(event -> {
+            SSHTunnelManager.TunnelMode mode = modeComboBox.getValue();
+            remoteHostField.setDisable(mode == SSHTunnelManager.TunnelMode.DYNAMIC);
+            remotePortField.setDisable(mode == SSHTunnelManager.TunnelMode.DYNAMIC);
+            engineComboBox.setDisable(mode != SSHTunnelManager.TunnelMode.LOCAL);
+        });
+
+        GridPane grid = new GridPane();
+        grid.setPadding(new Insets(10));
+        grid.setHgap(10);
+        grid.setVgap(10);
+        grid.add(new Label("Mode:"), 0, 0);
+        grid.add(new HBox(10, modeComboBox, new Label("Engine:"), engineComboBox), 1, 0);
+        grid.add(new Label("Local Host:"), 0, 1);
+        grid.add(localHostField, 1, 1);
+        grid.add(new Label("Local Port:"), 0, 2);
+        grid.add(localPortField, 1, 2);
+        grid.add(new Label("Remote Host:"), 0, 3);
+        grid.add(remoteHostField, 1, 3);
+        grid.add(new Label("Remote Port:"), 0, 4);
+        grid.add(remotePortField, 1, 4);
+
+        Button addButton = new Button("Add");
+        Button cancelButton = new Button("Cancel");
+        grid.add(new HBox(10, addButton, cancelButton), 1, 5);
+
+        addButton.setOnAction(event -> {
+            SSHTunnelManager.TunnelMode mode = modeComboBox.getValue();
+            boolean dynamic = mode == SSHTunnelManager.TunnelMode.DYNAMIC;
+            int localPort = parsePort(localPortField.getText());
+            int remotePort = dynamic ? 0 : parsePort(remotePortField.getText());
+            if (localHostField.getText().trim().isEmpty() || localPort < 0 || remotePort < 0
+                    || (!dynamic && remoteHostField.getText().trim().isEmpty())) {
+                showAlert("Invalid Rule", "Please enter a host and a port between 1 and 65535 for each side of the rule.");
+                return;
+            }
+            onAdd.accept(new ForwardRule(mode, localHostField.getText().trim(), localPort,
+                    dynamic ? null : remoteHostField.getText().trim(), remotePort, engineComboBox.getValue()));
+            dialog.close();
+        });
+        cancelButton.setOnAction(event -> dialog.close());
+
+        dialog.setScene(new Scene(grid));
+        dialog.show();
+    }
+
+    // The port, or -1 when the text is not one
+    private static int parsePort(String text) {
+        try {
+            int port = Integer.parseInt(text.trim());
+            return port >= 1 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void showAlert(String title, String message) {
+        Alert alert = new Alert(Alert.AlertType.WARNING);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        alert.showAndWait();
+    }
+}
@@ -0,0 +1,274 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import com.jcraft.jsch.Session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Private keys parsed and decrypted once per process, keyed by a SHA-256 of the key text. Decrypting
+// an encrypted key runs its KDF, so doing it on every connect and reconnect adds up quickly.
+// All sessions come from one shared JSch; each gets a repository holding just its profile's key, so
+// the server is never offered unrelated keys. Decrypted keys are wiped after sitting unused for the
+// TTL (system property tunnel.identity.ttlMinutes, 30 by default, 0 keeps them until evicted).
+public class IdentityCache {
+
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private final JSch jsch = new JSch();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LogManager logManager = LogManager.getInstance();
+    private volatile long ttlMillis = TimeUnit.MINUTES.toMillis(Long.getLong("tunnel.identity.ttlMinutes", 30));
+
+    private IdentityCache() {
+        SharedScheduler.getInstance().scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static class IdentityCacheHolder {
+        private static final IdentityCache INSTANCE = new IdentityCache();
+    }
+
+    public static IdentityCache getInstance() {
+        return IdentityCacheHolder.INSTANCE;
+    }
+
+    // The JSch every session is created from
+    public JSch getJSch() {
+        return jsch;
+    }
+
+    // A session for the profile with its key (if it uses one) already set as the only identity
+    public Session newSession(SSHProfile profile) throws JSchException {
+        Session session = jsch.getSession(profile.getUsername(), profile.getSshHost(), profile.getSshPort());
+        if (profile.getAuthMethod() == SSHProfile.AuthMethod.SSH_KEY) {
+            session.setIdentityRepository(new SingleIdentityRepository(identityFor(profile)));
+        } else {
+            session.setPassword(profile.getPassword());
+        }
+        return session;
+    }
+
+    // The decrypted key for the profile, parsing it only if it is not cached yet
+    public Identity identityFor(SSHProfile profile) throws JSchException {
+        String keyContent = profile.getSshKeyContent();
+        if (keyContent == null || keyContent.isEmpty()) {
+            throw new JSchException("Profile " + profile.getProfileName() + " has no SSH key");
+        }
+        String passphraseHash = sha256(profile.getPassphrase() != null ? profile.getPassphrase() : "");
+        Entry entry = entries.compute(sha256(keyContent), (hash, cached) -> {
+            if (cached != null && cached.passphraseHash.equals(passphraseHash)) {
+                return cached;
+            }
+            // The first connect of a batch does the KDF while the others wait for it here
+            Entry loaded = load(profile, keyContent, passphraseHash);
+            if (cached != null && loaded != null) {
+                cached.identity.clear();
+            }
+            return loaded != null ? loaded : cached;
+        });
+        if (entry == null || !entry.passphraseHash.equals(passphraseHash)) {
+            throw new JSchException("Cannot load the SSH key of profile " + profile.getProfileName()
+                    + " (unsupported format or wrong passphrase)");
+        }
+        entry.lastUsedMillis = System.currentTimeMillis();
+        return entry.identity;
+    }
+
+    private Entry load(SSHProfile profile, String keyContent, String passphraseHash) {
+        try {
+            KeyPair keyPair = KeyPair.load(jsch, keyContent.getBytes(StandardCharsets.UTF_8), null);
+            if (keyPair.isEncrypted()) {
+                String passphrase = profile.getPassphrase();
+                if (passphrase == null || !keyPair.decrypt(passphrase.getBytes(StandardCharsets.UTF_8))) {
+                    keyPair.dispose();
+                    return null;
+                }
+            }
+            return new Entry(new DecryptedIdentity(profile.getUsername(), keyPair), passphraseHash);
+        } catch (JSchException e) {
+            logManager.log("Cannot parse SSH key of profile " + profile.getProfileName() + ": " + e.getMessage(), LogManager.LogLevel.ERROR);
+            return null;
+        }
+    }
+
+    // Forget the decrypted form of a key, e.g. after its profile was edited or deleted
+    public void evict(String keyContent) {
+        if (keyContent == null) {
+            return;
+        }
+        Entry removed = entries.remove(sha256(keyContent));
+        if (removed != null) {
+            removed.identity.clear();
+        }
+    }
+
+    public void evictAll() {
+        entries.keySet().forEach(hash -> {
+            Entry removed = entries.remove(hash);
+            if (removed != null) {
+                removed.identity.clear();
+            }
+        });
+    }
+
+    public void setTtl(long duration, TimeUnit unit) {
+        ttlMillis = unit.toMillis(duration);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void sweep() {
+        long ttl = ttlMillis;
+        if (ttl <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - ttl;
+        entries.forEach((hash, entry) -> {
+            if (entry.lastUsedMillis < cutoff && entries.remove(hash, entry)) {
+                entry.identity.clear();
+            }
+        });
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every JVM ships SHA-256
+        }
+    }
+
+    private static class Entry {
+        private final DecryptedIdentity identity;
+        private final String passphraseHash;
+        private volatile long lastUsedMillis = System.currentTimeMillis();
+
+        private Entry(DecryptedIdentity identity, String passphraseHash) {
+            this.identity = identity;
+            this.passphraseHash = passphraseHash;
+        }
+    }
+
+    // JSch's own identity class is package-private, so an already decrypted KeyPair is wrapped here
+    private static class DecryptedIdentity implements Identity {
+        private final String name;
+        private final KeyPair keyPair;
+        private final byte[] publicKeyBlob;
+
+        private DecryptedIdentity(String name, KeyPair keyPair) {
+            this.name = name;
+            this.keyPair = keyPair;
+            this.publicKeyBlob = keyPair.getPublicKeyBlob();
+        }
+
+        @Override
+        public boolean setPassphrase(byte[] passphrase) {
+            return true;  // Already decrypted
+        }
+
+        @Override
+        public byte[] getPublicKeyBlob() {
+            return publicKeyBlob;
+        }
+
+        @Override
+        public byte[] getSignature(byte[] data) {
+            synchronized (keyPair) {
+                return keyPair.getSignature(data);
+            }
+        }
+
+        @Override
+        @Deprecated
+        public boolean decrypt() {
+            return true;
+        }
+
+        @Override
+        public String getAlgName() {
+            switch (keyPair.getKeyType()) {
+                case KeyPair.RSA:
+                    return "ssh-rsa";
+                case KeyPair.DSA:
+                    return "ssh-dss";
+                default:
+                    // ECDSA: the name is the first string of the public key blob
+                    int length = ((publicKeyBlob[0] & 0xff) << 24) | ((publicKeyBlob[1] & 0xff) << 16)
+                            | ((publicKeyBlob[2] & 0xff) << 8) | (publicKeyBlob[3] & 0xff);
+                    return new String(publicKeyBlob, 4, length, StandardCharsets.US_ASCII);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        // Called on eviction; sessions that already authenticated are not affected
+        @Override
+        public void clear() {
+            synchronized (keyPair) {
+                keyPair.dispose();
+            }
+        }
+    }
+
+    private static class SingleIdentityRepository implements IdentityRepository {
+        private final Identity identity;
+
+        private SingleIdentityRepository(Identity identity) {
+            this.identity = identity;
+        }
+
+        @Override
+        public String getName() {
+            return "Cached identity";
+        }
+
+        @Override
+        public int getStatus() {
+            return RUNNING;
+        }
+
+        @Override
+        public Vector<Identity> getIdentities() {
+            return new Vector<>(Arrays.asList(identity));
+        }
+
+        @Override
+        public boolean add(byte[] identity) {
+            return false;
+        }
+
+        @Override
+        public boolean remove(byte[] blob) {
+            return false;
+        }
+
+        @Override
+        public void removeAll() {
+        }
+    }
+}
@@ -1,17 +1,33 @@
 package com.harveyvo.java.tunnel;
 
+import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Logger;
 
-import java.util.function.Consumer;
+import java.util.function.BiConsumer;
 
 public class JSchLogger implements Logger {
 
-    private final Consumer<String> logConsumer;
+    private static volatile boolean installed;
 
-    public JSchLogger(Consumer<String> logConsumer) {
+    private final BiConsumer<LogManager.LogLevel, String> logConsumer;
+
+    public JSchLogger(BiConsumer<LogManager.LogLevel, String> logConsumer) {
         this.logConsumer = logConsumer;
     }
 
+    // JSch has one logger for the whole JVM
+    public static void install(BiConsumer<LogManager.LogLevel, String> logConsumer) {
+        JSch.setLogger(new JSchLogger(logConsumer));
+        installed = true;
+    }
+
+    // Connect timing reads JSch's log lines, and a test connection can come before any tunnel installed a logger
+    public static void ensureInstalled() {
+        if (!installed) {
+            install((level, message) -> LogManager.getInstance().log(message, level));
+        }
+    }
+
     @Override
     public boolean isEnabled(int level) {
         return true;
@@ -19,9 +35,20 @@ public class JSchLogger implements Logger {
 
     @Override
     public void log(int level, String message) {
+        ConnectTiming.onLog(message);
         String levelName = getLevelName(level);
         String logMessage = "[JSch] " + levelName + ": " + message;
-        logConsumer.accept(logMessage);
+        logConsumer.accept(toLogLevel(level), logMessage);
+    }
+
+    // JSch DEBUG lines keep their level so the log queue can shed them under load
+    private LogManager.LogLevel toLogLevel(int level) {
+        switch (level) {
+            case DEBUG: return LogManager.LogLevel.DEBUG;
+            case INFO: return LogManager.LogLevel.INFO;
+            case WARN: return LogManager.LogLevel.WARNING;
+            default: return LogManager.LogLevel.ERROR;
+        }
     }
 
     private String getLevelName(int level) {
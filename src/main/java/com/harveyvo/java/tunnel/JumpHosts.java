@@ -0,0 +1,145 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// ProxyJump for profiles: jumpHosts names other profiles, first hop first, and the SSH connection to the
+// profile's host is carried by a direct-tcpip channel of the last hop. Hop sessions come from SessionPool
+// like any other, keyed by the hops in front of them, so every target behind a bastion shares one
+// bastion session, and so do tunnels that use the bastion directly.
+public class JumpHosts {
+
+    private JumpHosts() {
+    }
+
+    // Profile names in a jumpHosts value, e.g. "bastion, inner-bastion"
+    public static List<String> parse(String jumpHosts) {
+        List<String> names = new ArrayList<>();
+        if (jumpHosts != null) {
+            for (String name : jumpHosts.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    // Route the unconnected session through the profile's last hop; does nothing for a direct profile
+    public static void attach(Session session, SSHProfile profile, SessionPool.Connector connector) throws JSchException {
+        List<SSHProfile> hops = resolve(profile);
+        if (hops.isEmpty()) {
+            return;
+        }
+        List<String> upstream = parse(profile.getJumpHosts()).subList(0, hops.size() - 1);
+        SSHProfile lastHop = asHop(hops.get(hops.size() - 1), String.join(",", upstream));
+        session.setProxy(new HopProxy(lastHop, connector));
+    }
+
+    // The hop profiles in order; unknown names and loops are configuration errors
+    public static List<SSHProfile> resolve(SSHProfile profile) throws JSchException {
+        List<SSHProfile> hops = new ArrayList<>();
+        Set<String> seen = new LinkedHashSet<>();
+        seen.add(profile.getProfileName());
+        for (String name : parse(profile.getJumpHosts())) {
+            if (name.equals(profile.getProfileName())) {
+                throw new JSchException("Profile " + name + " cannot be its own jump host");
+            }
+            if (!seen.add(name)) {
+                throw new JSchException("Jump host " + name + " appears twice in the chain of " + profile.getProfileName());
+            }
+            SSHProfile hop = ProfileManager.getInstance().getProfileByName(name);
+            if (hop == null) {
+                throw new JSchException("Jump host profile not found: " + name);
+            }
+            hops.add(hop);
+        }
+        return hops;
+    }
+
+    // A hop is reached through the hops before it in this chain, not through its own jumpHosts
+    private static SSHProfile asHop(SSHProfile hop, String upstream) {
+        SSHProfile copy = new SSHProfile(hop.getProfileName(), hop.getSshHost(), hop.getSshPort(), hop.getUsername(), hop.getPassword(),
+                hop.getAuthMethod(), hop.getSshKeyContent(), hop.getPassphrase());
+        copy.setServerAliveInterval(hop.getServerAliveInterval());
+        copy.setServerAliveCountMax(hop.getServerAliveCountMax());
+        copy.setCiphers(hop.getCiphers());
+        copy.setMacs(hop.getMacs());
+        copy.setKexAlgorithms(hop.getKexAlgorithms());
+        copy.setCompression(hop.isCompression());
+        copy.setJumpHosts(upstream);
+        return copy;
+    }
+
+    // The transport of a session behind a hop. It holds a lease on the hop session from connect until
+    // JSch closes it with the session, so the bastion stays up exactly as long as something uses it.
+    private static class HopProxy implements Proxy {
+        private final SSHProfile hop;
+        private final SessionPool.Connector connector;
+        private SessionPool.Lease lease;
+        private ChannelDirectTCPIP channel;
+        private InputStream in;
+        private OutputStream out;
+
+        private HopProxy(SSHProfile hop, SessionPool.Connector connector) {
+            this.hop = hop;
+            this.connector = connector;
+        }
+
+        @Override
+        public void connect(SocketFactory socketFactory, String host, int port, int timeout) throws Exception {
+            lease = SessionPool.getInstance().acquire(hop, connector);
+            try {
+                channel = (ChannelDirectTCPIP) lease.getSession().openChannel("direct-tcpip");
+                channel.setHost(host);
+                channel.setPort(port);
+                // Both streams must be taken before connect; reads block on data the hop's session thread delivers
+                in = channel.getInputStream();
+                out = channel.getOutputStream();
+                channel.connect(timeout > 0 ? timeout : 10000);
+            } catch (Exception e) {
+                close();  // JSch only closes the proxy of a session that got past this point
+                throw new JSchException("Jump host " + hop.getProfileName() + " could not reach " + host + ":" + port + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        // There is no socket of our own; JSch skips its socket options when this is null
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (channel != null) {
+                channel.disconnect();
+                channel = null;
+            }
+            if (lease != null) {
+                lease.release();
+                lease = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Packet;
+import com.jcraft.jsch.Session;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Keepalive probes for live SSH sessions, one probe per session however many tunnels share it.
+// Each interval the server must answer one keepalive@openssh.com global request, the same packet
+// OpenSSH's ServerAliveInterval sends; the answer is timed for the RTT metric, and serverAliveCountMax
+// missed answers in a row mark the peer dead: the session is closed and every tunnel on it is told at
+// once. JSch only hands the answer to a global request to the thread registered in its private
+// GlobalRequestReply, as its remote port forwarding does; that is reached by reflection, and where it
+// fails the probe opens a session channel and closes it right away instead.
+public class KeepaliveMonitor {
+
+    private static final byte SSH_MSG_GLOBAL_REQUEST = 80;
+    private static final byte[] KEEPALIVE_REQUEST = "keepalive@openssh.com".getBytes(StandardCharsets.US_ASCII);
+    private static final int NO_REPLY = -1;
+
+    private static final Field GLOBAL_REQUEST_REPLY = globalRequestReplyField();
+    private static final Method SET_REPLY_THREAD = globalRequestReplyMethod("setThread", Thread.class);
+    private static final Method GET_REPLY = globalRequestReplyMethod("getReply");
+
+    // JSch sessions compare by identity
+    private final Map<Session, Probe> probes = new ConcurrentHashMap<>();
+    private final LogManager logManager = LogManager.getInstance();
+    // Probes wait for the server, so they run here and not on the shared scheduler. Unbounded, so every
+    // session's probe waits out its own timeout: a drop that kills many sessions is noticed on all of
+    // them within the same intervals, not one after another.
+    private final ExecutorService probeExecutor;
+
+    private KeepaliveMonitor() {
+        probeExecutor = TaskExecutors.getInstance().blocking();
+    }
+
+    private static Field globalRequestReplyField() {
+        try {
+            Field field = Session.class.getDeclaredField("grr");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LogManager.getInstance().log("Keepalive requests unavailable, probing with channel opens: " + e, LogManager.LogLevel.WARNING);
+            return null;
+        }
+    }
+
+    private static Method globalRequestReplyMethod(String name, Class<?>... parameterTypes) {
+        if (GLOBAL_REQUEST_REPLY == null) {
+            return null;
+        }
+        try {
+            Method method = GLOBAL_REQUEST_REPLY.getType().getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LogManager.getInstance().log("Keepalive requests unavailable, probing with channel opens: " + e, LogManager.LogLevel.WARNING);
+            return null;
+        }
+    }
+
+    private static class KeepaliveMonitorHolder {
+        private static final KeepaliveMonitor INSTANCE = new KeepaliveMonitor();
+    }
+
+    public static KeepaliveMonitor getInstance() {
+        return KeepaliveMonitorHolder.INSTANCE;
+    }
+
+    // Probe the session with the profile's keepalive settings and call onDead if the peer stops answering
+    public void watch(Session session, SSHProfile profile, Runnable onDead) {
+        if (profile.getServerAliveInterval() <= 0) {
+            return;  // Keepalive disabled for this profile
+        }
+        probes.compute(session, (key, probe) -> {
+            if (probe == null) {
+                probe = new Probe(session, profile);
+                probe.start();
+            }
+            probe.listeners.add(onDead);
+            return probe;
+        });
+    }
+
+    public void unwatch(Session session, Runnable onDead) {
+        if (session == null) {
+            return;
+        }
+        probes.computeIfPresent(session, (key, probe) -> {
+            probe.listeners.remove(onDead);
+            if (probe.listeners.isEmpty()) {
+                probe.stop();
+                return null;
+            }
+            return probe;
+        });
+    }
+
+    // Last keepalive round trip in microseconds, or -1 if the session has not been probed yet
+    public long getRttMicros(Session session) {
+        Probe probe = session != null ? probes.get(session) : null;
+        return probe != null ? probe.rttMicros : -1;
+    }
+
+    private class Probe {
+        private final Session session;
+        private final String host;
+        private final long intervalMillis;
+        private final int countMax;
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean inFlight = new AtomicBoolean(false);
+        private final AtomicBoolean dead = new AtomicBoolean(false);
+        private ScheduledFuture<?> tick;
+        private volatile long rttMicros = -1;
+        // Only touched by the probe in flight
+        private int missed;
+
+        private Probe(Session session, SSHProfile profile) {
+            this.session = session;
+            this.host = profile.getSshHost() + ":" + profile.getSshPort();
+            this.intervalMillis = TimeUnit.SECONDS.toMillis(profile.getServerAliveInterval());
+            this.countMax = Math.max(1, profile.getServerAliveCountMax());
+        }
+
+        private void start() {
+            tick = SharedScheduler.getInstance().scheduleAtFixedRate(this::onTick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void stop() {
+            tick.cancel(false);
+        }
+
+        // A probe that is still waiting for its answer is not stacked with another one
+        private void onTick() {
+            if (inFlight.compareAndSet(false, true)) {
+                probeExecutor.execute(this::probe);
+            }
+        }
+
+        private void probe() {
+            long start = System.nanoTime();
+            try {
+                if (SET_REPLY_THREAD != null && GET_REPLY != null ? request() : openChannel()) {
+                    answered(start);
+                } else if (!session.isConnected()) {
+                    declareDead("session closed");
+                } else if (++missed >= countMax) {
+                    declareDead(missed + " keepalive(s) unanswered");
+                }
+            } finally {
+                inFlight.set(false);
+            }
+        }
+
+        // Success and failure both prove the peer is alive; OpenSSH answers this request with a failure.
+        // The session thread interrupts the registered thread when either arrives.
+        private boolean request() {
+            Object reply;
+            try {
+                reply = GLOBAL_REQUEST_REPLY.get(session);
+            } catch (IllegalAccessException e) {
+                return openChannel();
+            }
+            // Held by JSch's remote port forwarding while it waits for its own answer
+            synchronized (reply) {
+                try {
+                    SET_REPLY_THREAD.invoke(reply, Thread.currentThread());
+                    Buffer buffer = new Buffer(100);
+                    Packet packet = new Packet(buffer);
+                    packet.reset();
+                    buffer.putByte(SSH_MSG_GLOBAL_REQUEST);
+                    buffer.putString(KEEPALIVE_REQUEST);
+                    buffer.putByte((byte) 1);  // want reply
+                    session.write(packet);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+                    long remaining;
+                    while ((int) GET_REPLY.invoke(reply) == NO_REPLY && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(remaining);
+                        } catch (InterruptedException e) {
+                            // The answer has arrived
+                        }
+                    }
+                    return (int) GET_REPLY.invoke(reply) != NO_REPLY;
+                } catch (Exception e) {
+                    return false;  // Not sent: the session is closing
+                } finally {
+                    try {
+                        SET_REPLY_THREAD.invoke(reply, (Thread) null);
+                    } catch (ReflectiveOperationException e) {
+                        logManager.log("Failed to clear keepalive request: " + e, LogManager.LogLevel.DEBUG);
+                    }
+                    Thread.interrupted();  // An answer that came in after the wait was over
+                }
+            }
+        }
+
+        private boolean openChannel() {
+            long start = System.nanoTime();
+            Channel channel = null;
+            try {
+                channel = session.openChannel("session");
+                channel.connect((int) intervalMillis);
+                return true;
+            } catch (JSchException e) {
+                // Refused before the timeout (e.g. MaxSessions), which still proves the peer is alive
+                return session.isConnected() && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < intervalMillis;
+            } finally {
+                if (channel != null) {
+                    channel.disconnect();
+                }
+            }
+        }
+
+        private void answered(long startNanos) {
+            rttMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+            missed = 0;
+        }
+
+        private void declareDead(String reason) {
+            if (!dead.compareAndSet(false, true)) {
+                return;
+            }
+            stop();
+            probes.remove(session, this);
+            logManager.log("Dead SSH peer " + host + " (" + reason + "), closing session", LogManager.LogLevel.WARNING);
+            session.disconnect();
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// One local port in front of several profiles that reach the same service, e.g. three bastions.
+// Each client gets a channel on one backend picked by the policy; if that channel cannot be opened,
+// the client is retried on the next backend. Every HEALTH_INTERVAL the backends are probed with a
+// channel to the target (or a session channel for SOCKS), which measures the RTT that LOWEST_RTT
+// uses and brings failed backends back once they answer again. Backend sessions come from
+// SessionPool, so they are shared with ordinary tunnels of the same profiles.
+public class LoadBalancer implements NioForwarder.ChannelOpener {
+
+    public enum Policy {
+        ROUND_ROBIN, LEAST_CONNECTIONS, LOWEST_RTT
+    }
+
+    private static final long HEALTH_INTERVAL_MILLIS = 5000;
+    private static final int PROBE_TIMEOUT_MILLIS = 5000;
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 60_000;
+    // Weight of the newest probe in the RTT average
+    private static final double RTT_SMOOTHING = 0.3;
+
+    private final Policy policy;
+    private final String name;
+    // Probe target; null for a SOCKS port, where clients pick their own destinations
+    private final String probeHost;
+    private final int probePort;
+    private final Backend[] backends;
+    private final Map<ChannelDirectTCPIP, Backend> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger nextBackend = new AtomicInteger();
+    private final LogManager logManager = LogManager.getInstance();
+    // Told the healthy and total backend count whenever a backend changes state
+    private final Consumer<String> statusListener;
+    private ScheduledFuture<?> healthCheck;
+    private volatile boolean closed;
+
+    public LoadBalancer(List<SSHProfile> profiles, Policy policy, String probeHost, int probePort, String name,
+                        Consumer<String> statusListener) {
+        this.policy = policy;
+        this.name = name;
+        this.probeHost = probeHost;
+        this.probePort = probePort;
+        this.statusListener = statusListener;
+        this.backends = new Backend[profiles.size()];
+        for (int i = 0; i < backends.length; i++) {
+            backends[i] = new Backend(profiles.get(i));
+        }
+    }
+
+    // Connect every backend in the background and start the health checks
+    public void start() {
+        for (Backend backend : backends) {
+            backend.check();
+        }
+        healthCheck = SharedScheduler.getInstance().scheduleAtFixedRate(() -> {
+            for (Backend backend : backends) {
+                backend.check();
+            }
+        }, HEALTH_INTERVAL_MILLIS, HEALTH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ChannelDirectTCPIP openChannel(String host, int port) throws JSchException {
+        for (int attempt = 0; attempt < backends.length; attempt++) {
+            Backend backend = pick();
+            if (backend == null) {
+                break;
+            }
+            Session session = backend.session();
+            if (session == null) {
+                backend.markDown("session closed");
+                continue;
+            }
+            ChannelDirectTCPIP channel;
+            try {
+                channel = NioForwarder.sessionOpener(session).openChannel(host, port);
+            } catch (JSchException e) {
+                backend.markDown("channel open failed: " + e.getMessage());
+                continue;
+            }
+            backend.activeChannels.incrementAndGet();
+            backend.totalChannels.incrementAndGet();
+            channels.put(channel, backend);
+            return channel;
+        }
+        throw new JSchException("No healthy backend for " + name);
+    }
+
+    // A client whose channel fails on one backend tries each of the others once
+    @Override
+    public int maxAttempts() {
+        return backends.length;
+    }
+
+    @Override
+    public void channelOpened(ChannelDirectTCPIP channel, TrafficStats.ConnectionTraffic traffic) {
+        Backend backend = channels.get(channel);
+        if (backend != null) {
+            traffic.alsoCountIn(backend.stats);
+        }
+    }
+
+    // The backend could not reach the fixed target, so it is skipped until a probe succeeds. A SOCKS
+    // destination is the client's choice and says nothing about the backend, so that only counts.
+    @Override
+    public void channelFailed(ChannelDirectTCPIP channel, Exception cause) {
+        Backend backend = channels.get(channel);
+        channelClosed(channel);
+        if (backend != null) {
+            backend.failedChannels.incrementAndGet();
+            if (probeHost != null) {
+                backend.markUnhealthy("connect failed: " + cause.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelDirectTCPIP channel) {
+        Backend backend = channels.remove(channel);
+        if (backend != null) {
+            backend.activeChannels.decrementAndGet();
+        }
+    }
+
+    private Backend pick() {
+        int start = Math.floorMod(nextBackend.getAndIncrement(), backends.length);
+        Backend best = null;
+        for (int i = 0; i < backends.length; i++) {
+            Backend backend = backends[(start + i) % backends.length];
+            if (!backend.healthy) {
+                continue;
+            }
+            if (policy == Policy.ROUND_ROBIN) {
+                return backend;
+            }
+            // Ties go to the backend after the last pick, so equal backends still take turns
+            if (best == null || better(backend, best)) {
+                best = backend;
+            }
+        }
+        return best;
+    }
+
+    private boolean better(Backend candidate, Backend current) {
+        if (policy == Policy.LOWEST_RTT) {
+            return candidate.rttMicros < current.rttMicros;
+        }
+        return candidate.activeChannels.get() < current.activeChannels.get();
+    }
+
+    public List<Backend> getBackends() {
+        return List.of(backends);
+    }
+
+    public int getHealthyCount() {
+        int healthy = 0;
+        for (Backend backend : backends) {
+            if (backend.healthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    public void close() {
+        closed = true;
+        if (healthCheck != null) {
+            healthCheck.cancel(false);
+        }
+        for (Backend backend : backends) {
+            backend.release();
+        }
+    }
+
+    private void reportStatus() {
+        if (!closed) {
+            statusListener.accept("Active (" + getHealthyCount() + "/" + backends.length + " backends)");
+        }
+    }
+
+    // One profile of the pool with its session, health and counters
+    public class Backend {
+        private final SSHProfile profile;
+        private final AtomicInteger activeChannels = new AtomicInteger();
+        private final AtomicInteger totalChannels = new AtomicInteger();
+        private final AtomicInteger failedChannels = new AtomicInteger();
+        private final TrafficStats stats = new TrafficStats();
+        private final Runnable onDead = () -> markDown("keepalive failed");
+        // A check runs at most once at a time per backend
+        private final AtomicBoolean checking = new AtomicBoolean(false);
+        // Guarded by this
+        private SessionPool.Lease lease;
+        private int attempt;
+        private long nextConnectNanos;
+        private volatile boolean healthy;
+        // Smoothed probe round trip, 0 until the first probe; unprobed backends are tried first
+        private volatile long rttMicros;
+
+        private Backend(SSHProfile profile) {
+            this.profile = profile;
+        }
+
+        private synchronized Session session() {
+            return lease != null && lease.getSession().isConnected() ? lease.getSession() : null;
+        }
+
+        private void check() {
+            if (!closed && checking.compareAndSet(false, true)) {
+                // Connecting and probing wait for the network, so they stay off the scheduler thread
+                TaskExecutors.getInstance().blocking().execute(() -> {
+                    try {
+                        runCheck();
+                    } finally {
+                        checking.set(false);
+                    }
+                });
+            }
+        }
+
+        private void runCheck() {
+            Session session = session();
+            if (session == null) {
+                synchronized (this) {
+                    if (System.nanoTime() < nextConnectNanos) {
+                        return;  // Backing off after failed connects
+                    }
+                }
+                session = connect();
+                if (session == null) {
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            Channel channel = null;
+            try {
+                if (probeHost != null) {
+                    ChannelDirectTCPIP probe = (ChannelDirectTCPIP) session.openChannel("direct-tcpip");
+                    probe.setHost(probeHost);
+                    probe.setPort(probePort);
+                    channel = probe;
+                } else {
+                    channel = session.openChannel("session");
+                }
+                channel.connect(PROBE_TIMEOUT_MILLIS);
+                long sample = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                rttMicros = rttMicros == 0 ? sample : (long) (RTT_SMOOTHING * sample + (1 - RTT_SMOOTHING) * rttMicros);
+                markHealthy();
+            } catch (JSchException e) {
+                if (!session.isConnected()) {
+                    markDown("session closed");
+                } else {
+                    markUnhealthy("probe failed: " + e.getMessage());
+                }
+            } finally {
+                if (channel != null) {
+                    channel.disconnect();
+                }
+            }
+        }
+
+        private Session connect() {
+            SessionPool.Lease acquired;
+            try {
+                acquired = SessionPool.getInstance().acquire(profile, SSHTunnelManager::openSession);
+            } catch (JSchException e) {
+                synchronized (this) {
+                    long bound = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt++, 16));
+                    nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(bound + 1));
+                }
+                logManager.log("Backend " + profile.getProfileName() + " of " + name + " failed to connect: " + e.getMessage(),
+                        LogManager.LogLevel.WARNING);
+                return null;
+            }
+            synchronized (this) {
+                if (closed) {
+                    acquired.release();
+                    return null;
+                }
+                lease = acquired;
+                attempt = 0;
+            }
+            KeepaliveMonitor.getInstance().watch(acquired.getSession(), profile, onDead);
+            return acquired.getSession();
+        }
+
+        private synchronized void markHealthy() {
+            if (!healthy) {
+                healthy = true;
+                logManager.log("Backend " + profile.getProfileName() + " of " + name + " is healthy");
+                reportStatus();
+            }
+        }
+
+        // Still connected, but not used until a probe gets through again
+        private synchronized void markUnhealthy(String reason) {
+            if (healthy) {
+                healthy = false;
+                logManager.log("Backend " + profile.getProfileName() + " of " + name + " is unhealthy (" + reason + ")",
+                        LogManager.LogLevel.WARNING);
+                reportStatus();
+            }
+        }
+
+        // The session is gone; the next health check reconnects
+        private void markDown(String reason) {
+            markUnhealthy(reason);
+            release();
+        }
+
+        private void release() {
+            SessionPool.Lease released;
+            synchronized (this) {
+                released = lease;
+                lease = null;
+            }
+            if (released != null) {
+                KeepaliveMonitor.getInstance().unwatch(released.getSession(), onDead);
+                released.release();
+            }
+        }
+
+        public String getProfileName() {
+            return profile.getProfileName();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public long getRttMicros() {
+            return rttMicros;
+        }
+
+        public int getActiveChannels() {
+            return activeChannels.get();
+        }
+
+        public int getTotalChannels() {
+            return totalChannels.get();
+        }
+
+        public int getFailedChannels() {
+            return failedChannels.get();
+        }
+
+        public long getBytesSent() {
+            return stats.getBytesSent();
+        }
+
+        public long getBytesReceived() {
+            return stats.getBytesReceived();
+        }
+    }
+}
@@ -12,9 +12,12 @@ import javafx.util.Duration;
 
 public class LogDialog {
 
+    // Older text is trimmed from the top once the view holds this many characters
+    private static final int MAX_DISPLAY_CHARS = 512 * 1024;
+
     private final LogManager logManager = LogManager.getInstance();
     private TextArea logTextArea;
-    private String lastLogContent = ""; // To store the last displayed log
+    private long logOffset; // File offset just after the last displayed line
 
     // Show the log dialog and auto-refresh
     public void showLogDialog(Stage parentStage) {
@@ -36,23 +39,32 @@ public class LogDialog {
         dialog.setScene(dialogScene);
         dialog.show();
 
-        // Load initial log content (last 100 lines)
-        lastLogContent = logManager.getLast100Lines();
-        logTextArea.setText(lastLogContent);
-
-        // Auto-refresh every 5 seconds to check for new log content
-        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(5), event -> {
-            String currentLogContent = logManager.getLast100Lines();
+        // Load initial log content (last 100 lines), read backwards from the end of the file
+        LogManager.LogChunk chunk = logManager.readLastLines(100);
+        logTextArea.setText(chunk.getText());
+        logOffset = chunk.getEndOffset();
 
-            // Only update the TextArea if there's new content
-            if (!currentLogContent.equals(lastLogContent)) {
-                // Find the new lines by comparing the old and new log contents
-                String newLog = currentLogContent.substring(lastLogContent.length());
-                logTextArea.appendText(newLog);  // Append only the new content
-                lastLogContent = currentLogContent;  // Update the last log content
+        // Follow the file from the last offset; only newly appended bytes are read
+        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(1), event -> {
+            LogManager.LogChunk update = logManager.readFrom(logOffset);
+            logOffset = update.getEndOffset();
+            if (update.isReset()) {
+                logTextArea.setText(update.getText());
+            } else if (!update.getText().isEmpty()) {
+                logTextArea.appendText(update.getText());
+                trimDisplay();
             }
         }));
         timeline.setCycleCount(Timeline.INDEFINITE);
         timeline.play();
+        dialog.setOnHidden(event -> timeline.stop());
+    }
+
+    private void trimDisplay() {
+        int excess = logTextArea.getLength() - MAX_DISPLAY_CHARS;
+        if (excess > 0) {
+            int cut = logTextArea.getText().indexOf('\n', excess);
+            logTextArea.deleteText(0, cut < 0 ? excess : cut + 1);
+        }
     }
 }
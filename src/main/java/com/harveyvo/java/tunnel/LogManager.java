@@ -1,32 +1,68 @@
 package com.harveyvo.java.tunnel;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.logging.Level;
-import java.util.stream.Collectors;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+// Log messages are queued by the caller and written by a single background thread, so JSch I/O threads
+// and the FX thread never wait on the disk. The writer keeps the file open and writes in batches.
 public class LogManager {
 
     private static final String LOG_FILE_NAME = "ssh_tunnel_manager.log"; // Log file name
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_BATCH = 512;
+    private static final int TAIL_READ_SIZE = 8192;
+    private static final long MAX_TAIL_BYTES = 1024 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final DateTimeFormatter DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     private FileManager fileManager;  // FileManager to handle file operations
-    private SimpleDateFormat dateFormatter;
+
+    // Bounded multi-producer queue: a lock-free linked queue plus an atomic size that enforces the bound
+    private final Queue<LogEntry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private volatile OverflowPolicy overflowPolicy;
+    private volatile boolean running = true;
+    private final Thread writerThread;
 
     // Enum for log levels
     public enum LogLevel {
-        INFO, WARNING, ERROR
+        DEBUG, INFO, WARNING, ERROR
+    }
+
+    // What log() does when the queue is full
+    public enum OverflowPolicy {
+        BLOCK,       // Wait for the writer to make room
+        DROP_DEBUG,  // Drop DEBUG messages, wait for room for everything else
+        COUNT_DROPS  // Drop any message and report how many were lost
     }
 
     // Private constructor for Singleton
     private LogManager() {
         this.fileManager = new FileManager(); // Initialize FileManager
-        dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); // Date format for log timestamps
 
         // Ensure the log file exists
         this.fileManager.createFileIfNotExists(LOG_FILE_NAME);
+
+        overflowPolicy = OverflowPolicy.valueOf(System.getProperty("tunnel.log.overflowPolicy", OverflowPolicy.DROP_DEBUG.name()));
+
+        writerThread = TaskExecutors.newPlatformThread("log-writer", this::runWriter);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "log-writer-shutdown"));
     }
 
     // Static inner class responsible for holding the Singleton instance
@@ -43,34 +79,223 @@ public class LogManager {
         this.log(message, LogLevel.INFO);
     }
 
-    // Write log message to the log file with log level and timestamp
+    // Queue a log message; the timestamp is taken now and formatted by the writer
     public void log(String message, LogLevel level) {
-        String timestamp = dateFormatter.format(new Date()); // Get the current timestamp
-        String formattedMessage = String.format("[%s] [%s] %s", timestamp, level, message); // Format the log message
-        Path logFilePath = fileManager.getFilePath(LOG_FILE_NAME); // Get the log file path
+        if (!reserveSlot(level)) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+        boolean wasEmpty = queue.isEmpty();
+        queue.add(new LogEntry(System.currentTimeMillis(), level, message));
+        if (wasEmpty) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private boolean reserveSlot(LogLevel level) {
+        while (true) {
+            int size = queueSize.get();
+            if (size < QUEUE_CAPACITY) {
+                if (queueSize.compareAndSet(size, size + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            OverflowPolicy policy = overflowPolicy;
+            if (policy == OverflowPolicy.COUNT_DROPS || (policy == OverflowPolicy.DROP_DEBUG && level == LogLevel.DEBUG) || !running) {
+                return false;
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath.toFile(), true))) {
-            writer.write(formattedMessage + "\n");
+    private void runWriter() {
+        Path logFilePath = fileManager.getFilePath(LOG_FILE_NAME); // Get the log file path
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        long reportedDrops = 0;
+        try (FileChannel channel = FileChannel.open(logFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (running || !queue.isEmpty()) {
+                int count = 0;
+                LogEntry entry;
+                while (count < MAX_BATCH && (entry = queue.poll()) != null) {
+                    queueSize.decrementAndGet();
+                    entry.appendTo(batch);
+                    count++;
+                }
+                reportedDrops = appendDropReport(batch, reportedDrops);
+                writeBatch(channel, batch);
+                if (count == 0 && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+            appendDropReport(batch, reportedDrops);
+            writeBatch(channel, batch);
+            channel.force(false);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private long appendDropReport(StringBuilder batch, long reportedDrops) {
+        long drops = droppedMessages.get();
+        if (drops != reportedDrops) {
+            new LogEntry(System.currentTimeMillis(), LogLevel.WARNING,
+                    "Log queue full, " + (drops - reportedDrops) + " message(s) dropped").appendTo(batch);
+        }
+        return drops;
+    }
+
+    private void writeBatch(FileChannel channel, StringBuilder batch) throws IOException {
+        if (batch.length() == 0) {
+            return;
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(batch.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        batch.setLength(0);
+    }
+
+    // Stop accepting messages and let the writer drain what is queued
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // Read the last 100 lines from the log file
     public String getLast100Lines() {
-        Deque<String> lines = new LinkedList<>();
+        String text = readLastLines(100).getText();
+        return text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    // Read the last lineCount complete lines by seeking backwards from the end of the file
+    public LogChunk readLastLines(int lineCount) {
         Path logFilePath = fileManager.getFilePath(LOG_FILE_NAME); // Get the log file path
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFilePath.toFile()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                lines.add(line);
-                if (lines.size() > 100) {
-                    lines.poll(); // Keep only the last 100 lines
+        try (RandomAccessFile file = new RandomAccessFile(logFilePath.toFile(), "r")) {
+            long end = lastLineEnd(file, file.length());
+            long start = end;
+            int newlines = 0;
+            byte[] buffer = new byte[TAIL_READ_SIZE];
+            // The newline that ends the last line is not a separator, so lineCount + 1 newlines bound the range
+            while (start > 0 && newlines <= lineCount) {
+                int length = (int) Math.min(buffer.length, start);
+                file.seek(start - length);
+                file.readFully(buffer, 0, length);
+                int i = length - 1;
+                for (; i >= 0; i--) {
+                    if (buffer[i] == '\n' && ++newlines > lineCount) {
+                        break;
+                    }
                 }
+                start = start - length + i + 1;
             }
+            return new LogChunk(readRange(file, start, end), end, true);
         } catch (IOException e) {
             e.printStackTrace();
+            return new LogChunk("", 0, true);
+        }
+    }
+
+    // Read complete lines appended after offset. If the file was truncated or rotated, or too much was
+    // appended to show, the chunk restarts from the tail and is flagged as a reset.
+    public LogChunk readFrom(long offset) {
+        Path logFilePath = fileManager.getFilePath(LOG_FILE_NAME); // Get the log file path
+        try (RandomAccessFile file = new RandomAccessFile(logFilePath.toFile(), "r")) {
+            long size = file.length();
+            if (size < offset || size - offset > MAX_TAIL_BYTES) {
+                return readLastLines(100);
+            }
+            long end = lastLineEnd(file, size);
+            if (end <= offset) {
+                return new LogChunk("", offset, false);
+            }
+            return new LogChunk(readRange(file, offset, end), end, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new LogChunk("", offset, false);
+        }
+    }
+
+    // Offset just after the last newline, so a line that is still being written is left for the next read
+    private long lastLineEnd(RandomAccessFile file, long size) throws IOException {
+        byte[] buffer = new byte[TAIL_READ_SIZE];
+        long position = size;
+        while (position > 0) {
+            int length = (int) Math.min(buffer.length, position);
+            file.seek(position - length);
+            file.readFully(buffer, 0, length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer[i] == '\n') {
+                    return position - length + i + 1;
+                }
+            }
+            position -= length;
+        }
+        return 0;
+    }
+
+    private String readRange(RandomAccessFile file, long start, long end) throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        file.seek(start);
+        file.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Text read from the log and the file offset to continue from
+    public static class LogChunk {
+        private final String text;
+        private final long endOffset;
+        private final boolean reset;
+
+        private LogChunk(String text, long endOffset, boolean reset) {
+            this.text = text;
+            this.endOffset = endOffset;
+            this.reset = reset;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        // True when the text replaces what was shown instead of continuing it
+        public boolean isReset() {
+            return reset;
+        }
+    }
+
+    private static class LogEntry {
+        private final long timestamp;
+        private final LogLevel level;
+        private final String message;
+
+        private LogEntry(long timestamp, LogLevel level, String message) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.message = message;
+        }
+
+        private void appendTo(StringBuilder builder) {
+            builder.append('[');
+            DATE_FORMATTER.formatTo(Instant.ofEpochMilli(timestamp), builder);
+            builder.append("] [").append(level).append("] ").append(message).append('\n');
         }
-        return lines.stream().collect(Collectors.joining("\n"));
     }
 }
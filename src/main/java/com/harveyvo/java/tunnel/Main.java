@@ -1,17 +1,19 @@
 package com.harveyvo.java.tunnel;
 
 import javafx.application.Application;
-import javafx.application.Platform;
-import javafx.concurrent.Task;
 import javafx.scene.Scene;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class Main extends Application {
     private SessionManager sessionManager;
     private SessionTable sessionTable;
+    private SessionLauncher sessionLauncher;
+    private UiPulse uiPulse;
     private ProfileManager profileManager;
     private final LogDialog logDialog = new LogDialog();
     private final LogManager logManager = LogManager.getInstance();
@@ -23,10 +25,11 @@ public class Main extends Application {
     public void start(Stage primaryStage) {
         primaryStage.setTitle("SSH Tunnel Manager");
 
-        profileManager = new ProfileManager();
+        profileManager = ProfileManager.getInstance();
         sessionManager = new SessionManager();
 
-        sessionTable = new SessionTable(sessionManager);
+        sessionLauncher = new SessionLauncher(sessionManager);
+        sessionTable = new SessionTable(sessionManager, sessionLauncher);
         mainUI = new MainUI(profileManager.loadProfiles(), this::loadProfile, this::addNewSession, new LogDialog());
 
         // Load sessions into the session table
@@ -34,8 +37,15 @@ public class Main extends Application {
             sessionTable.addSession(session);
         }
 
+        // One scheduled pulse refreshes clocks and Sent/Received for every session
+        uiPulse = new UiPulse(sessionManager.getSessions());
+        uiPulse.start();
+
+        // Bring back the tunnels that were running when the app was closed, if enabled
+        sessionLauncher.restore();
+
         VBox vbox = new VBox(20, mainUI.getGridPane(), sessionTable.getSessionTable());
-        Scene scene = new Scene(vbox, 840, 600);
+        Scene scene = new Scene(vbox, 840, 760);
         primaryStage.setScene(scene);
         primaryStage.show();
     }
@@ -69,62 +79,57 @@ public class Main extends Application {
             return;
         }
 
+        // A load-balanced tunnel uses the selected profile plus the listed ones, same syntax as jump hosts
+        List<SSHProfile> backends = new ArrayList<>();
+        backends.add(selectedProfile);
+        for (String name : JumpHosts.parse(mainUI.getBalanceProfiles())) {
+            SSHProfile backend = profileManager.getProfileByName(name);
+            if (backend == null) {
+                mainUI.showAlert("Unknown Profile", "Load balancing profile not found: " + name);
+                return;
+            }
+            if (backends.stream().noneMatch(p -> p.getProfileName().equals(backend.getProfileName()))) {
+                backends.add(backend);
+            }
+        }
+        boolean balanced = backends.size() > 1;
+
         int sessionCount = sessionManager.getSessions().size() + 1;
+        SSHTunnelManager.TunnelMode tunnelMode = mainUI.getTunnelMode();
+        boolean dynamic = tunnelMode == SSHTunnelManager.TunnelMode.DYNAMIC;
 
         SessionStatus session = new SessionStatus(
                 String.valueOf(sessionCount),
                 connectionName,
                 selectedProfile.getProfileName(),
-                selectedProfile.getSshHost(),
+                balanced ? backends.stream().map(SSHProfile::getSshHost).collect(Collectors.joining(", ")) : selectedProfile.getSshHost(),
                 mainUI.getLocalHost(),
                 mainUI.getLocalPort(),
-                mainUI.getRemoteHost(),
-                mainUI.getRemotePort(),
-                mainUI.isLocalForwardingSelected(),
-                "Connecting..."
+                dynamic ? "*" : mainUI.getRemoteHost(),  // SOCKS clients pick their own destination
+                dynamic ? "*" : mainUI.getRemotePort(),
+                tunnelMode,
+                "Queued"
         );
-        // Create SSHTunnelManager with log consumer
-        SSHTunnelManager sshTunnelManager = new SSHTunnelManager(session, message -> {
-            logManager.log(message, LogManager.LogLevel.INFO);
-        });
-        session.setSshTunnelManager(sshTunnelManager);
+        session.setEngine(mainUI.getForwardingEngine());
+        if (mainUI.isLazy()) {
+            session.setLazyIdleSeconds(mainUI.getIdleTimeoutSeconds());
+        }
+        session.setUploadLimit(mainUI.getUploadLimit());
+        session.setDownloadLimit(mainUI.getDownloadLimit());
+        session.setWeight(mainUI.getWeight());
+        session.setTuning(mainUI.getTuning());
+        session.setStripes(mainUI.getStripes());
+        session.setStripePolicy(mainUI.getStripePolicy());
+        if (balanced) {
+            session.setBalanceProfiles(mainUI.getBalanceProfiles());
+            session.setBalancePolicy(mainUI.getBalancePolicy());
+        }
 
+        sessionManager.addSession(session);
         sessionTable.addSession(session);
 
-        boolean isLocalForwarding = mainUI.isLocalForwardingSelected();
-
-        Task<Void> sessionTask = new Task<>() {
-            @Override
-            protected Void call() {
-                try {
-                    sshTunnelManager.connect(selectedProfile);
-
-                    if (isLocalForwarding) {
-                        sshTunnelManager.setUpTunnel(mainUI.getLocalHost(), Integer.parseInt(mainUI.getLocalPort()),
-                                mainUI.getRemoteHost(), Integer.parseInt(mainUI.getRemotePort()));
-                    } else {
-                        sshTunnelManager.setUpRemoteTunnel(mainUI.getRemoteHost(), Integer.parseInt(mainUI.getRemotePort()),
-                                mainUI.getLocalHost(), Integer.parseInt(mainUI.getLocalPort()));
-                    }
-
-                    Platform.runLater(() -> {
-                        session.setStatus("Connected");
-                        session.startTimer(() -> {
-                            // Update data usage periodically
-                            long sent = sshTunnelManager.getBytesSent();
-                            long received = sshTunnelManager.getBytesReceived();
-                            session.updateDataUsage(sent, received);
-                        });
-                        sessionManager.saveSessions();
-                    });
-                } catch (Exception e) {
-                    Platform.runLater(() -> session.setStatus("Failed: " + e.getMessage()));
-                }
-                return null;
-            }
-        };
-
-        new Thread(sessionTask).start();
+        // Started from its own settings on the launcher pool, like Start All and the startup restore
+        sessionLauncher.start(List.of(session));
     }
 
     public static void main(String[] args) {
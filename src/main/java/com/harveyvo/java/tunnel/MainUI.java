@@ -3,6 +3,7 @@ package com.harveyvo.java.tunnel;
 import javafx.geometry.Insets;
 import javafx.scene.control.*;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 
 import java.util.List;
@@ -15,13 +16,25 @@ import javafx.util.StringConverter;
 
 public class MainUI {
 
+    private static final int MAX_STRIPES = 16;
+
     private Label sshHostLabel, sshPortLabel, usernameLabel;
     private TextField connectionNameField;
     private ComboBox<SSHProfile> profileComboBox;
     private ObservableList<SSHProfile> profiles;
     private SSHProfile selectedProfile;
     private TextField localHostField, localPortField, remoteHostField, remotePortField;
-    private RadioButton localForwardingButton, remoteForwardingButton;
+    private RadioButton localForwardingButton, remoteForwardingButton, dynamicForwardingButton;
+    private ComboBox<SSHTunnelManager.ForwardingEngine> engineComboBox;
+    private CheckBox lazyCheckBox;
+    private TextField idleTimeoutField;
+    private TextField stripesField;
+    private ComboBox<SessionStripes.Policy> stripePolicyComboBox;
+    private TextField balanceProfilesField;
+    private ComboBox<LoadBalancer.Policy> balancePolicyComboBox;
+    private TextField uploadLimitField, downloadLimitField, weightField;
+    private CheckBox noDelayCheckBox, keepAliveCheckBox, adaptiveWindowCheckBox;
+    private TextField receiveBufferField, sendBufferField, windowSizeField, packetSizeField;
     private Label flowDescriptionLabel, listeningSideLabel, localPortGuideline, remotePortGuideline;
     private final GridPane grid;
     private final Consumer<String> loadProfileCallback;
@@ -58,11 +71,68 @@ public class MainUI {
 
         localForwardingButton = new RadioButton("Local Forwarding (-L)");
         remoteForwardingButton = new RadioButton("Reverse Tunneling (-R)");
+        dynamicForwardingButton = new RadioButton("Dynamic SOCKS (-D)");
         ToggleGroup tunnelModeGroup = new ToggleGroup();
         localForwardingButton.setToggleGroup(tunnelModeGroup);
         remoteForwardingButton.setToggleGroup(tunnelModeGroup);
+        dynamicForwardingButton.setToggleGroup(tunnelModeGroup);
         localForwardingButton.setSelected(true);
 
+        // NIO engine relays -L clients on shared event loops instead of a thread per connection
+        engineComboBox = new ComboBox<>();
+        engineComboBox.getItems().addAll(SSHTunnelManager.ForwardingEngine.values());
+        engineComboBox.setValue(SSHTunnelManager.ForwardingEngine.JSCH);
+
+        // Lazy tunnels bind the port right away but only hold an SSH session while clients use it
+        lazyCheckBox = new CheckBox("Connect on first client");
+        idleTimeoutField = new TextField("300");
+        idleTimeoutField.setPrefColumnCount(5);
+        idleTimeoutField.setDisable(true);
+
+        // Striping spreads a NIO tunnel's clients over several SSH sessions to the same profile
+        stripesField = new TextField("1");
+        stripesField.setPrefColumnCount(3);
+        stripePolicyComboBox = new ComboBox<>();
+        stripePolicyComboBox.getItems().addAll(SessionStripes.Policy.values());
+        stripePolicyComboBox.setValue(SessionStripes.Policy.LEAST_LOADED);
+
+        // Load balancing spreads them over the selected profile and further profiles reaching the same target
+        balanceProfilesField = new TextField();
+        balanceProfilesField.setPromptText("bastion2, bastion3");
+        balancePolicyComboBox = new ComboBox<>();
+        balancePolicyComboBox.getItems().addAll(LoadBalancer.Policy.values());
+        balancePolicyComboBox.setValue(LoadBalancer.Policy.LEAST_CONNECTIONS);
+        setMultiSessionDisabled(true);
+
+        // Per-tunnel token buckets; the weight splits a profile-limited session between its tunnels.
+        // Downloads can only be paced by the NIO engine, JSch writes them on the shared session thread.
+        uploadLimitField = new TextField("0");
+        uploadLimitField.setPrefColumnCount(6);
+        downloadLimitField = new TextField("0");
+        downloadLimitField.setPrefColumnCount(6);
+        downloadLimitField.setDisable(true);
+        weightField = new TextField("1");
+        weightField.setPrefColumnCount(3);
+
+        // Socket options apply to both engines, except TCP_NODELAY: JSch turns it on for every socket it
+        // relays after our factories ran. The channel window only applies to channels the NIO engine opens.
+        TunnelTuning defaults = new TunnelTuning();
+        noDelayCheckBox = new CheckBox("TCP_NODELAY");
+        noDelayCheckBox.setSelected(true);
+        noDelayCheckBox.setDisable(true);
+        keepAliveCheckBox = new CheckBox("Keep-alive");
+        keepAliveCheckBox.setSelected(defaults.isKeepAlive());
+        receiveBufferField = new TextField("0");
+        receiveBufferField.setPrefColumnCount(5);
+        sendBufferField = new TextField("0");
+        sendBufferField.setPrefColumnCount(5);
+        windowSizeField = new TextField("0");
+        windowSizeField.setPrefColumnCount(5);
+        packetSizeField = new TextField("0");
+        packetSizeField.setPrefColumnCount(4);
+        adaptiveWindowCheckBox = new CheckBox("Adaptive (grow with bandwidth x RTT)");
+        setChannelFieldsDisabled(true);
+
         flowDescriptionLabel = new Label();
         listeningSideLabel = new Label();
         updateFlowDescription();
@@ -89,7 +159,16 @@ public class MainUI {
             }
         });
 
-        profileComboBox.setPrefWidth(150);
+        // Reachability from the last probe next to each name, e.g. "prod-db  ✓ 85 ms"; profiles never
+        // probed, or probed longer than the TTL ago, show the name only
+        profileComboBox.setCellFactory(list -> new ProfileCell());
+        profileComboBox.setButtonCell(new ProfileCell());
+        ProfileProbe.getInstance().addChangeListener(() -> {
+            profileComboBox.setCellFactory(list -> new ProfileCell());
+            profileComboBox.setButtonCell(new ProfileCell());
+        });
+
+        profileComboBox.setPrefWidth(220);
         profileComboBox.setOnAction(event -> {
             selectedProfile = profileComboBox.getValue();
             if (selectedProfile != null) {
@@ -102,8 +181,8 @@ public class MainUI {
         refreshProfilesCallback = () -> {
             String selectedProfileName = profileComboBox.getValue() != null ? profileComboBox.getValue().getProfileName() : null;
 
-            // Reload profiles from the ProfileManager
-            List<SSHProfile> updatedProfiles = new ProfileManager().loadProfiles();
+            // Reload profiles from the shared in-memory store
+            List<SSHProfile> updatedProfiles = ProfileManager.getInstance().loadProfiles();
 
             this.profiles.setAll(updatedProfiles);
 
@@ -124,6 +203,8 @@ public class MainUI {
                 }
             }
         };
+        // Edits made to the profile file outside the application refresh the list too
+        ProfileManager.getInstance().addChangeListener(refreshProfilesCallback);
 
 
         Button manageProfilesButton = new Button("Manage Profiles");
@@ -147,7 +228,8 @@ public class MainUI {
 
     public void updateProfileInfo(SSHProfile profile) {
         if (profile != null) {
-            sshHostLabel.setText(profile.getSshHost());
+            List<String> hops = JumpHosts.parse(profile.getJumpHosts());
+            sshHostLabel.setText(hops.isEmpty() ? profile.getSshHost() : profile.getSshHost() + " (via " + String.join(" > ", hops) + ")");
             sshPortLabel.setText(String.valueOf(profile.getSshPort()));
             usernameLabel.setText(profile.getUsername());
         } else {
@@ -176,9 +258,79 @@ public class MainUI {
         return remotePortField.getText();
     }
 
-    public boolean isLocalForwardingSelected() {
-        return localForwardingButton.isSelected();
+    public SSHTunnelManager.TunnelMode getTunnelMode() {
+        if (dynamicForwardingButton.isSelected()) {
+            return SSHTunnelManager.TunnelMode.DYNAMIC;
+        }
+        return remoteForwardingButton.isSelected() ? SSHTunnelManager.TunnelMode.REMOTE : SSHTunnelManager.TunnelMode.LOCAL;
+    }
+    public SSHTunnelManager.ForwardingEngine getForwardingEngine() {
+        return engineComboBox.getValue();
     }
+
+    public boolean isLazy() {
+        return lazyCheckBox.isSelected();
+    }
+
+    // Parallel SSH sessions; only NIO tunnels that stay connected can be striped
+    public int getStripes() {
+        return stripesField.isDisabled() ? 1 : Integer.parseInt(stripesField.getText().trim());
+    }
+
+    public SessionStripes.Policy getStripePolicy() {
+        return stripePolicyComboBox.getValue();
+    }
+
+    // Profiles besides the selected one that a load-balanced tunnel uses, comma-separated; empty for none
+    public String getBalanceProfiles() {
+        return balanceProfilesField.isDisabled() ? "" : balanceProfilesField.getText().trim();
+    }
+
+    public LoadBalancer.Policy getBalancePolicy() {
+        return balancePolicyComboBox.getValue();
+    }
+
+    // Tunnel limits in KB/s, 0 for unlimited
+    public long getUploadLimit() {
+        return Long.parseLong(uploadLimitField.getText().trim());
+    }
+
+    public long getDownloadLimit() {
+        return downloadLimitField.isDisabled() ? 0 : Long.parseLong(downloadLimitField.getText().trim());
+    }
+
+    public int getWeight() {
+        return Integer.parseInt(weightField.getText().trim());
+    }
+
+    // Sizes are entered in KB, 0 keeping the OS or JSch default
+    public TunnelTuning getTuning() {
+        TunnelTuning tuning = new TunnelTuning();
+        tuning.setTcpNoDelay(noDelayCheckBox.isSelected());
+        tuning.setKeepAlive(keepAliveCheckBox.isSelected());
+        tuning.setReceiveBufferSize(parseKilobytes(receiveBufferField));
+        tuning.setSendBufferSize(parseKilobytes(sendBufferField));
+        if (getForwardingEngine() == SSHTunnelManager.ForwardingEngine.NIO) {
+            tuning.setWindowSize(parseKilobytes(windowSizeField));
+            tuning.setPacketSize(parseKilobytes(packetSizeField));
+            tuning.setAdaptiveWindow(adaptiveWindowCheckBox.isSelected());
+        }
+        return tuning;
+    }
+
+    private static int parseKilobytes(TextField field) {
+        int kilobytes = Integer.parseInt(field.getText().trim());
+        if (kilobytes < 0 || kilobytes > TunnelTuning.MAX_WINDOW_SIZE / 1024) {
+            throw new NumberFormatException();
+        }
+        return kilobytes * 1024;
+    }
+
+    // Seconds a lazy tunnel keeps its session without clients
+    public long getIdleTimeoutSeconds() {
+        return Long.parseLong(idleTimeoutField.getText().trim());
+    }
+
     public String getConnectionName() {
         return connectionNameField.getText();
     }
@@ -192,11 +344,54 @@ public class MainUI {
             return false;
         }
 
-        if (!validatePort(remotePortField.getText())) {
+        // A SOCKS proxy has no fixed remote end
+        if (!dynamicForwardingButton.isSelected() && !validatePort(remotePortField.getText())) {
             showAlert("Invalid Remote Port", "Please enter a valid remote port number (1-65535).");
             return false;
         }
 
+        try {
+            if (getUploadLimit() < 0 || getDownloadLimit() < 0 || getWeight() < 1) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            showAlert("Invalid Bandwidth Settings", "Limits must be whole KB/s (0 for unlimited) and the weight at least 1.");
+            return false;
+        }
+
+        try {
+            if (getStripes() < 1 || getStripes() > MAX_STRIPES) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            showAlert("Invalid Parallel Sessions", "Please enter between 1 and " + MAX_STRIPES + " SSH sessions.");
+            return false;
+        }
+
+        if (getStripes() > 1 && !getBalanceProfiles().isEmpty()) {
+            showAlert("Invalid Parallel Sessions", "A load-balanced tunnel opens one session per profile; set the parallel sessions to 1.");
+            return false;
+        }
+
+        try {
+            getTuning();
+        } catch (NumberFormatException e) {
+            showAlert("Invalid Tuning Settings", "Buffer, window and packet sizes must be whole KB between 0 (default) and "
+                    + TunnelTuning.MAX_WINDOW_SIZE / 1024 + ".");
+            return false;
+        }
+
+        if (lazyCheckBox.isSelected()) {
+            try {
+                if (getIdleTimeoutSeconds() < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                showAlert("Invalid Idle Timeout", "Please enter the idle timeout as a whole number of seconds (at least 1).");
+                return false;
+            }
+        }
+
         return true;
     }
 
@@ -215,8 +410,70 @@ public class MainUI {
         remoteHostField.textProperty().addListener((observable, oldValue, newValue) -> updateFlowDescription());
         remotePortField.textProperty().addListener((observable, oldValue, newValue) -> updateFlowDescription());
 
-        localForwardingButton.setOnAction(event -> updateFlowDescription());
-        remoteForwardingButton.setOnAction(event -> updateFlowDescription());
+        localForwardingButton.setOnAction(event -> {
+            engineComboBox.setDisable(lazyCheckBox.isSelected());
+            lazyCheckBox.setDisable(false);
+            setRemoteFieldsDisabled(false);
+            updateFlowDescription();
+        });
+        remoteForwardingButton.setOnAction(event -> {
+            // Remote forwards are always relayed by JSch, and the server listens, so they cannot be lazy
+            engineComboBox.setValue(SSHTunnelManager.ForwardingEngine.JSCH);
+            engineComboBox.setDisable(true);
+            lazyCheckBox.setSelected(false);
+            lazyCheckBox.setDisable(true);
+            idleTimeoutField.setDisable(true);
+            setRemoteFieldsDisabled(false);
+            updateFlowDescription();
+        });
+        dynamicForwardingButton.setOnAction(event -> {
+            // The SOCKS handshake is only implemented on the NIO engine
+            engineComboBox.setValue(SSHTunnelManager.ForwardingEngine.NIO);
+            engineComboBox.setDisable(true);
+            lazyCheckBox.setDisable(false);
+            setRemoteFieldsDisabled(true);
+            updateFlowDescription();
+        });
+        // JSch opens the channels of its own forwards internally, so their window cannot be changed
+        engineComboBox.valueProperty().addListener((observable, oldValue, newValue) -> {
+            setChannelFieldsDisabled(newValue != SSHTunnelManager.ForwardingEngine.NIO);
+            downloadLimitField.setDisable(newValue != SSHTunnelManager.ForwardingEngine.NIO);
+            if (newValue != SSHTunnelManager.ForwardingEngine.NIO) {
+                noDelayCheckBox.setSelected(true);
+            }
+            noDelayCheckBox.setDisable(newValue != SSHTunnelManager.ForwardingEngine.NIO);
+            setMultiSessionDisabled(newValue != SSHTunnelManager.ForwardingEngine.NIO || lazyCheckBox.isSelected());
+        });
+        lazyCheckBox.setOnAction(event -> {
+            // The tool binds the port itself, which only the NIO engine does
+            boolean lazy = lazyCheckBox.isSelected();
+            if (lazy) {
+                engineComboBox.setValue(SSHTunnelManager.ForwardingEngine.NIO);
+            }
+            engineComboBox.setDisable(lazy || !localForwardingButton.isSelected());
+            idleTimeoutField.setDisable(!lazy);
+            // A lazy tunnel holds one session only while it has clients
+            setMultiSessionDisabled(lazy || engineComboBox.getValue() != SSHTunnelManager.ForwardingEngine.NIO);
+        });
+    }
+
+    // Striping and load balancing need the NIO engine and a tunnel that stays connected
+    private void setMultiSessionDisabled(boolean disabled) {
+        stripesField.setDisable(disabled);
+        stripePolicyComboBox.setDisable(disabled);
+        balanceProfilesField.setDisable(disabled);
+        balancePolicyComboBox.setDisable(disabled);
+    }
+
+    private void setChannelFieldsDisabled(boolean disabled) {
+        windowSizeField.setDisable(disabled);
+        packetSizeField.setDisable(disabled);
+        adaptiveWindowCheckBox.setDisable(disabled);
+    }
+
+    private void setRemoteFieldsDisabled(boolean disabled) {
+        remoteHostField.setDisable(disabled);
+        remotePortField.setDisable(disabled);
     }
 
     private void setupGridLayout(Button addSessionButton, Button manageProfilesButton, Button helpButton) {
@@ -254,24 +511,71 @@ public class MainUI {
         grid.add(remotePortGuideline, 2, 8, 2, 1);
 
         grid.add(new Label("Tunneling Mode:"), 0, 9);
-        grid.add(new VBox(5, localForwardingButton, remoteForwardingButton), 1, 9);
+        grid.add(new VBox(5, localForwardingButton, remoteForwardingButton, dynamicForwardingButton), 1, 9);
+
+        grid.add(new Label("Forwarding Engine:"), 0, 10);
+        grid.add(engineComboBox, 1, 10);
+        grid.add(new HBox(5, lazyCheckBox, new Label("Idle close (s):"), idleTimeoutField), 2, 10, 2, 1);
+
+        grid.add(new Label("Parallel Sessions:"), 0, 11);
+        grid.add(new HBox(5, stripesField, new Label("Distribution"), stripePolicyComboBox), 1, 11, 3, 1);
+
+        grid.add(new Label("Load Balancing:"), 0, 12);
+        grid.add(new HBox(5, new Label("Also via profiles"), balanceProfilesField, new Label("Policy"), balancePolicyComboBox), 1, 12, 3, 1);
+
+        grid.add(new Label("Bandwidth (KB/s):"), 0, 13);
+        grid.add(new HBox(5, new Label("Up"), uploadLimitField, new Label("Down"), downloadLimitField,
+                new Label("Weight"), weightField, new Label("(0 = unlimited)")), 1, 13, 3, 1);
 
-        grid.add(new Label("Flow Description:"), 0, 10);
-        grid.add(flowDescriptionLabel, 1, 10, 4, 1);
+        grid.add(new Label("Socket Options:"), 0, 14);
+        grid.add(new HBox(5, noDelayCheckBox, keepAliveCheckBox, new Label("Rcv buf (KB)"), receiveBufferField,
+                new Label("Snd buf (KB)"), sendBufferField), 1, 14, 3, 1);
 
-        grid.add(new Label(""), 0, 11); // New label for listening side
-        grid.add(listeningSideLabel, 1, 11, 4, 1);
+        grid.add(new Label("SSH Channel:"), 0, 15);
+        grid.add(new HBox(5, new Label("Window (KB)"), windowSizeField, new Label("Packet (KB)"), packetSizeField,
+                adaptiveWindowCheckBox), 1, 15, 3, 1);
 
-        grid.add(addSessionButton, 0, 12);
+        grid.add(new Label("Flow Description:"), 0, 16);
+        grid.add(flowDescriptionLabel, 1, 16, 4, 1);
+
+        grid.add(new Label(""), 0, 17); // New label for listening side
+        grid.add(listeningSideLabel, 1, 17, 4, 1);
+
+        grid.add(addSessionButton, 0, 18);
 
         Button viewLogsButton = new Button("View Logs");
         viewLogsButton.setOnAction(event -> logDialog.showLogDialog(null));
-        grid.add(viewLogsButton, 1, 12);
+        grid.add(viewLogsButton, 1, 18);
+
+        // Per-phase connect time histograms across all sessions
+        Button connectStatsButton = new Button("Connect Stats");
+        connectStatsButton.setOnAction(event -> new ConnectStatsDialog().showConnectStatsDialog(null));
+        grid.add(connectStatsButton, 2, 18);
 
         // Add the Help button to the grid
         grid.add(helpButton, 2, 9);  // Help button added in row 9
     }
 
+    private static class ProfileCell extends ListCell<SSHProfile> {
+        @Override
+        protected void updateItem(SSHProfile profile, boolean empty) {
+            super.updateItem(profile, empty);
+            if (empty || profile == null) {
+                setText(null);
+                setTooltip(null);
+                return;
+            }
+            ProfileProbe.Result result = ProfileProbe.getInstance().get(profile);
+            if (result == null) {
+                setText(profile.getProfileName());
+                setTooltip(null);
+            } else {
+                setText(profile.getProfileName() + "  " + result.summary());
+                setTooltip(new Tooltip(result.getMessage()));
+            }
+        }
+    }
+
     private boolean validatePort(String portStr) {
         try {
             int port = Integer.parseInt(portStr);
@@ -295,6 +599,10 @@ public class MainUI {
             flowDescriptionLabel.setText("Traffic flows from " + remoteHost + ":" + remotePort + " -> " +
                     localHost + ":" + localPort + " through the SSH server.");
             listeningSideLabel.setText("Listening on REMOTE (" + remoteHost + ":" + remotePort + ")");
+        } else if (dynamicForwardingButton.isSelected()) {
+            flowDescriptionLabel.setText("SOCKS clients connect to localhost:" + localPort +
+                    " and reach any destination through the SSH server.");
+            listeningSideLabel.setText("Listening on LOCAL (" + localHost + ":" + localPort + ")");
         }
     }
 }
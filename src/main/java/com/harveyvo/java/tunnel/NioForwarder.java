@@ -0,0 +1,692 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Local (-L) and dynamic SOCKS (-D) forwarding engine that accepts and relays client sockets on a few
+// Selector loops. JSch's own -L forwarding starts a blocking thread per accepted client; here an idle
+// client holds no thread at all, only a channel open or an upstream write in progress does.
+public class NioForwarder {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    // Downstream bytes queued per client before the channel's window is held shut, and below which it
+    // is opened again. The session thread delivers every channel of the session and never waits here.
+    private static final int HIGH_WATER_MARK = 256 * 1024;
+    private static final int LOW_WATER_MARK = 64 * 1024;
+    // A relay that still queues this much beyond the high water mark and its window is closed; only
+    // reached when the window cannot be held (reflection unavailable) or the server ignores it
+    private static final int OVERRUN_SLACK = 4 * 1024 * 1024;
+    private static final int CHANNEL_CONNECT_TIMEOUT = 10000;
+    private static final int HANDSHAKE_REPLY_SIZE = 32;
+
+    private final LogManager logManager = LogManager.getInstance();
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    // Channel opens and upstream writes can block inside JSch (open confirmation, remote window), so
+    // they run here instead of on the event loops. Unbounded on purpose: a peer that stops reading or a
+    // slow open must not hold up other clients. A relay never has more than one of these tasks at a
+    // time (reading stays off until its write is done), so each relay's writes stay in order.
+    private final ExecutorService channelExecutor;
+
+    // Supplies unconnected direct-tcpip channels, so callers decide which SSH session carries a client
+    public interface ChannelOpener {
+        ChannelDirectTCPIP openChannel(String host, int port) throws JSchException;
+
+        // A channel from openChannel was handed to the relay of a client with these counters
+        default void channelOpened(ChannelDirectTCPIP channel, TrafficStats.ConnectionTraffic traffic) {
+        }
+
+        // The relay of that channel has ended, whether or not the channel ever connected
+        default void channelClosed(ChannelDirectTCPIP channel) {
+        }
+
+        // Channels a client may try before giving up, for openers that can fail over to another session
+        default int maxAttempts() {
+            return 1;
+        }
+
+        // Connecting a channel failed and the client moves on to another one; the channel is not used again
+        default void channelFailed(ChannelDirectTCPIP channel, Exception cause) {
+            channelClosed(channel);
+        }
+    }
+
+    private NioForwarder() {
+        int loopCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("nio-forwarder-" + i);
+        }
+        channelExecutor = TaskExecutors.getInstance().blocking();
+    }
+
+    private static class NioForwarderHolder {
+        private static final NioForwarder INSTANCE = new NioForwarder();
+    }
+
+    public static NioForwarder getInstance() {
+        return NioForwarderHolder.INSTANCE;
+    }
+
+    // Opener that creates every channel on the same SSH session
+    public static ChannelOpener sessionOpener(Session session) {
+        return (host, port) -> {
+            ChannelDirectTCPIP channel = (ChannelDirectTCPIP) session.openChannel("direct-tcpip");
+            channel.setHost(host);
+            channel.setPort(port);
+            return channel;
+        };
+    }
+
+    // Bind bindAddress:localPort and relay every accepted client to remoteHost:remotePort
+    public Forward openLocalForward(String bindAddress, int localPort, String remoteHost, int remotePort,
+                                    ChannelOpener opener, TrafficStats stats, TunnelTuning tuning) throws IOException {
+        return listen(bindAddress, localPort, remoteHost, remotePort, opener, stats, tuning);
+    }
+
+    // Bind bindAddress:localPort as a SOCKS4/4a/5 proxy; every CONNECT request gets its own channel
+    public Forward openDynamicForward(String bindAddress, int localPort, ChannelOpener opener, TrafficStats stats,
+                                      TunnelTuning tuning) throws IOException {
+        return listen(bindAddress, localPort, null, 0, opener, stats, tuning);
+    }
+
+    private Forward listen(String bindAddress, int localPort, String remoteHost, int remotePort,
+                           ChannelOpener opener, TrafficStats stats, TunnelTuning tuning) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            tuning.applyTo(serverChannel);  // Accepted clients inherit the receive buffer set before bind
+            serverChannel.bind(new InetSocketAddress(bindAddress, localPort));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        Forward forward = new Forward(serverChannel, remoteHost, remotePort, opener, stats, tuning);
+        EventLoop loop = nextLoop();
+        loop.execute(() -> {
+            try {
+                serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT, forward);
+            } catch (IOException e) {
+                logManager.log("Failed to register listener on port " + localPort + ": " + e.getMessage(), LogManager.LogLevel.ERROR);
+                forward.close();
+            }
+        });
+        return forward;
+    }
+
+    private EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    // A listening port and the clients accepted on it
+    public class Forward {
+        private final ServerSocketChannel serverChannel;
+        // Fixed target of a -L forward; null for a SOCKS forward, where each client names its own
+        private final String remoteHost;
+        private final int remotePort;
+        private final ChannelOpener opener;
+        private final TrafficStats stats;
+        private final TunnelTuning tuning;
+        private final Set<Relay> relays = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed;
+
+        private Forward(ServerSocketChannel serverChannel, String remoteHost, int remotePort, ChannelOpener opener,
+                        TrafficStats stats, TunnelTuning tuning) {
+            this.serverChannel = serverChannel;
+            this.remoteHost = remoteHost;
+            this.remotePort = remotePort;
+            this.opener = opener;
+            this.stats = stats;
+            this.tuning = tuning;
+        }
+
+        private void accept() throws IOException {
+            SocketChannel client;
+            while ((client = serverChannel.accept()) != null) {
+                String peer;
+                try {
+                    client.configureBlocking(false);
+                    peer = client.getRemoteAddress().toString();
+                } catch (IOException e) {
+                    // The client reset before we got to it; drop it and keep accepting
+                    logManager.log("Dropped client on accept: " + e.getMessage(), LogManager.LogLevel.DEBUG);
+                    closeQuietly(client);
+                    continue;
+                }
+                try {
+                    tuning.applyTo(client);
+                } catch (IOException e) {
+                    logManager.log("Failed to apply socket options: " + e.getMessage(), LogManager.LogLevel.WARNING);
+                }
+                TrafficStats.ConnectionTraffic traffic = stats.openConnection(peer);
+                Relay relay = new Relay(this, client, nextLoop(), traffic);
+                relays.add(relay);
+                if (isDynamic()) {
+                    relay.loop.execute(relay::startHandshake);
+                } else {
+                    channelExecutor.execute(relay::openChannel);
+                }
+            }
+        }
+
+        private void closeQuietly(SocketChannel client) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logManager.log("Failed to close client socket: " + e.getMessage(), LogManager.LogLevel.DEBUG);
+            }
+        }
+
+        public boolean isDynamic() {
+            return remoteHost == null;
+        }
+
+        public int getActiveConnections() {
+            return relays.size();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                logManager.log("Failed to close listener: " + e.getMessage(), LogManager.LogLevel.DEBUG);
+            }
+            for (Relay relay : relays) {
+                relay.close();
+            }
+        }
+    }
+
+    // One accepted client and its direct-tcpip channel
+    private class Relay {
+        private final Forward forward;
+        private final SocketChannel client;
+        private final EventLoop loop;
+        private final TrafficStats.ConnectionTraffic traffic;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // Downstream data from the SSH server waiting to be written to the client, guarded by this
+        private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+        private int pendingBytes;
+        private boolean windowHeld;
+        private boolean remoteClosed;
+        private volatile boolean closed;
+        // Set on the event loop while the shaper holds back writes to the client
+        private boolean writePaused;
+        private String targetHost;
+        private int targetPort;
+
+        // SOCKS negotiation state, only touched on the event loop. Downstream data is held back until
+        // the handshake is over so the CONNECT reply always reaches the client first.
+        private SocksHandshake handshake;
+        private final ByteBuffer handshakeOut = ByteBuffer.allocate(HANDSHAKE_REPLY_SIZE);
+        private boolean closeAfterReply;
+
+        private ChannelDirectTCPIP channel;
+        // Set once the channel is open, read by the session thread delivering its data
+        private volatile TunnelTuning.ChannelWindow window;
+        private OutputStream upstream;
+        private SelectionKey key;
+
+        private Relay(Forward forward, SocketChannel client, EventLoop loop, TrafficStats.ConnectionTraffic traffic) {
+            this.forward = forward;
+            this.client = client;
+            this.loop = loop;
+            this.traffic = traffic;
+            this.targetHost = forward.remoteHost;
+            this.targetPort = forward.remotePort;
+        }
+
+        // Runs on the channel executor
+        private void openChannel() {
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    ChannelDirectTCPIP opened = forward.opener.openChannel(targetHost, targetPort);
+                    InetSocketAddress peer = (InetSocketAddress) client.getRemoteAddress();
+                    opened.setOrgIPAddress(peer.getAddress().getHostAddress());
+                    opened.setOrgPort(peer.getPort());
+                    // Must be set before connect, data can arrive as soon as the open is confirmed
+                    opened.setOutputStream(new DownstreamSink());
+                    forward.tuning.applyTo(opened);
+                    synchronized (this) {
+                        if (!closed) {
+                            channel = opened;
+                        }
+                    }
+                    if (channel != opened) {
+                        forward.opener.channelClosed(opened);  // The client went away while the channel was created
+                        return;
+                    }
+                    forward.opener.channelOpened(opened, traffic);
+                    long openStart = System.nanoTime();
+                    try {
+                        opened.connect(CHANNEL_CONNECT_TIMEOUT);
+                    } catch (JSchException e) {
+                        synchronized (this) {
+                            if (closed) {
+                                throw e;  // close() releases the channel
+                            }
+                            channel = null;
+                        }
+                        forward.opener.channelFailed(opened, e);
+                        opened.disconnect();
+                        if (attempt >= forward.opener.maxAttempts()) {
+                            throw e;
+                        }
+                        logManager.log("Channel to " + targetHost + ":" + targetPort + " failed (" + e.getMessage()
+                                + "), trying the next session", LogManager.LogLevel.WARNING);
+                        continue;
+                    }
+                    long openNanos = System.nanoTime() - openStart;
+                    forward.stats.recordChannelOpen(openNanos);
+                    ConnectHistograms.getInstance().record(ConnectTiming.Phase.CHANNEL_OPEN, openNanos);
+                    window = forward.tuning.channelWindow(opened, openNanos);
+                    upstream = opened.getOutputStream();
+                    break;
+                }
+                loop.execute(handshake != null ? this::handshakeSucceeded : this::register);
+            } catch (JSchException | IOException e) {
+                logManager.log("Failed to open channel to " + targetHost + ":" + targetPort + ": " + e.getMessage(), LogManager.LogLevel.ERROR);
+                if (handshake != null) {
+                    loop.execute(this::handshakeFailed);
+                } else {
+                    close();
+                }
+            }
+        }
+
+        // SOCKS clients are registered right away to negotiate; the channel is opened once the target is known
+        private void startHandshake() {
+            handshake = new SocksHandshake();
+            register();
+        }
+
+        private void onHandshakeReadable() throws IOException {
+            if (client.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            SocksHandshake.Step step;
+            while ((step = handshake.feed(readBuffer)) == SocksHandshake.Step.REPLY) {
+                sendHandshakeReply(handshake.getReply());
+            }
+            // Anything after the request stays at the start of the buffer and is sent once the channel is open
+            readBuffer.compact();
+            switch (step) {
+                case CONNECT:
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    targetHost = handshake.getHost();
+                    targetPort = handshake.getPort();
+                    channelExecutor.execute(this::openChannel);
+                    break;
+                case FAIL:
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    if (handshake.getReply().length == 0) {
+                        close();
+                    } else {
+                        sendHandshakeReply(handshake.getReply());
+                        closeAfterReply = true;
+                    }
+                    break;
+                default:
+                    if (!readBuffer.hasRemaining()) {
+                        close();  // A handshake never needs a full buffer
+                    }
+            }
+        }
+
+        private void handshakeSucceeded() {
+            if (closed) {
+                return;
+            }
+            sendHandshakeReply(handshake.successReply());
+            handshake = null;
+            int early = readBuffer.position();
+            if (early > 0) {
+                long pauseNanos = traffic.addSent(early);
+                channelExecutor.execute(() -> writeUpstream(early, pauseNanos));
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void handshakeFailed() {
+            if (closed) {
+                return;
+            }
+            sendHandshakeReply(handshake.failureReply());
+            closeAfterReply = true;
+        }
+
+        private void sendHandshakeReply(byte[] reply) {
+            handshakeOut.put(reply);
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        // Returns false while handshake replies are still being written or downstream data must wait
+        private boolean flushHandshake() throws IOException {
+            if (handshakeOut.position() > 0) {
+                handshakeOut.flip();
+                client.write(handshakeOut);
+                handshakeOut.compact();
+                if (handshakeOut.position() > 0) {
+                    return false;
+                }
+            }
+            if (closeAfterReply) {
+                close();
+                return false;
+            }
+            if (handshake != null) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return false;
+            }
+            return true;
+        }
+
+        private void register() {
+            if (closed) {
+                return;
+            }
+            try {
+                key = client.register(loop.selector, SelectionKey.OP_READ, this);
+                synchronized (this) {
+                    if (!pending.isEmpty() || remoteClosed) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Client -> SSH server. Reading pauses until the channel has taken the previous chunk.
+        private void onReadable() throws IOException {
+            if (handshake != null) {
+                onHandshakeReadable();
+                return;
+            }
+            int n = client.read(readBuffer);
+            if (n < 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                channelExecutor.execute(this::sendEof);
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            long pauseNanos = traffic.addSent(n);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            channelExecutor.execute(() -> writeUpstream(n, pauseNanos));
+        }
+
+        // Reading resumes once the chunk is written and the shaper's pause, counted from now, is over
+        private void writeUpstream(int length, long pauseNanos) {
+            long resumeAt = System.nanoTime() + pauseNanos;
+            try {
+                upstream.write(readBuffer.array(), 0, length);
+                upstream.flush();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            long remaining = resumeAt - System.nanoTime();
+            if (remaining > 0) {
+                SharedScheduler.getInstance().schedule(() -> loop.execute(this::resumeRead), remaining, TimeUnit.NANOSECONDS);
+            } else {
+                loop.execute(this::resumeRead);
+            }
+        }
+
+        private void resumeRead() {
+            readBuffer.clear();
+            if (!closed && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void sendEof() {
+            try {
+                upstream.close();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // SSH server -> client, called on the JSch session thread. Never waits: past the high water mark
+        // the channel's window is held, so the server stops once it has used what it was granted.
+        private void enqueue(byte[] data, int offset, int length) {
+            ByteBuffer chunk = ByteBuffer.allocate(length);
+            chunk.put(data, offset, length).flip();
+            TunnelTuning.ChannelWindow current = window;
+            boolean wasEmpty;
+            boolean hold = false;
+            boolean overrun;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                wasEmpty = pending.isEmpty();
+                pending.add(chunk);
+                pendingBytes += length;
+                if (pendingBytes >= HIGH_WATER_MARK && !windowHeld && current != null && current.canHold()) {
+                    windowHeld = true;
+                    hold = true;
+                }
+                int limit = HIGH_WATER_MARK + OVERRUN_SLACK + (current != null ? current.getWindow() : 0);
+                overrun = pendingBytes > limit;
+            }
+            if (hold) {
+                current.hold();
+            }
+            if (overrun) {
+                logManager.log("Client " + traffic.getPeer() + " is not reading, closing its connection to " + targetHost + ":"
+                        + targetPort, LogManager.LogLevel.WARNING);
+                close();
+            } else if (wasEmpty) {
+                loop.execute(this::enableWrite);
+            }
+        }
+
+        private void remoteClosed() {
+            synchronized (this) {
+                remoteClosed = true;
+            }
+            loop.execute(this::enableWrite);
+        }
+
+        private void enableWrite() {
+            if (!closed && !writePaused && key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void onWritable() throws IOException {
+            if (!flushHandshake()) {
+                return;
+            }
+            boolean finished;
+            long pauseNanos = 0;
+            synchronized (this) {
+                while (!pending.isEmpty() && pauseNanos == 0) {
+                    ByteBuffer chunk = pending.peek();
+                    int written = client.write(chunk);
+                    pendingBytes -= written;
+                    if (written > 0) {
+                        pauseNanos = traffic.addReceived(written);
+                    }
+                    if (chunk.hasRemaining()) {
+                        break;
+                    }
+                    pending.poll();
+                }
+                if (pendingBytes < LOW_WATER_MARK && windowHeld) {
+                    windowHeld = false;
+                    channelExecutor.execute(window::release);  // Sends an adjust, which can wait on a key exchange
+                }
+                if (pending.isEmpty() || pauseNanos > 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                finished = pending.isEmpty() && remoteClosed;
+            }
+            if (finished) {
+                close();
+            } else if (pauseNanos > 0) {
+                writePaused = true;
+                SharedScheduler.getInstance().schedule(() -> loop.execute(this::resumeWrite), pauseNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void resumeWrite() {
+            writePaused = false;
+            synchronized (this) {
+                if (pending.isEmpty() && !remoteClosed) {
+                    return;
+                }
+            }
+            enableWrite();
+        }
+
+        private void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pending.clear();
+            }
+            forward.relays.remove(this);
+            traffic.close();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                client.close();
+            } catch (IOException e) {
+                logManager.log("Failed to close client socket: " + e.getMessage(), LogManager.LogLevel.DEBUG);
+            }
+            // Assigned under the lock while open, so it is final by now
+            if (channel != null) {
+                forward.opener.channelClosed(channel);
+                channelExecutor.execute(channel::disconnect);
+            }
+        }
+
+        // Output stream handed to JSch; the session thread pushes channel data into it
+        private class DownstreamSink extends OutputStream {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                enqueue(b, off, len);
+                TunnelTuning.ChannelWindow current = window;
+                if (current != null) {
+                    current.onData(len);
+                }
+            }
+
+            @Override
+            public void close() {
+                remoteClosed();
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(String name) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open selector", e);
+            }
+            TaskExecutors.newPlatformThread(name, this).start();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logManager.log("Selector failure: " + e.getMessage(), LogManager.LogLevel.ERROR);
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logManager.log("Event loop task failed: " + e.getMessage(), LogManager.LogLevel.ERROR);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Object attachment = key.attachment();
+                    try {
+                        if (attachment instanceof Forward && key.isAcceptable()) {
+                            ((Forward) attachment).accept();
+                        } else if (attachment instanceof Relay) {
+                            Relay relay = (Relay) attachment;
+                            if (key.isValid() && key.isReadable()) {
+                                relay.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                relay.onWritable();
+                            }
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        if (attachment instanceof Relay) {
+                            ((Relay) attachment).close();
+                        } else {
+                            logManager.log("Accept failed: " + e.getMessage(), LogManager.LogLevel.ERROR);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -2,96 +2,219 @@ package com.harveyvo.java.tunnel;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import javafx.application.Platform;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Single in-memory profile store. The JSON file is parsed once; lookups are served from an index by
+// name, changes are written behind, and external edits of the file are picked up.
 public class ProfileManager {
 
     private static final String PROFILE_FILE_NAME = "ssh_profiles.json";  // File to store profiles
+    private static final long WRITE_DELAY_MILLIS = 500;
+    private static final long RELOAD_DELAY_MILLIS = 200;
+
     private ObjectMapper objectMapper;  // JSON serializer/deserializer
     private FileManager fileManager;  // Use FileManager for managing files
+    private final LogManager logManager = LogManager.getInstance();
+
+    // Insertion-ordered so the UI keeps the file's order; guarded by this
+    private final Map<String, SSHProfile> profilesByName = new LinkedHashMap<>();
 
-    public ProfileManager() {
+    private final WriteBehind writeBehind;
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean reloadScheduled = new AtomicBoolean(false);
+    // Modification time of the file as last written or loaded by us; other times mean an external edit
+    private volatile FileTime knownFileTime;
+
+    private ProfileManager() {
         this.fileManager = new FileManager();
         objectMapper = new ObjectMapper();
 
         // Ensure the profile file exists
         this.fileManager.createFileIfNotExists(PROFILE_FILE_NAME);
-    }
 
-    public List<SSHProfile> loadProfiles() {
         Path profileFilePath = fileManager.getFilePath(PROFILE_FILE_NAME);
-        File file = profileFilePath.toFile();
-
-        if (!file.exists() || file.length() == 0) {
-            return new ArrayList<>();  // Return an empty list if file doesn't exist or is empty
-        }
+        writeBehind = new WriteBehind(profileFilePath, this::loadProfiles, WRITE_DELAY_MILLIS, this::rememberFileTime);
 
         try {
-            return objectMapper.readValue(file, new TypeReference<List<SSHProfile>>() {});
+            rememberFileTime();
+            replaceAll(readProfileFile());
         } catch (IOException e) {
-            e.printStackTrace();
-            return new ArrayList<>();  // Return empty list if there was an error
+            e.printStackTrace();  // Start empty if the file cannot be parsed
         }
+        startWatcher();
     }
 
-    // Save the list of profiles to the JSON file
+    private static class ProfileManagerHolder {
+        private static final ProfileManager INSTANCE = new ProfileManager();
+    }
+
+    public static ProfileManager getInstance() {
+        return ProfileManagerHolder.INSTANCE;
+    }
+
+    // Snapshot of all profiles, served from memory
+    public synchronized List<SSHProfile> loadProfiles() {
+        return new ArrayList<>(profilesByName.values());
+    }
+
+    // Replace the list of profiles; persisted in the background
     public void saveProfiles(List<SSHProfile> profiles) {
-        try {
-            Path profileFilePath = fileManager.getFilePath(PROFILE_FILE_NAME); // Get the profile file path
-            objectMapper.writeValue(profileFilePath.toFile(), profiles);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        replaceAll(profiles);
+        writeBehind.markDirty();
     }
 
     // Add or update a profile
     public void saveOrUpdateProfile(SSHProfile profile) {
-        List<SSHProfile> profiles = loadProfiles();
-        boolean updated = false;
-        for (int i = 0; i < profiles.size(); i++) {
-            if (profiles.get(i).getProfileName().equals(profile.getProfileName())) {
-                profiles.set(i, profile);  // Update existing profile
-                updated = true;
-                break;
+        synchronized (this) {
+            SSHProfile previous = profilesByName.put(profile.getProfileName(), profile);
+            if (previous != null && !Objects.equals(previous.getSshKeyContent(), profile.getSshKeyContent())) {
+                IdentityCache.getInstance().evict(previous.getSshKeyContent());
             }
         }
-        if (!updated) {
-            profiles.add(profile);  // Add new profile if not found
-        }
-        saveProfiles(profiles);
+        writeBehind.markDirty();
     }
 
     // Get a profile by its name
-    public SSHProfile getProfileByName(String profileName) {
-        List<SSHProfile> profiles = loadProfiles();
-        for (SSHProfile profile : profiles) {
-            if (profile.getProfileName().equals(profileName)) {
-                return profile;  // Return the found profile
-            }
-        }
-        return null;  // Return null if profile not found
+    public synchronized SSHProfile getProfileByName(String profileName) {
+        return profilesByName.get(profileName);
     }
 
     // Delete a profile by its name
     public void deleteProfile(String profileName) {
-        List<SSHProfile> profiles = loadProfiles();
-        profiles.removeIf(p -> p.getProfileName().equals(profileName));
-        saveProfiles(profiles);
+        synchronized (this) {
+            SSHProfile removed = profilesByName.remove(profileName);
+            if (removed == null) {
+                return;
+            }
+            IdentityCache.getInstance().evict(removed.getSshKeyContent());
+        }
+        writeBehind.markDirty();
     }
 
     // Check if a profile already exists by name
-    public boolean profileExists(String profileName) {
-        List<SSHProfile> profiles = loadProfiles();
+    public synchronized boolean profileExists(String profileName) {
+        return profilesByName.containsKey(profileName);
+    }
+
+    // Called on the FX thread after the profiles were reloaded from an external edit
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    private synchronized void replaceAll(List<SSHProfile> profiles) {
+        profilesByName.clear();
         for (SSHProfile profile : profiles) {
-            if (profile.getProfileName().equals(profileName)) {
-                return true;
+            profilesByName.put(profile.getProfileName(), profile);
+        }
+    }
+
+    private List<SSHProfile> readProfileFile() throws IOException {
+        File file = fileManager.getFilePath(PROFILE_FILE_NAME).toFile();
+
+        if (!file.exists() || file.length() == 0) {
+            return new ArrayList<>();  // Return an empty list if file doesn't exist or is empty
+        }
+
+        return objectMapper.readValue(file, new TypeReference<List<SSHProfile>>() {});
+    }
+
+    private void rememberFileTime() {
+        try {
+            knownFileTime = Files.getLastModifiedTime(fileManager.getFilePath(PROFILE_FILE_NAME));
+        } catch (IOException e) {
+            knownFileTime = null;
+        }
+    }
+
+    // Watch the app directory so edits made outside the application are reloaded
+    private void startWatcher() {
+        Thread watcher = TaskExecutors.newPlatformThread("profile-watcher", () -> {
+            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                fileManager.getAppDirectoryPath().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (PROFILE_FILE_NAME.equals(String.valueOf(event.context()))) {
+                            scheduleReload();
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (IOException e) {
+                logManager.log("Profile file watcher stopped: " + e.getMessage(), LogManager.LogLevel.WARNING);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        });
+        watcher.start();
+    }
+
+    // Editors often produce several events per save, so reloads are coalesced. The scheduler only waits
+    // out the delay; the file is read and parsed on a blocking thread.
+    private void scheduleReload() {
+        if (reloadScheduled.compareAndSet(false, true)) {
+            SharedScheduler.getInstance().schedule(() -> TaskExecutors.getInstance().blocking().execute(this::reloadIfChangedExternally),
+                    RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Only the parsed result goes to the FX thread, where profiles are edited, to be swapped in
+    private void reloadIfChangedExternally() {
+        reloadScheduled.set(false);
+        FileTime fileTime;
+        try {
+            fileTime = Files.getLastModifiedTime(fileManager.getFilePath(PROFILE_FILE_NAME));
+        } catch (IOException e) {
+            return;
+        }
+        if (fileTime.equals(knownFileTime)) {
+            return;  // Our own write-behind, or a version already loaded
+        }
+        if (writeBehind.isDirty()) {
+            logManager.log("Profile file changed externally while local changes were pending; keeping local changes", LogManager.LogLevel.WARNING);
+            return;
+        }
+        List<SSHProfile> profiles;
+        try {
+            profiles = readProfileFile();
+        } catch (IOException e) {
+            // Probably caught mid-save; the editor's final write triggers another reload
+            logManager.log("Could not parse externally changed " + PROFILE_FILE_NAME + ": " + e.getMessage(), LogManager.LogLevel.WARNING);
+            return;
+        }
+        Platform.runLater(() -> publishReload(profiles, fileTime));
+    }
+
+    private void publishReload(List<SSHProfile> profiles, FileTime fileTime) {
+        if (writeBehind.isDirty()) {
+            logManager.log("Profile file changed externally while local changes were pending; keeping local changes", LogManager.LogLevel.WARNING);
+            return;
+        }
+        FileTime known = knownFileTime;
+        if (known != null && fileTime.compareTo(known) <= 0) {
+            return;  // Our own write or a later reload got in while this version was parsed
         }
-        return false;
+        knownFileTime = fileTime;
+        replaceAll(profiles);
+        logManager.log("Reloaded profiles after external change to " + PROFILE_FILE_NAME);
+        changeListeners.forEach(Runnable::run);
     }
 }
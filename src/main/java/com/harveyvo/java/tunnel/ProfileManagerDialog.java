@@ -1,11 +1,16 @@
 package com.harveyvo.java.tunnel;
 
 import com.harveyvo.java.tunnel.SSHProfile.AuthMethod;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 import javafx.application.Platform;
 import javafx.concurrent.Task;
@@ -33,7 +38,17 @@ public class ProfileManagerDialog {
     private PasswordField passwordField;
     private TextArea sshKeyTextArea;
     private PasswordField sshKeyPassphraseField;
+    private TextField keepaliveIntervalField;
+    private TextField keepaliveCountMaxField;
+    private TextField ciphersField;
+    private TextField macsField;
+    private TextField kexField;
+    private CheckBox compressionCheckBox;
+    private TextField jumpHostsField;
+    private TextField uploadLimitField;
+    private TextField downloadLimitField;
     private ComboBox<SSHProfile.AuthMethod> authMethodComboBox;
+    private TextField probeConcurrencyField;
     private Runnable onProfileChangeCallback;  // Callback for triggering ComboBox reload
     private String sshKeyContent;
     private TextArea consoleLogTextArea; //
@@ -42,7 +57,7 @@ public class ProfileManagerDialog {
 
     public ProfileManagerDialog(Runnable refreshProfilesCallback) {
         this.refreshProfilesCallback = refreshProfilesCallback;
-        this.profileManager = new ProfileManager();
+        this.profileManager = ProfileManager.getInstance();
     }
 
     public ProfileManagerDialog(ComboBox<String> profileComboBox, Runnable onProfileChangeCallback) {
@@ -56,6 +71,7 @@ public class ProfileManagerDialog {
         dialog.initModality(Modality.APPLICATION_MODAL);
         dialog.initOwner(parentStage);
         this.profileListView = new ListView<>();
+        this.profileListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);  // For Test Selected
         this.refreshProfileList();
         this.profileListView.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
             if (newValue != null) {
@@ -79,6 +95,22 @@ public class ProfileManagerDialog {
         this.sshKeyTextArea.setPromptText("Paste or load your SSH Key content here...");
         this.sshKeyPassphraseField = new PasswordField();
         this.sshKeyPassphraseField.setPromptText("SSH Key Passphrase (Optional)");
+        this.keepaliveIntervalField = new TextField("15");
+        this.keepaliveIntervalField.setPromptText("Seconds, 0 = off");
+        this.keepaliveCountMaxField = new TextField("3");
+        this.ciphersField = new TextField();
+        this.ciphersField.setPromptText("JSch default, e.g. aes128-ctr,aes256-ctr");
+        this.macsField = new TextField();
+        this.macsField.setPromptText("JSch default, e.g. hmac-sha2-256,hmac-sha1");
+        this.kexField = new TextField();
+        this.kexField.setPromptText("JSch default, e.g. ecdh-sha2-nistp256");
+        this.compressionCheckBox = new CheckBox("Enable zlib compression");
+        this.uploadLimitField = new TextField("0");
+        this.uploadLimitField.setPromptText("KB/s, 0 = unlimited");
+        this.downloadLimitField = new TextField("0");
+        this.downloadLimitField.setPromptText("KB/s, NIO tunnels only, 0 = unlimited");
+        this.jumpHostsField = new TextField();
+        this.jumpHostsField.setPromptText("Direct, or profile names first hop first, e.g. bastion,inner-bastion");
         this.authMethodComboBox = new ComboBox<>();
         this.authMethodComboBox.getItems().addAll(AuthMethod.PASSWORD, AuthMethod.SSH_KEY);
         this.authMethodComboBox.setValue(AuthMethod.PASSWORD);
@@ -93,6 +125,17 @@ public class ProfileManagerDialog {
         testConnectionButton.setOnAction((event) -> {
             this.testConnection();
         });
+        // Batch probes fill the reachability scoreboard shown next to each profile in the main window
+        Button testSelectedButton = new Button("Test Selected");
+        testSelectedButton.setOnAction(event -> this.testProfiles(true));
+        Button testAllButton = new Button("Test All");
+        testAllButton.setOnAction(event -> this.testProfiles(false));
+        this.probeConcurrencyField = new TextField(String.valueOf(ProfileProbe.DEFAULT_CONCURRENCY));
+        this.probeConcurrencyField.setPrefColumnCount(3);
+        Button localBenchmarkButton = new Button("Benchmark (Local)");
+        localBenchmarkButton.setOnAction(event -> this.benchmarkCiphers(false));
+        Button hostBenchmarkButton = new Button("Benchmark (Host)");
+        hostBenchmarkButton.setOnAction(event -> this.benchmarkCiphers(true));
         Button saveButton = new Button("Save Profile");
         saveButton.setOnAction(event -> {
             saveProfile(dialog);
@@ -143,11 +186,30 @@ public class ProfileManagerDialog {
         formGrid.add(selectKeyButton, 3, 6);
         formGrid.add(new Label("SSH Key Passphrase:"), 0, 7);
         formGrid.add(this.sshKeyPassphraseField, 1, 7, 2, 1);
+        formGrid.add(new Label("Keepalive Interval (s):"), 0, 8);
+        formGrid.add(this.keepaliveIntervalField, 1, 8);
+        formGrid.add(new Label("Max Missed:"), 2, 8);
+        formGrid.add(this.keepaliveCountMaxField, 3, 8);
+        formGrid.add(new Label("Ciphers:"), 0, 9);
+        formGrid.add(this.ciphersField, 1, 9, 2, 1);
+        formGrid.add(new HBox(5.0, localBenchmarkButton, hostBenchmarkButton), 3, 9);
+        formGrid.add(new Label("MACs:"), 0, 10);
+        formGrid.add(this.macsField, 1, 10, 2, 1);
+        formGrid.add(new Label("Key Exchange:"), 0, 11);
+        formGrid.add(this.kexField, 1, 11, 2, 1);
+        formGrid.add(this.compressionCheckBox, 1, 12, 2, 1);
+        formGrid.add(new Label("Jump Hosts:"), 0, 13);
+        formGrid.add(this.jumpHostsField, 1, 13, 3, 1);
+        formGrid.add(new Label("Session Up (KB/s):"), 0, 14);
+        formGrid.add(this.uploadLimitField, 1, 14);
+        formGrid.add(new Label("Down (KB/s):"), 2, 14);
+        formGrid.add(this.downloadLimitField, 3, 14);
 
-        HBox buttonBox = new HBox(10.0, saveButton, deleteButton, testConnectionButton);
+        HBox buttonBox = new HBox(10.0, saveButton, deleteButton, testConnectionButton, testSelectedButton, testAllButton,
+                new Label("Parallel:"), this.probeConcurrencyField);
         VBox vbox = new VBox(10.0, new Label("Profiles:"), this.profileListView, formGrid, new Label("Console Logs:"), consoleLogTextArea, buttonBox);
         vbox.setPadding(new Insets(20.0));
-        Scene dialogScene = new Scene(vbox, 600.0, 600.0); // Increased height for the new log section
+        Scene dialogScene = new Scene(vbox, 760.0, 900.0); // Room for the log section, algorithm settings, jump hosts and limits
         dialog.setScene(dialogScene);
         dialog.show();
     }
@@ -163,6 +225,15 @@ public class ProfileManagerDialog {
             this.passwordField.setText(profile.getPassword());
             this.authMethodComboBox.setValue(profile.getAuthMethod());
             this.sshKeyPassphraseField.setText(profile.getPassphrase());
+            this.keepaliveIntervalField.setText(String.valueOf(profile.getServerAliveInterval()));
+            this.keepaliveCountMaxField.setText(String.valueOf(profile.getServerAliveCountMax()));
+            this.ciphersField.setText(Objects.toString(profile.getCiphers(), ""));
+            this.macsField.setText(Objects.toString(profile.getMacs(), ""));
+            this.kexField.setText(Objects.toString(profile.getKexAlgorithms(), ""));
+            this.compressionCheckBox.setSelected(profile.isCompression());
+            this.jumpHostsField.setText(Objects.toString(profile.getJumpHosts(), ""));
+            this.uploadLimitField.setText(String.valueOf(profile.getUploadLimit()));
+            this.downloadLimitField.setText(String.valueOf(profile.getDownloadLimit()));
             if (profile.getAuthMethod() == AuthMethod.SSH_KEY) {
                 this.sshKeyContent = profile.getSshKeyContent();
                 this.sshKeyTextArea.setText(this.sshKeyContent); // Set the SSH key content in the TextArea
@@ -192,7 +263,7 @@ public class ProfileManagerDialog {
     }
 
     private void saveProfile(Stage dialog) {
-        SSHProfile profile = new SSHProfile(this.profileNameField.getText(), this.sshHostField.getText(), Integer.parseInt(this.sshPortField.getText()), this.usernameField.getText(), this.passwordField.getText(), this.authMethodComboBox.getValue(), this.sshKeyTextArea.getText(), this.sshKeyPassphraseField.getText());
+        SSHProfile profile = readProfileFromForm();
         this.profileManager.saveOrUpdateProfile(profile);
         if (refreshProfilesCallback != null) {
             refreshProfilesCallback.run();
@@ -200,28 +271,116 @@ public class ProfileManagerDialog {
         dialog.close();
     }
 
+    private SSHProfile readProfileFromForm() {
+        SSHProfile profile = new SSHProfile(this.profileNameField.getText(), this.sshHostField.getText(), Integer.parseInt(this.sshPortField.getText()), this.usernameField.getText(), this.passwordField.getText(), this.authMethodComboBox.getValue(), this.sshKeyTextArea.getText(), this.sshKeyPassphraseField.getText());
+        profile.setServerAliveInterval(Integer.parseInt(this.keepaliveIntervalField.getText()));
+        profile.setServerAliveCountMax(Integer.parseInt(this.keepaliveCountMaxField.getText()));
+        profile.setCiphers(this.ciphersField.getText().trim());
+        profile.setMacs(this.macsField.getText().trim());
+        profile.setKexAlgorithms(this.kexField.getText().trim());
+        profile.setCompression(this.compressionCheckBox.isSelected());
+        profile.setJumpHosts(String.join(",", JumpHosts.parse(this.jumpHostsField.getText())));
+        profile.setUploadLimit(Long.parseLong(this.uploadLimitField.getText().trim()));
+        profile.setDownloadLimit(Long.parseLong(this.downloadLimitField.getText().trim()));
+        return profile;
+    }
+
+    // Measure every candidate cipher and put the fastest-first order into the Ciphers field
+    private void benchmarkCiphers(boolean againstHost) {
+        if (againstHost && !validateProfileFields()) {
+            return;
+        }
+        final SSHProfile profile = againstHost ? readProfileFromForm() : null;
+        consoleLogTextArea.appendText(againstHost
+                ? "Benchmarking ciphers against " + profile.getSshHost() + " (needs 'cat' on the server)...\n"
+                : "Benchmarking cipher speed on this machine...\n");
+        Task<Void> benchmarkTask = new Task<Void>() {
+            @Override
+            protected Void call() {
+                List<CipherBenchmark.Result> results = againstHost
+                        ? CipherBenchmark.runAgainstHost(profile, 64, line -> Platform.runLater(() -> consoleLogTextArea.appendText(line + "\n")))
+                        : CipherBenchmark.runLocal(64, line -> Platform.runLater(() -> consoleLogTextArea.appendText(line + "\n")));
+                String recommended = CipherBenchmark.recommendation(results);
+                Platform.runLater(() -> {
+                    if (recommended.isEmpty()) {
+                        consoleLogTextArea.appendText("No cipher could be measured.\n");
+                    } else {
+                        consoleLogTextArea.appendText("Recommended order: " + recommended + " (save the profile to keep it)\n");
+                        ciphersField.setText(recommended);
+                    }
+                });
+                return null;
+            }
+        };
+        TaskExecutors.getInstance().blocking().execute(benchmarkTask);
+    }
+
     private void testConnection() {
         if (!validateProfileFields()) {
             return;
         }
-        final SSHProfile profile = new SSHProfile(this.profileNameField.getText(), this.sshHostField.getText(), Integer.parseInt(this.sshPortField.getText()), this.usernameField.getText(), this.passwordField.getText(), this.authMethodComboBox.getValue(), this.sshKeyTextArea.getText(), this.sshKeyPassphraseField.getText());
+        final SSHProfile profile = readProfileFromForm();
         Task<Void> testTask = new Task<Void>() {
             @Override
             protected Void call() {
-                try {
-                    SSHTunnelManager.testConnection(profile);
-                    Platform.runLater(() -> {
-                        consoleLogTextArea.appendText("Connection successful.\n");
-                    });
-                } catch (Exception e) {
-                    Platform.runLater(() -> {
-                        consoleLogTextArea.appendText(e.getMessage() + "\n");
-                    });
-                }
+                // Recorded in the scoreboard like a batch probe
+                ProfileProbe.Result result = ProfileProbe.getInstance().probe(profile);
+                Platform.runLater(() -> {
+                    if (result.getOutcome() == ProfileProbe.Outcome.OK) {
+                        consoleLogTextArea.appendText("Connection successful (" + result.getTiming().describe() + ").\n");
+                    } else {
+                        consoleLogTextArea.appendText(result.getMessage() + "\n");
+                    }
+                });
                 return null;
             }
         };
-        new Thread(testTask).start();
+        TaskExecutors.getInstance().blocking().execute(testTask);
+    }
+
+    // Test the saved profiles (all, or those selected in the list) in parallel and print each outcome
+    private void testProfiles(boolean selectedOnly) {
+        List<SSHProfile> profiles = new ArrayList<>();
+        if (selectedOnly) {
+            for (String name : this.profileListView.getSelectionModel().getSelectedItems()) {
+                SSHProfile profile = this.profileManager.getProfileByName(name);
+                if (profile != null) {
+                    profiles.add(profile);
+                }
+            }
+        } else {
+            profiles = this.profileManager.loadProfiles();
+        }
+        if (profiles.isEmpty()) {
+            consoleLogTextArea.appendText("No profiles to test.\n");
+            return;
+        }
+        int concurrency;
+        try {
+            concurrency = Integer.parseInt(probeConcurrencyField.getText().trim());
+        } catch (NumberFormatException e) {
+            concurrency = ProfileProbe.DEFAULT_CONCURRENCY;
+        }
+        concurrency = Math.max(1, Math.min(ProfileProbe.MAX_CONCURRENCY, concurrency));
+        probeConcurrencyField.setText(String.valueOf(concurrency));
+
+        int total = profiles.size();
+        int[] counts = new int[ProfileProbe.Outcome.values().length];
+        consoleLogTextArea.appendText("Testing " + total + " profiles, " + Math.min(concurrency, total) + " at a time...\n");
+        ProfileProbe.getInstance().probe(profiles, concurrency, result -> {
+            counts[result.getOutcome().ordinal()]++;
+            if (result.getOutcome() == ProfileProbe.Outcome.OK) {
+                consoleLogTextArea.appendText(result.getProfileName() + ": OK (" + result.getMessage() + ")\n");
+            } else {
+                consoleLogTextArea.appendText(result.getProfileName() + ": " + result.getMessage() + "\n");
+            }
+            int done = Arrays.stream(counts).sum();
+            if (done == total) {
+                consoleLogTextArea.appendText("Done: " + counts[ProfileProbe.Outcome.OK.ordinal()] + " reachable, "
+                        + counts[ProfileProbe.Outcome.AUTH_FAILED.ordinal()] + " auth failed, "
+                        + counts[ProfileProbe.Outcome.UNREACHABLE.ordinal()] + " unreachable\n");
+            }
+        });
     }
 
     private void deleteProfile() {
@@ -254,6 +413,18 @@ public class ProfileManagerDialog {
         alert.showAndWait();
     }
 
+    // Names in the comma-separated list that JSch cannot use, each prefixed with a space
+    private static String unknownAlgorithms(String list, boolean ciphers) {
+        StringBuilder unknown = new StringBuilder();
+        for (String name : list.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty() && (ciphers ? !CipherBenchmark.isAvailable(name) : JSch.getConfig(name) == null)) {
+                unknown.append(' ').append(name);
+            }
+        }
+        return unknown.toString();
+    }
+
     private boolean validateProfileFields() {
         if (profileNameField.getText().isEmpty() || sshHostField.getText().isEmpty()
                 || sshPortField.getText().isEmpty() || usernameField.getText().isEmpty()) {
@@ -268,6 +439,44 @@ public class ProfileManagerDialog {
             return false;
         }
 
+        try {
+            if (Integer.parseInt(keepaliveIntervalField.getText()) < 0 || Integer.parseInt(keepaliveCountMaxField.getText()) < 1) {
+                showAlert("Validation Error", "Keepalive interval must be 0 or more and max missed at least 1.");
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            showAlert("Validation Error", "Keepalive settings must be valid numbers.");
+            return false;
+        }
+
+        try {
+            if (Long.parseLong(uploadLimitField.getText().trim()) < 0 || Long.parseLong(downloadLimitField.getText().trim()) < 0) {
+                showAlert("Validation Error", "Bandwidth limits must be 0 (unlimited) or more.");
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            showAlert("Validation Error", "Bandwidth limits must be whole numbers of KB/s.");
+            return false;
+        }
+
+        String unknown = unknownAlgorithms(ciphersField.getText(), true) + unknownAlgorithms(macsField.getText(), false)
+                + unknownAlgorithms(kexField.getText(), false);
+        if (!unknown.isEmpty()) {
+            showAlert("Validation Error", "Not supported by this client:" + unknown);
+            return false;
+        }
+
+        // Every hop must be an existing profile, and a chain must not pass through the same profile twice
+        SSHProfile chain = new SSHProfile();
+        chain.setProfileName(profileNameField.getText());
+        chain.setJumpHosts(jumpHostsField.getText());
+        try {
+            JumpHosts.resolve(chain);
+        } catch (JSchException e) {
+            showAlert("Validation Error", e.getMessage());
+            return false;
+        }
+
         if (authMethodComboBox.getValue() == AuthMethod.PASSWORD && passwordField.getText().isEmpty()) {
             showAlert("Validation Error", "Please enter a password for authentication.");
             return false;
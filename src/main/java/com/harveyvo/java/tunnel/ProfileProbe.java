@@ -0,0 +1,157 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.JSchException;
+import javafx.application.Platform;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+// Test connections to many profiles at once, at most `concurrency` handshakes in flight, and keep the
+// outcome per profile for TTL_MILLIS so the main window can show which profiles are reachable before
+// connecting. A result only counts for the host, port, user, credentials, algorithms and jump hosts it
+// was taken with, those of the jump hosts included; editing any of those makes the profile unknown again.
+public class ProfileProbe {
+
+    public static final int DEFAULT_CONCURRENCY = 32;
+    public static final int MAX_CONCURRENCY = 256;
+    public static final long TTL_MILLIS = 10 * 60 * 1000;
+
+    public enum Outcome {
+        OK, AUTH_FAILED, UNREACHABLE
+    }
+
+    private final Map<String, Result> scoreboard = new ConcurrentHashMap<>();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private final LogManager logManager = LogManager.getInstance();
+
+    private ProfileProbe() {
+    }
+
+    private static class ProfileProbeHolder {
+        private static final ProfileProbe INSTANCE = new ProfileProbe();
+    }
+
+    public static ProfileProbe getInstance() {
+        return ProfileProbeHolder.INSTANCE;
+    }
+
+    // Probe every profile in the background; onResult is called on the FX thread as each one finishes
+    public void probe(List<SSHProfile> profiles, int concurrency, Consumer<Result> onResult) {
+        int threads = Math.max(1, Math.min(MAX_CONCURRENCY, Math.min(concurrency, profiles.size())));
+        ExecutorService pool = TaskExecutors.getInstance().newLimitedPool("profile-probe", threads);
+        logManager.log("Probing " + profiles.size() + " profiles, " + threads + " at a time");
+        for (SSHProfile profile : profiles) {
+            pool.execute(() -> {
+                Result result = probe(profile);
+                Platform.runLater(() -> onResult.accept(result));
+            });
+        }
+        pool.shutdown();  // Threads exit once the queue is drained
+    }
+
+    // Test one profile on the calling thread and record the outcome
+    public Result probe(SSHProfile profile) {
+        Result result;
+        try {
+            ConnectTiming timing = SSHTunnelManager.testConnection(profile);
+            result = new Result(profile, Outcome.OK, timing, timing.describe());
+        } catch (Exception e) {
+            // testConnection wraps the JSchException; an auth failure means the server answered
+            boolean authFailed = e.getCause() instanceof JSchException && e.getCause().getMessage() != null
+                    && e.getCause().getMessage().contains("Auth fail");
+            result = new Result(profile, authFailed ? Outcome.AUTH_FAILED : Outcome.UNREACHABLE, null, e.getMessage());
+        }
+        scoreboard.put(profile.getProfileName(), result);
+        Platform.runLater(() -> changeListeners.forEach(Runnable::run));
+        return result;
+    }
+
+    // The last result for this profile if it is younger than the TTL and the profile still points at
+    // the same place, else null
+    public Result get(SSHProfile profile) {
+        Result result = scoreboard.get(profile.getProfileName());
+        if (result == null || !result.target.equals(target(profile))) {
+            return null;
+        }
+        if (System.currentTimeMillis() - result.checkedAt > TTL_MILLIS) {
+            scoreboard.remove(profile.getProfileName(), result);
+            return null;
+        }
+        return result;
+    }
+
+    // Called on the FX thread after each recorded result
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    // The session pool's identity key, which holds a hash of the credentials and never the credentials
+    private static String target(SSHProfile profile) {
+        StringBuilder target = new StringBuilder(SessionPool.keyOf(profile));
+        for (String name : JumpHosts.parse(profile.getJumpHosts())) {
+            SSHProfile hop = ProfileManager.getInstance().getProfileByName(name);
+            target.append(" | ").append(hop != null ? SessionPool.keyOf(hop) : name);
+        }
+        return target.toString();
+    }
+
+    public static class Result {
+        private final String profileName;
+        private final String target;
+        private final Outcome outcome;
+        private final ConnectTiming timing;
+        private final String message;
+        private final long checkedAt = System.currentTimeMillis();
+
+        private Result(SSHProfile profile, Outcome outcome, ConnectTiming timing, String message) {
+            this.profileName = profile.getProfileName();
+            this.target = target(profile);
+            this.outcome = outcome;
+            this.timing = timing;
+            this.message = message;
+        }
+
+        public String getProfileName() {
+            return profileName;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        // Phase timings of a successful probe, null otherwise
+        public ConnectTiming getTiming() {
+            return timing;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getCheckedAt() {
+            return checkedAt;
+        }
+
+        // Reachable and authenticated, the handshake time in ms
+        public long getLatencyMillis() {
+            return timing != null ? timing.getHandshakeNanos() / 1_000_000 : -1;
+        }
+
+        // Short form for the profile list, e.g. "✓ 85 ms", "✗ auth", "✗ unreachable"
+        public String summary() {
+            switch (outcome) {
+                case OK: return "✓ " + getLatencyMillis() + " ms";
+                case AUTH_FAILED: return "✗ auth";
+                default: return "✗ unreachable";
+            }
+        }
+    }
+}
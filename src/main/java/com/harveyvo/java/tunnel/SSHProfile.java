@@ -14,6 +14,16 @@ public class SSHProfile {
     private AuthMethod authMethod;  // Either PASSWORD or SSH_KEY
     private String sshKeyContent;  // Store SSH key PEM content
     private String passphrase;  // Optional passphrase for the SSH key
+    private int serverAliveInterval = 15;  // Seconds between keepalives, 0 disables them
+    private int serverAliveCountMax = 3;  // Unanswered keepalives before the peer is considered dead
+    // Algorithm preferences as comma-separated lists, most preferred first; empty keeps JSch's defaults
+    private String ciphers;
+    private String macs;
+    private String kexAlgorithms;
+    private boolean compression;  // zlib, worth it on slow links with compressible traffic
+    private long uploadLimit;  // KB/s for all tunnels on this profile's session together, 0 = unlimited
+    private long downloadLimit;  // KB/s, 0 = unlimited
+    private String jumpHosts;  // Comma-separated profile names to connect through, first hop first (like ProxyJump)
 
     // Default constructor (needed by Jackson)
     public SSHProfile() {
@@ -96,4 +106,76 @@ public class SSHProfile {
     public void setPassphrase(String passphrase) {
         this.passphrase = passphrase;
     }
+
+    public int getServerAliveInterval() {
+        return serverAliveInterval;
+    }
+
+    public void setServerAliveInterval(int serverAliveInterval) {
+        this.serverAliveInterval = serverAliveInterval;
+    }
+
+    public int getServerAliveCountMax() {
+        return serverAliveCountMax;
+    }
+
+    public void setServerAliveCountMax(int serverAliveCountMax) {
+        this.serverAliveCountMax = serverAliveCountMax;
+    }
+
+    public String getCiphers() {
+        return ciphers;
+    }
+
+    public void setCiphers(String ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    public String getMacs() {
+        return macs;
+    }
+
+    public void setMacs(String macs) {
+        this.macs = macs;
+    }
+
+    public String getKexAlgorithms() {
+        return kexAlgorithms;
+    }
+
+    public void setKexAlgorithms(String kexAlgorithms) {
+        this.kexAlgorithms = kexAlgorithms;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public String getJumpHosts() {
+        return jumpHosts;
+    }
+
+    public void setJumpHosts(String jumpHosts) {
+        this.jumpHosts = jumpHosts;
+    }
+
+    public long getUploadLimit() {
+        return uploadLimit;
+    }
+
+    public void setUploadLimit(long uploadLimit) {
+        this.uploadLimit = uploadLimit;
+    }
+
+    public long getDownloadLimit() {
+        return downloadLimit;
+    }
+
+    public void setDownloadLimit(long downloadLimit) {
+        this.downloadLimit = downloadLimit;
+    }
 }
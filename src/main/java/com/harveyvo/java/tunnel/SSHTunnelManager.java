@@ -1,36 +1,231 @@
 package com.harveyvo.java.tunnel;
 
 import com.jcraft.jsch.*;
-import org.apache.commons.io.input.CountingInputStream;
-import org.apache.commons.io.output.CountingOutputStream;
+import javafx.application.Platform;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 public class SSHTunnelManager {
 
-    private Session session;
-    private AtomicLong bytesSent = new AtomicLong(0);
-    private AtomicLong bytesReceived = new AtomicLong(0);
+    // How accepted -L clients are relayed: JSch's thread per connection, or NioForwarder's event loops
+    public enum ForwardingEngine {
+        JSCH, NIO
+    }
+
+    // Kind of forward a session runs, persisted and shown as its ssh command-line flag
+    public enum TunnelMode {
+        LOCAL("-L"), REMOTE("-R"), DYNAMIC("-D");
+
+        private final String flag;
+
+        TunnelMode(String flag) {
+            this.flag = flag;
+        }
+
+        public String getFlag() {
+            return flag;
+        }
+
+        public static TunnelMode fromFlag(String flag) {
+            for (TunnelMode mode : values()) {
+                if (mode.flag.equals(flag)) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown tunnel mode: " + flag);
+        }
+    }
+
+    private volatile Session session;
+    private SessionPool.Lease lease;
+    private SSHProfile profile;
+    // Set by cancel() or disconnect(), so a connect or reconnect racing with a stop gives up
+    private volatile boolean closed;
+    // Forwards this tunnel added to the (possibly shared) session, removed again on disconnect
+    private final List<ForwardSpec> forwards = new ArrayList<>();
+    private NioForwarder.Forward nioForward;
+    // Rules added to the running session; JSch rules also sit in forwards so reconnect re-applies them
+    private final List<ForwardRule> rules = new CopyOnWriteArrayList<>();
+    private final Map<ForwardRule, ForwardSpec> ruleSpecs = new HashMap<>();
+    private final Map<ForwardRule, NioForwarder.Forward> ruleNioForwards = new HashMap<>();
+    private final TrafficStats trafficStats = new TrafficStats();
     private final LogManager logManager = LogManager.getInstance();
     private final SessionStatus sessionStatus;
-    private final Consumer<String> logConsumer;
+    private final BiConsumer<LogManager.LogLevel, String> logConsumer;
+    // Kept as one instance so it can be unregistered from the keepalive monitor
+    private final Runnable onPeerDead = this::peerDead;
+    // Lazy tunnels: the session is opened by the first client and released after idleMillis without one
+    private volatile boolean lazy;
+    private long idleMillis;
+    private ScheduledFuture<?> idleCheck;
+    private volatile long lastBusyNanos;
+    // Tunnel rate limits in bytes per second (0 = none) and its weight on a shared, limited session
+    private long uploadLimit;
+    private long downloadLimit;
+    private int weight = 1;
+    private TunnelTuning tuning = new TunnelTuning();
+    // NIO tunnels can spread their clients over several sessions to the profile
+    private int stripeCount = 1;
+    private SessionStripes.Policy stripePolicy = SessionStripes.Policy.LEAST_LOADED;
+    private volatile SessionStripes stripes;
+    // Load-balanced tunnels have no session of their own; the balancer holds one per backend profile
+    private volatile LoadBalancer balancer;
 
-    public SSHTunnelManager(SessionStatus sessionStatus, Consumer<String> logConsumer) {
+    public SSHTunnelManager(SessionStatus sessionStatus, BiConsumer<LogManager.LogLevel, String> logConsumer) {
         this.sessionStatus = sessionStatus;
         this.logConsumer = logConsumer;
+        trafficStats.setName(sessionStatus.getConnectionName());
 
         // Set the custom logger
-        JSch.setLogger(new JSchLogger(logConsumer));
+        JSchLogger.install(logConsumer);
     }
-    // Connect based on the profile authentication method
+    // Attach to the pooled session for this profile, connecting only if no live one exists. The
+    // handshake runs outside the tunnel lock, so a stop during it returns at once and wins.
     public void connect(SSHProfile profile) throws JSchException {
-        JSch jsch = new JSch();
+        synchronized (this) {
+            this.profile = profile;
+            applyShaper();
+        }
+        adopt(SessionPool.getInstance().acquire(profile, SSHTunnelManager::openSession));
+    }
+
+    // Re-establish the session after it was lost and re-apply every forward. TrafficStats is kept,
+    // so counters continue where they stopped; NIO listeners stay bound and pick up the new session.
+    public void reconnect() throws JSchException {
+        SessionPool.Lease previous;
+        synchronized (this) {
+            if (closed || profile == null) {
+                throw new JSchException("Tunnel was stopped");
+            }
+            // Detached here and released below whatever happens, also when a stop comes in between
+            previous = lease;
+            KeepaliveMonitor.getInstance().unwatch(session, onPeerDead);
+            lease = null;
+            session = null;
+        }
+        Session fresh;
+        try {
+            // Acquire before releasing, so a pooled session shared with other tunnels is reopened in place
+            fresh = adopt(SessionPool.getInstance().acquire(profile, SSHTunnelManager::openSession));
+        } finally {
+            if (previous != null) {
+                previous.release();
+            }
+        }
+        // -R forwards wait for the server's reply, so they are registered outside the lock as well
+        List<ForwardSpec> toApply;
+        TunnelTuning currentTuning;
+        synchronized (this) {
+            toApply = new ArrayList<>(forwards);
+            currentTuning = tuning;
+        }
+        for (ForwardSpec forward : toApply) {
+            forward.apply(fresh, currentTuning);
+        }
+        synchronized (this) {
+            if (closed) {
+                // Stopped while they were registered; the shared session keeps only other tunnels' forwards
+                toApply.forEach(forward -> forward.remove(fresh));
+                throw new JSchException("Tunnel was stopped");
+            }
+        }
+        logManager.log("Re-established " + toApply.size() + " forward(s) on " + profile.getSshHost() + ":" + profile.getSshPort());
+    }
+
+    // Make a lease acquired outside the lock the tunnel's session. It is given back if the tunnel was
+    // stopped in the meantime, or if another client's warm-up already attached the same session.
+    private Session adopt(SessionPool.Lease acquired) throws JSchException {
+        Session adopted;
+        synchronized (this) {
+            if (closed) {
+                adopted = null;
+            } else if (lease != null && session == acquired.getSession()) {
+                adopted = session;
+            } else {
+                lease = acquired;
+                session = acquired.getSession();
+                KeepaliveMonitor.getInstance().watch(session, profile, onPeerDead);
+                return session;
+            }
+        }
+        acquired.release();
+        if (adopted == null) {
+            throw new JSchException("Tunnel was stopped");
+        }
+        return adopted;
+    }
+
+    // The keepalive monitor closed the session; hand over to the supervisor right away.
+    // A lazy tunnel just goes back to idle, its next client opens a new session.
+    private void peerDead() {
+        if (lazy) {
+            synchronized (this) {
+                if (!closed) {
+                    releaseSession();
+                    showStatus("Idle");
+                }
+            }
+            return;
+        }
+        TunnelSupervisor.getInstance().reportLost(sessionStatus);
+    }
+
+    // Per-tunnel limits in bytes per second, 0 for none; must be set before connecting
+    public synchronized void setBandwidthLimits(long uploadLimit, long downloadLimit, int weight) {
+        this.uploadLimit = uploadLimit;
+        this.downloadLimit = downloadLimit;
+        this.weight = weight;
+    }
+
+    // Socket options and channel window for the forwards set up after this call
+    public synchronized void setTuning(TunnelTuning tuning) {
+        this.tuning = tuning;
+    }
+
+    // Number of parallel SSH sessions for NIO forwards set up after this call; 1 turns striping off
+    public synchronized void setStriping(int stripeCount, SessionStripes.Policy stripePolicy) {
+        this.stripeCount = Math.max(1, stripeCount);
+        this.stripePolicy = stripePolicy;
+    }
+
+    // Every forwarded chunk is charged to the shaper through trafficStats
+    private void applyShaper() {
+        trafficStats.getShaper().close();
+        trafficStats.setShaper(BandwidthShaper.create(profile, uploadLimit, downloadLimit, weight));
+    }
+
+    // Round trip of the last keepalive, or -1 before the first answer or with keepalive disabled
+    public long getRttMicros() {
+        return KeepaliveMonitor.getInstance().getRttMicros(session);
+    }
+
+    public boolean isSessionAlive() {
+        Session current = session;
+        return current != null && current.isConnected();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public SSHProfile getProfile() {
+        return profile;
+    }
+
+    // Connect based on the profile authentication method
+    // Also the connector for jump hosts, test connections and benchmarks
+    static Session openSession(SSHProfile profile) throws JSchException {
+        JSch jsch = IdentityCache.getInstance().getJSch();
 //        JSch.setLogger(new Logger() {
 //            @Override
 //            public boolean isEnabled(int level) {
@@ -44,147 +239,504 @@ public class SSHTunnelManager {
 //        });
 
         // Use SSH Key or Password authentication based on the profile data
-        if (profile.getAuthMethod() == SSHProfile.AuthMethod.SSH_KEY) {
-            connectWithPrivateKey(jsch, profile.getSshHost(), profile.getSshPort(), profile.getUsername(), profile.getSshKeyContent(), profile.getPassphrase());
-        } else {
-            connectWithPassword(jsch, profile.getSshHost(), profile.getSshPort(), profile.getUsername(), profile.getPassword());
+        JSchLogger.ensureInstalled();
+        ConnectTiming timing = ConnectTiming.begin(profile.getSshHost());
+        try {
+            Session session;
+            if (profile.getAuthMethod() == SSHProfile.AuthMethod.SSH_KEY) {
+                session = connectWithPrivateKey(profile, timing);
+            } else {
+                session = connectWithPassword(jsch, profile, timing);
+            }
+            timing.finish(session);
+            return session;
+        } finally {
+            timing.end();
         }
     }
 
     // Connect using password-based authentication
-    private void connectWithPassword(JSch jsch, String sshHost, int sshPort, String username, String password) throws JSchException {
-        session = jsch.getSession(username, sshHost, sshPort);
-        session.setPassword(password);
+    private static Session connectWithPassword(JSch jsch, SSHProfile profile, ConnectTiming timing) throws JSchException {
+        String sshHost = profile.getSshHost();
+        int sshPort = profile.getSshPort();
+        Session session = jsch.getSession(profile.getUsername(), sshHost, sshPort);
+        session.setPassword(profile.getPassword());
 
         // Configure SSH session properties
         Properties config = new Properties();
         config.put("StrictHostKeyChecking", "no");
         session.setConfig(config);
+        applyKeepalive(session, profile);
+        applyAlgorithmPreferences(session, profile);
+        JumpHosts.attach(session, profile, SSHTunnelManager::openSession);
 
         // Establish connection
-        session.connect();
+        timing.resolve(profile);
+        session.connect(10000);
         System.out.println("Connected using password to " + sshHost + ":" + sshPort);
-        logManager.log("Connected using password to " + sshHost + ":" + sshPort);
+        LogManager.getInstance().log("Connected using password to " + sshHost + ":" + sshPort);
+        return session;
     }
 
     // Connect using SSH key-based authentication
-    private void connectWithPrivateKey(JSch jsch, String sshHost, int sshPort, String username, String sshKeyContent, String passphrase) throws JSchException {
-        byte[] privateKeyBytes = sshKeyContent.getBytes();
-        jsch.addIdentity(username, privateKeyBytes, null, passphrase != null ? passphrase.getBytes() : null);
-
-        session = jsch.getSession(username, sshHost, sshPort);
+    private static Session connectWithPrivateKey(SSHProfile profile, ConnectTiming timing) throws JSchException {
+        String sshHost = profile.getSshHost();
+        int sshPort = profile.getSshPort();
+        // The key is parsed and decrypted on the first connect only
+        Session session = IdentityCache.getInstance().newSession(profile);
         session.setConfig("StrictHostKeyChecking", "no");
+        applyKeepalive(session, profile);
+        applyAlgorithmPreferences(session, profile);
+        JumpHosts.attach(session, profile, SSHTunnelManager::openSession);
 
         // Establish connection
+        timing.resolve(profile);
         session.connect(10000);
         System.out.println("Connected using SSH key to " + sshHost + ":" + sshPort);
-        logManager.log("Connected using SSH key to " + sshHost + ":" + sshPort);
+        LogManager.getInstance().log("Connected using SSH key to " + sshHost + ":" + sshPort);
+        return session;
+    }
+
+    // JSch's own keepalive backs up KeepaliveMonitor: it fires when the socket has been idle for the
+    // interval and drops the session after serverAliveCountMax unanswered requests. It relies on the
+    // socket's read timeout, and a session behind a jump host has no socket of its own (its transport
+    // is a channel of the hop), so there it would never fire; such sessions rely on KeepaliveMonitor.
+    private static void applyKeepalive(Session session, SSHProfile profile) throws JSchException {
+        if (profile.getServerAliveInterval() > 0 && JumpHosts.parse(profile.getJumpHosts()).isEmpty()) {
+            session.setServerAliveInterval(profile.getServerAliveInterval() * 1000);
+            session.setServerAliveCountMax(profile.getServerAliveCountMax());
+        }
+    }
+
+    // Profile algorithm preferences replace JSch's defaults for both directions; unset ones are left alone
+    public static void applyAlgorithmPreferences(Session session, SSHProfile profile) {
+        if (!isBlank(profile.getCiphers())) {
+            session.setConfig("cipher.c2s", profile.getCiphers());
+            session.setConfig("cipher.s2c", profile.getCiphers());
+        }
+        if (!isBlank(profile.getMacs())) {
+            session.setConfig("mac.c2s", profile.getMacs());
+            session.setConfig("mac.s2c", profile.getMacs());
+        }
+        if (!isBlank(profile.getKexAlgorithms())) {
+            session.setConfig("kex", profile.getKexAlgorithms());
+        }
+        if (profile.isCompression()) {
+            session.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
+            session.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
     }
 
     // Set up local port forwarding (-L)
     public void setUpTunnel(String bindAddress, int localPort, String remoteHost, int remotePort) throws JSchException, IOException {
+        setUpTunnel(bindAddress, localPort, remoteHost, remotePort, ForwardingEngine.JSCH);
+    }
+
+    public synchronized void setUpTunnel(String bindAddress, int localPort, String remoteHost, int remotePort, ForwardingEngine engine) throws JSchException, IOException {
         if (session != null && session.isConnected()) {
-            session.setPortForwardingL(bindAddress, localPort, remoteHost, remotePort);
+            if (engine == ForwardingEngine.NIO) {
+                // Channels are opened on whatever session is current, so the listener survives a reconnect
+                nioForward = NioForwarder.getInstance().openLocalForward(bindAddress, localPort, remoteHost, remotePort,
+                        liveOpener(), trafficStats, tuning);
+                logManager.log("NIO local port forwarding set up: localhost:" + localPort + " -> " + remoteHost + ":" + remotePort);
+                return;
+            }
+            // Accepted client sockets are counted, so Sent/Received reflect the real forwarded traffic
+            session.setPortForwardingL(bindAddress, localPort, remoteHost, remotePort, CountingSockets.serverSocketFactory(trafficStats, tuning));
+            forwards.add(new ForwardSpec(true, bindAddress, localPort, remoteHost, remotePort, trafficStats));
             System.out.println("Local port forwarding set up: localhost:" + localPort + " -> " + remoteHost + ":" + remotePort);
             logManager.log("Local port forwarding set up: localhost:" + localPort + " -> " + remoteHost + ":" + remotePort);
+        } else {
+            logManager.log("Session is not connected. Cannot set up tunnel.", LogManager.LogLevel.ERROR);
+            throw new JSchException("Session is not connected. Cannot set up tunnel.");
+        }
+    }
 
-            // Hooking the input/output streams for byte tracking
-            Channel channel = session.openChannel("direct-tcpip");
-            InputStream in = monitorInputStream(channel.getInputStream());
-            OutputStream out = monitorOutputStream(channel.getOutputStream());
-
-            channel.setInputStream(in);
-            channel.setOutputStream(out);
-            channel.connect();
+    // Set up dynamic forwarding (-D): a SOCKS4/4a/5 proxy on the NIO engine, one channel per CONNECT request
+    public synchronized void setUpDynamicTunnel(String bindAddress, int localPort) throws JSchException, IOException {
+        if (session != null && session.isConnected()) {
+            nioForward = NioForwarder.getInstance().openDynamicForward(bindAddress, localPort, liveOpener(), trafficStats, tuning);
+            logManager.log("Dynamic SOCKS forwarding set up on " + bindAddress + ":" + localPort);
         } else {
             logManager.log("Session is not connected. Cannot set up tunnel.", LogManager.LogLevel.ERROR);
             throw new JSchException("Session is not connected. Cannot set up tunnel.");
         }
     }
 
+    // Bind a -L (remoteHost set) or -D (remoteHost null) forward without connecting. The SSH session is
+    // opened when the first client arrives and released once no client has been connected for idleSeconds.
+    public synchronized void setUpLazyTunnel(SSHProfile profile, String bindAddress, int localPort, String remoteHost, int remotePort,
+                                             long idleSeconds) throws IOException {
+        this.profile = profile;
+        this.lazy = true;
+        applyShaper();
+        this.idleMillis = TimeUnit.SECONDS.toMillis(Math.max(1, idleSeconds));
+        NioForwarder.ChannelOpener opener = (host, port) -> NioForwarder.sessionOpener(warmSession()).openChannel(host, port);
+        if (remoteHost == null) {
+            nioForward = NioForwarder.getInstance().openDynamicForward(bindAddress, localPort, opener, trafficStats, tuning);
+        } else {
+            nioForward = NioForwarder.getInstance().openLocalForward(bindAddress, localPort, remoteHost, remotePort, opener, trafficStats, tuning);
+        }
+        long checkMillis = Math.min(1000, idleMillis);
+        idleCheck = SharedScheduler.getInstance().scheduleAtFixedRate(this::checkIdle, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        showStatus("Idle");
+        logManager.log("Lazy forwarding set up on " + bindAddress + ":" + localPort + ", connecting on first client (idle close after "
+                + idleSeconds + " s)");
+    }
+
+    // Called on the channel executor for every client of a lazy tunnel; only the first one after an
+    // idle period waits for the SSH session, the rest find it live (or wait in the pool for the same connect)
+    private Session warmSession() throws JSchException {
+        Session current = session;
+        if (current != null && current.isConnected()) {
+            lastBusyNanos = System.nanoTime();
+            return current;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new JSchException("Tunnel was stopped");
+            }
+            if (session != null && session.isConnected()) {
+                return session;
+            }
+            releaseSession();  // A session that died while idle
+        }
+        showStatus("Warming");
+        long start = System.nanoTime();
+        SessionPool.Lease acquired;
+        try {
+            // The pool connects once per profile, so clients arriving together share this handshake
+            acquired = SessionPool.getInstance().acquire(profile, SSHTunnelManager::openSession);
+        } catch (JSchException e) {
+            logManager.log("Warm-up of " + sessionStatus.getConnectionName() + " failed: " + e.getMessage(), LogManager.LogLevel.ERROR);
+            showStatus("Idle (warm-up failed)");
+            throw e;
+        }
+        current = adopt(acquired);
+        lastBusyNanos = System.nanoTime();
+        long warmupMillis = TimeUnit.NANOSECONDS.toMillis(lastBusyNanos - start);
+        logManager.log("First client of " + sessionStatus.getConnectionName() + " waited " + warmupMillis + " ms for the SSH session");
+        Platform.runLater(() -> {
+            if (!closed) {
+                sessionStatus.recordWarmup(warmupMillis);
+                sessionStatus.setStatus("Active");
+            }
+        });
+        return current;
+    }
+
+    // Runs on the shared scheduler, so it only looks; the release takes the tunnel lock and may close
+    // the pooled session, so it happens off the scheduler thread
+    private void checkIdle() {
+        NioForwarder.Forward forward = nioForward;
+        if (forward == null || session == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (forward.getActiveConnections() > 0) {
+            lastBusyNanos = now;
+        } else if (TimeUnit.NANOSECONDS.toMillis(now - lastBusyNanos) >= idleMillis) {
+            TaskExecutors.getInstance().blocking().execute(() -> closeIfIdle(forward));
+        }
+    }
+
+    private void closeIfIdle(NioForwarder.Forward forward) {
+        synchronized (this) {
+            // A client accepted since the check is already counted, so it cannot lose its session here
+            if (closed || session == null || forward.getActiveConnections() > 0
+                    || TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastBusyNanos) < idleMillis) {
+                return;
+            }
+            releaseSession();
+        }
+        showStatus("Idle");
+        logManager.log("Closed idle SSH session of " + sessionStatus.getConnectionName());
+    }
+
+    // Bind a -L (remoteHost set) or -D (remoteHost null) forward whose clients are spread over the
+    // sessions of several profiles. The balancer connects and health-checks them in the background.
+    public synchronized void setUpBalancedTunnel(List<SSHProfile> profiles, LoadBalancer.Policy policy, String bindAddress, int localPort,
+                                                 String remoteHost, int remotePort) throws IOException {
+        applyShaper();  // profile stays null, so only the tunnel's own limits apply
+        balancer = new LoadBalancer(profiles, policy, remoteHost, remotePort, sessionStatus.getConnectionName(), this::showStatus);
+        try {
+            if (remoteHost == null) {
+                nioForward = NioForwarder.getInstance().openDynamicForward(bindAddress, localPort, balancer, trafficStats, tuning);
+            } else {
+                nioForward = NioForwarder.getInstance().openLocalForward(bindAddress, localPort, remoteHost, remotePort, balancer, trafficStats, tuning);
+            }
+        } catch (IOException e) {
+            balancer.close();
+            throw e;
+        }
+        balancer.start();
+        showStatus("Connecting (0/" + profiles.size() + " backends)");
+        logManager.log("Load-balanced forwarding set up on " + bindAddress + ":" + localPort + " across " + profiles.size()
+                + " profiles (" + policy + ")");
+    }
+
+    // The balancer of a load-balanced tunnel, null otherwise
+    public LoadBalancer getBalancer() {
+        return balancer;
+    }
+
+    // Give the session back to the pool; the listener stays bound
+    private synchronized void releaseSession() {
+        KeepaliveMonitor.getInstance().unwatch(session, onPeerDead);
+        if (lease != null) {
+            lease.release();
+            lease = null;
+        }
+        session = null;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    private void showStatus(String status) {
+        Platform.runLater(() -> {
+            if (!closed) {
+                sessionStatus.setStatus(status);
+            }
+        });
+    }
+
     // Set up remote port forwarding (-R)
-    public void setUpRemoteTunnel(String bindAddress, int remotePort, String localHost, int localPort) throws JSchException, IOException {
+    public synchronized void setUpRemoteTunnel(String bindAddress, int remotePort, String localHost, int localPort) throws JSchException, IOException {
         if (session != null && session.isConnected()) {
-            session.setPortForwardingR(bindAddress, remotePort, localHost, localPort);
+            // Sockets JSch opens to the local target are counted
+            session.setPortForwardingR(bindAddress, remotePort, localHost, localPort, CountingSockets.socketFactory(trafficStats, tuning));
+            forwards.add(new ForwardSpec(false, bindAddress, remotePort, localHost, localPort, trafficStats));
             System.out.println("Remote port forwarding set up: " + bindAddress + ":" + remotePort + " -> " + localHost + ":" + localPort);
             logManager.log("Remote port forwarding set up: " + bindAddress + ":" + remotePort + " -> " + localHost + ":" + localPort);
-
-            // Hooking the input/output streams for byte tracking
-            Channel channel = session.openChannel("direct-tcpip");
-            InputStream in = monitorInputStream(channel.getInputStream());
-            OutputStream out = monitorOutputStream(channel.getOutputStream());
-
-            channel.setInputStream(in);
-            channel.setOutputStream(out);
-            channel.connect();
         } else {
             logManager.log("Session is not connected. Cannot set up tunnel.", LogManager.LogLevel.ERROR);
             throw new JSchException("Session is not connected. Cannot set up tunnel.");
         }
     }
 
-    // Monitor methods to track data usage
-    public InputStream monitorInputStream(InputStream in) {
-        return new CountingInputStream(in) {
-            @Override
-            protected void afterRead(int n) {
-                super.afterRead(n);
-                if (n > 0) {
-                    bytesReceived.addAndGet(n);
-                    sessionStatus.updateDataUsage(bytesSent.get(), bytesReceived.get());
-                }
-            }
-        };
+    // Add a further forward to the running session without reconnecting. Its traffic is counted on the
+    // rule and in the session totals, and goes through the tunnel's bandwidth limits.
+    public synchronized void addRule(ForwardRule rule) throws JSchException, IOException {
+        if (lazy || balancer != null) {
+            throw new JSchException("Rules need a tunnel with its own connected session");
+        }
+        Session current = liveSession();
+        rule.getTrafficStats().setShaper(trafficStats.getShaper());
+        rule.getTrafficStats().setName(sessionStatus.getConnectionName() + " " + rule.describe());
+        NioForwarder.ChannelOpener opener = (host, port) -> NioForwarder.sessionOpener(liveSession()).openChannel(host, port);
+        if (rule.getMode() == TunnelMode.DYNAMIC) {
+            ruleNioForwards.put(rule, NioForwarder.getInstance().openDynamicForward(rule.getLocalHost(), rule.getLocalPort(), opener,
+                    rule.getTrafficStats(), tuning));
+        } else if (rule.getMode() == TunnelMode.LOCAL && rule.getEngine() == ForwardingEngine.NIO) {
+            ruleNioForwards.put(rule, NioForwarder.getInstance().openLocalForward(rule.getLocalHost(), rule.getLocalPort(),
+                    rule.getRemoteHost(), rule.getRemotePort(), opener, rule.getTrafficStats(), tuning));
+        } else {
+            ForwardSpec spec = rule.getMode() == TunnelMode.LOCAL
+                    ? new ForwardSpec(true, rule.getLocalHost(), rule.getLocalPort(), rule.getRemoteHost(), rule.getRemotePort(), rule.getTrafficStats())
+                    : new ForwardSpec(false, rule.getRemoteHost(), rule.getRemotePort(), rule.getLocalHost(), rule.getLocalPort(), rule.getTrafficStats());
+            spec.apply(current, tuning);
+            forwards.add(spec);
+            ruleSpecs.put(rule, spec);
+        }
+        rules.add(rule);
+        logManager.log("Added rule " + rule.describe() + " to " + sessionStatus.getConnectionName());
     }
 
-    public OutputStream monitorOutputStream(OutputStream out) {
-        return new CountingOutputStream(out) {
-            @Override
-            protected void beforeWrite(int n) {
-                super.beforeWrite(n);
-                bytesSent.addAndGet(n);
-                sessionStatus.updateDataUsage(bytesSent.get(), bytesReceived.get());
+    // Take a rule off the session; clients it is relaying are closed, the session and other forwards stay
+    public synchronized void removeRule(ForwardRule rule) {
+        if (!rules.remove(rule)) {
+            return;
+        }
+        NioForwarder.Forward nio = ruleNioForwards.remove(rule);
+        if (nio != null) {
+            nio.close();
+        }
+        ForwardSpec spec = ruleSpecs.remove(rule);
+        if (spec != null) {
+            forwards.remove(spec);
+            if (session != null && session.isConnected()) {
+                spec.remove(session);
             }
-        };
+        }
+        rule.getTrafficStats().setShaper(BandwidthShaper.UNLIMITED);
+        logManager.log("Removed rule " + rule.describe() + " from " + sessionStatus.getConnectionName());
     }
 
+    // Channels are opened on whatever session is current, or spread over the stripes
+    private NioForwarder.ChannelOpener liveOpener() {
+        if (stripeCount > 1) {
+            stripes = new SessionStripes(profile, stripeCount, stripePolicy, this::liveSession, sessionStatus.getConnectionName());
+            stripes.start();
+            return stripes;
+        }
+        return (host, port) -> NioForwarder.sessionOpener(liveSession()).openChannel(host, port);
+    }
+
+    // The stripe set of a striped tunnel, null otherwise
+    public SessionStripes getStripes() {
+        return stripes;
+    }
+
+    private Session liveSession() throws JSchException {
+        Session current = session;
+        if (current == null || !current.isConnected()) {
+            throw new JSchException("Session is not connected");
+        }
+        return current;
+    }
+
+    public TrafficStats getTrafficStats() {
+        return trafficStats;
+    }
+
+    // Phase timings of the handshake behind the current session, null while there is none
+    public ConnectTiming getConnectTiming() {
+        return ConnectTiming.of(session);
+    }
+
+    // Session totals include the traffic of its rules
     public long getBytesSent() {
-        return bytesSent.get();
+        long sent = trafficStats.getBytesSent();
+        for (ForwardRule rule : rules) {
+            sent += rule.getTrafficStats().getBytesSent();
+        }
+        return sent;
     }
 
     public long getBytesReceived() {
-        return bytesReceived.get();
+        long received = trafficStats.getBytesReceived();
+        for (ForwardRule rule : rules) {
+            received += rule.getTrafficStats().getBytesReceived();
+        }
+        return received;
+    }
+
+    // Mark the tunnel stopped without waiting for anything, so a start in flight gives up at its next
+    // step; disconnect() still releases what it already holds
+    public void cancel() {
+        closed = true;
     }
 
     // Disconnect the SSH session
-    public void disconnect() {
+    public synchronized void disconnect() {
+        closed = true;
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        trafficStats.getShaper().close();
+        trafficStats.setShaper(BandwidthShaper.UNLIMITED);
+        if (nioForward != null) {
+            nioForward.close();
+            nioForward = null;
+        }
+        for (NioForwarder.Forward forward : ruleNioForwards.values()) {
+            forward.close();
+        }
+        ruleNioForwards.clear();
+        ruleSpecs.clear();
+        for (ForwardRule rule : rules) {
+            rule.getTrafficStats().setShaper(BandwidthShaper.UNLIMITED);
+        }
+        rules.clear();
+        if (stripes != null) {
+            stripes.close();
+        }
+        if (balancer != null) {
+            balancer.close();
+        }
         if (session != null && session.isConnected()) {
-            session.disconnect();
+            // Other tunnels may still use this session, so only our own forwards are removed
+            for (ForwardSpec forward : forwards) {
+                forward.remove(session);
+            }
+        }
+        forwards.clear();
+        KeepaliveMonitor.getInstance().unwatch(session, onPeerDead);
+        if (lease != null) {
+            lease.release();
+            lease = null;
             System.out.println("Disconnected from SSH server.");
             logManager.log("Disconnected from SSH server.");
         }
+        session = null;
     }
 
-    public static void testConnection(SSHProfile profile) throws Exception {
-        JSch jsch = new JSch();
+    // A port forward this tunnel registered on the session
+    private static class ForwardSpec {
+        private final boolean local;
+        private final String bindAddress;
+        private final int port;
+        private final String targetHost;
+        private final int targetPort;
+        // The tunnel's own counters, or those of the rule the forward belongs to
+        private final TrafficStats trafficStats;
 
-       // JSch.setLogger(new JSchLogger(logConsumer));
-        // Set up authentication based on the profile
-        if (profile.getAuthMethod() == SSHProfile.AuthMethod.SSH_KEY) {
-            byte[] privateKeyBytes = profile.getSshKeyContent().getBytes();
-            jsch.addIdentity(profile.getUsername(), privateKeyBytes, null,
-                    profile.getPassphrase() != null ? profile.getPassphrase().getBytes() : null);
+        private ForwardSpec(boolean local, String bindAddress, int port, String targetHost, int targetPort, TrafficStats trafficStats) {
+            this.local = local;
+            this.bindAddress = bindAddress;
+            this.port = port;
+            this.targetHost = targetHost;
+            this.targetPort = targetPort;
+            this.trafficStats = trafficStats;
+        }
+
+        // Register this forward on a (new) session; a leftover registration from a failed attempt is replaced
+        private void apply(Session session, TunnelTuning tuning) throws JSchException {
+            if (local) {
+                try {
+                    session.delPortForwardingL(bindAddress, port);
+                } catch (JSchException e) {
+                    // Not registered
+                }
+                session.setPortForwardingL(bindAddress, port, targetHost, targetPort, CountingSockets.serverSocketFactory(trafficStats, tuning));
+            } else {
+                try {
+                    session.delPortForwardingR(bindAddress, port);
+                } catch (JSchException e) {
+                    // Not registered
+                }
+                session.setPortForwardingR(bindAddress, port, targetHost, targetPort, CountingSockets.socketFactory(trafficStats, tuning));
+            }
         }
 
-        Session session = jsch.getSession(profile.getUsername(), profile.getSshHost(), profile.getSshPort());
-        if (profile.getAuthMethod() == SSHProfile.AuthMethod.PASSWORD) {
-            session.setPassword(profile.getPassword());
+        private void remove(Session session) {
+            try {
+                if (local) {
+                    session.delPortForwardingL(bindAddress, port);
+                } else {
+                    session.delPortForwardingR(bindAddress, port);
+                }
+            } catch (JSchException e) {
+                LogManager.getInstance().log("Failed to remove forward on port " + port + ": " + e.getMessage(), LogManager.LogLevel.WARNING);
+            }
         }
+    }
+
+    // Returns the phase timings of the test connect, including opening one channel
+    public static ConnectTiming testConnection(SSHProfile profile) throws Exception {
+        JSchLogger.ensureInstalled();
+        // Set up authentication based on the profile
+        Session session = IdentityCache.getInstance().newSession(profile);
         session.setConfig("StrictHostKeyChecking", "no");
+        applyAlgorithmPreferences(session, profile);
+        ConnectTiming timing = ConnectTiming.begin(profile.getSshHost());
         try {
+            // Hops are leased from the pool, so testing behind a bastion that is already up costs no extra handshake
+            JumpHosts.attach(session, profile, SSHTunnelManager::openSession);
             // Attempt to connect
+            timing.resolve(profile);
             session.connect(10000); // 10-second timeout
+            timing.finish(session);
+            timing.timeChannelOpen(session, 10000);
             session.disconnect();
+            return timing;
         }
         catch (JSchException e) {
             // Handle different types of exceptions
@@ -197,6 +749,8 @@ public class SSHTunnelManager {
                 errorMessage = "Failed to connect: " + e.getMessage();
             }
             throw new Exception(errorMessage, e);
+        } finally {
+            timing.end();
         }
     }
 }
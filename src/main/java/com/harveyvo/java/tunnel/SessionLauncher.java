@@ -0,0 +1,425 @@
+package com.harveyvo.java.tunnel;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jcraft.jsch.JSchException;
+import javafx.application.Platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Starts and stops sessions from their saved settings: the form, Start All, Stop All and the restore at
+// startup all go through here. At most `concurrency` sessions are started or stopped at once, and at most
+// `perHost` of them against one SSH host (the first jump host of a chained profile), so restoring
+// hundreds of tunnels behind one bastion queues up instead of opening hundreds of handshakes at it.
+// Tunnels of one profile share a pooled session, so only the first of them waits for a handshake.
+public class SessionLauncher {
+
+    public static final int MAX_CONCURRENCY = 256;
+    private static final String SETTINGS_FILE_NAME = "launcher_settings.json";
+    private static final long WRITE_DELAY_MILLIS = 250;
+
+    // Told the progress of the current batch; called on the FX thread
+    public interface ProgressListener {
+        void progress(int done, int failed, int total);
+    }
+
+    private final SessionManager sessionManager;
+    private final ProfileManager profileManager = ProfileManager.getInstance();
+    private final LogManager logManager = LogManager.getInstance();
+    private final Settings settings;
+    private final WriteBehind writeBehind;
+    private ProgressListener progressListener = (done, failed, total) -> { };
+    // Guarded by this: jobs waiting for a free slot, and the slots in use overall and per host
+    private final Deque<Job> pending = new ArrayDeque<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+    // Counters of the batch in progress; a batch ends when nothing is pending or running
+    private int batchTotal;
+    private int batchDone;
+    private int batchFailed;
+
+    public SessionLauncher(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+        FileManager fileManager = new FileManager();
+        this.settings = loadSettings(fileManager.getFilePath(SETTINGS_FILE_NAME).toFile());
+        settings.setConcurrency(Math.max(1, Math.min(MAX_CONCURRENCY, settings.getConcurrency())));
+        settings.setPerHost(Math.max(1, settings.getPerHost()));
+        this.writeBehind = new WriteBehind(fileManager.getFilePath(SETTINGS_FILE_NAME), () -> settings, WRITE_DELAY_MILLIS, null);
+    }
+
+    private static Settings loadSettings(File file) {
+        if (file.exists() && file.length() > 0) {
+            try {
+                return new ObjectMapper().readValue(file, Settings.class);
+            } catch (IOException e) {
+                LogManager.getInstance().log("Could not read " + SETTINGS_FILE_NAME + ", using defaults: " + e.getMessage(),
+                        LogManager.LogLevel.WARNING);
+            }
+        }
+        return new Settings();
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    // Apply and persist new limits; jobs already running keep their slot
+    public void updateSettings(boolean restoreOnStartup, int concurrency, int perHost) {
+        int threads = Math.max(1, Math.min(MAX_CONCURRENCY, concurrency));
+        synchronized (this) {
+            settings.setRestoreOnStartup(restoreOnStartup);
+            settings.setPerHost(Math.max(1, perHost));
+            settings.setConcurrency(threads);
+        }
+        writeBehind.markDirty();
+        dispatch();
+    }
+
+    // Sessions that were running when the app last saved, if restoring is on
+    public void restore() {
+        if (!settings.isRestoreOnStartup()) {
+            return;
+        }
+        List<SessionStatus> toRestore = new ArrayList<>();
+        for (SessionStatus session : sessionManager.getSessions()) {
+            if (session.isWasRunning()) {
+                toRestore.add(session);
+            }
+        }
+        if (!toRestore.isEmpty()) {
+            logManager.log("Restoring " + toRestore.size() + " tunnel(s) from the last run");
+            start(toRestore);
+        }
+    }
+
+    public void startAll() {
+        start(sessionManager.getSessions());
+    }
+
+    // Queue the given sessions; ones that already run are skipped. Must be called on the FX thread.
+    public void start(List<SessionStatus> sessions) {
+        List<Job> jobs = new ArrayList<>();
+        for (SessionStatus session : sessions) {
+            if (session.getSshTunnelManager() != null) {
+                continue;
+            }
+            // The manager is attached right away, so a second Start All or a Stop meanwhile sees it
+            SSHTunnelManager manager = prepare(session);
+            session.setStatus("Queued");
+            jobs.add(new Job(session, manager, hostKey(session), true));
+        }
+        enqueue(jobs);
+    }
+
+    public void stopAll() {
+        stop(sessionManager.getSessions());
+    }
+
+    // Detach the given sessions at once and disconnect them on the pool; ones that do not run are
+    // skipped. A start still queued is dropped, one in progress is cancelled and gives up at its next
+    // step. Must be called on the FX thread.
+    public void stop(List<SessionStatus> sessions) {
+        List<Job> jobs = new ArrayList<>();
+        for (SessionStatus session : sessions) {
+            SSHTunnelManager manager = sessionManager.detach(session);
+            if (manager == null) {
+                continue;
+            }
+            manager.cancel();
+            if (dropPendingStart(manager)) {
+                sessionManager.markStopped(session);
+            } else {
+                session.setStatus("Stopping...");
+                jobs.add(new Job(session, manager, hostKey(session), false));
+            }
+        }
+        reportProgress();
+        enqueue(jobs);
+    }
+
+    // True if the manager's start had not been handed out yet; it then counts as done
+    private synchronized boolean dropPendingStart(SSHTunnelManager manager) {
+        Iterator<Job> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            if (job.start && job.manager == manager) {
+                iterator.remove();
+                batchDone++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SSHTunnelManager prepare(SessionStatus session) {
+        SSHTunnelManager manager = new SSHTunnelManager(session, (level, message) -> {
+            logManager.log(message, level);
+        });
+        manager.setBandwidthLimits(session.getUploadLimit() * 1024, session.getDownloadLimit() * 1024, session.getWeight());
+        manager.setTuning(session.getTuning());
+        manager.setStriping(session.getStripes(), session.getStripePolicy());
+        session.setSshTunnelManager(manager);
+        return manager;
+    }
+
+    // Throttling key: the host the first TCP connection goes to
+    private String hostKey(SessionStatus session) {
+        SSHProfile profile = profileManager.getProfileByName(session.getProfileId());
+        if (profile == null) {
+            return session.getSshHost();
+        }
+        List<String> hops = JumpHosts.parse(profile.getJumpHosts());
+        if (!hops.isEmpty()) {
+            SSHProfile firstHop = profileManager.getProfileByName(hops.get(0));
+            if (firstHop != null) {
+                profile = firstHop;
+            }
+        }
+        return profile.getSshHost() + ":" + profile.getSshPort();
+    }
+
+    private void enqueue(List<Job> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (running == 0 && pending.isEmpty()) {
+                batchTotal = 0;
+                batchDone = 0;
+                batchFailed = 0;
+            }
+            batchTotal += jobs.size();
+            pending.addAll(jobs);
+        }
+        reportProgress();
+        dispatch();
+    }
+
+    // Hand out every pending start whose host has a free slot, in queue order. Stops never talk to
+    // the SSH host, so they take no slot and go out right away.
+    private synchronized void dispatch() {
+        Iterator<Job> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            if (job.start) {
+                int onHost = runningPerHost.getOrDefault(job.host, 0);
+                if (running >= settings.getConcurrency() || onHost >= settings.getPerHost()) {
+                    continue;
+                }
+                runningPerHost.put(job.host, onHost + 1);
+                running++;
+            }
+            iterator.remove();
+            // The blocking executor is unbounded; the limits above are what keeps this batch in check
+            TaskExecutors.getInstance().blocking().execute(() -> run(job));
+        }
+    }
+
+    private void run(Job job) {
+        boolean failed = false;
+        try {
+            if (job.start) {
+                failed = !startNow(job.session, job.manager);
+            } else {
+                job.manager.disconnect();
+                Platform.runLater(() -> sessionManager.markStopped(job.session));
+            }
+        } finally {
+            synchronized (this) {
+                if (job.start) {
+                    running--;
+                    runningPerHost.merge(job.host, -1, (count, delta) -> count + delta == 0 ? null : count + delta);
+                }
+                batchDone++;
+                if (failed) {
+                    batchFailed++;
+                }
+            }
+            reportProgress();
+            dispatch();
+        }
+    }
+
+    // Bring up the session's tunnel; blocks for the SSH connect. False if it failed.
+    private boolean startNow(SessionStatus session, SSHTunnelManager manager) {
+        if (manager.isClosed()) {
+            return true;  // Stopped while queued
+        }
+        Platform.runLater(() -> {
+            if (isCurrent(session, manager)) {
+                session.setStatus(session.isLazy() ? "Idle" : "Connecting...");
+            }
+        });
+        try {
+            SSHProfile profile = profileManager.getProfileByName(session.getProfileId());
+            if (profile == null) {
+                throw new JSchException("Profile not found: " + session.getProfileId());
+            }
+            SSHTunnelManager.TunnelMode mode = SSHTunnelManager.TunnelMode.fromFlag(session.getMode());
+            boolean dynamic = mode == SSHTunnelManager.TunnelMode.DYNAMIC;
+            String localHost = session.getLocalHost();
+            int localPort = Integer.parseInt(session.getLocalPort());
+            String remoteHost = dynamic ? null : session.getRemoteHost();
+            int remotePort = dynamic ? 0 : Integer.parseInt(session.getRemotePort());
+            if (session.isLazy()) {
+                // Nothing connects until a client arrives; the manager shows Idle/Warming/Active from here
+                manager.setUpLazyTunnel(profile, localHost, localPort, remoteHost, remotePort, session.getLazyIdleSeconds());
+                started(session, manager);
+                return true;
+            }
+            if (session.isBalanced()) {
+                // Backends connect in the background; the balancer reports how many are healthy
+                manager.setUpBalancedTunnel(resolveBackends(session, profile), session.getBalancePolicy(), localHost, localPort,
+                        remoteHost, remotePort);
+                started(session, manager);
+                return true;
+            }
+            manager.connect(profile);
+            switch (mode) {
+                case LOCAL:
+                    manager.setUpTunnel(localHost, localPort, remoteHost, remotePort, session.getEngine());
+                    break;
+                case REMOTE:
+                    manager.setUpRemoteTunnel(remoteHost, remotePort, localHost, localPort);
+                    break;
+                case DYNAMIC:
+                    manager.setUpDynamicTunnel(localHost, localPort);
+                    break;
+            }
+            if (!started(session, manager)) {
+                return true;
+            }
+            Platform.runLater(() -> {
+                if (isCurrent(session, manager)) {
+                    session.setStatus("Connected");
+                    for (ForwardRule rule : session.getRules()) {
+                        sessionManager.applyRule(session, rule);
+                    }
+                }
+            });
+            // From here on a dropped session is reconnected and its forwards re-applied
+            TunnelSupervisor.getInstance().supervise(session);
+            return true;
+        } catch (Exception e) {
+            boolean stopped = manager.isClosed();
+            // Give back the pooled session if the forward itself failed
+            manager.disconnect();
+            if (stopped) {
+                return true;  // Stopped meanwhile, which is what made the connect give up
+            }
+            logManager.log("Failed to start " + session.getConnectionName() + ": " + e.getMessage(), LogManager.LogLevel.ERROR);
+            Platform.runLater(() -> {
+                if (session.getSshTunnelManager() == manager) {
+                    session.setSshTunnelManager(null);  // So Start All retries it
+                    session.setStatus("Failed: " + e.getMessage());
+                }
+            });
+            return false;
+        }
+    }
+
+    // False if the session was stopped while its tunnel was set up; whatever was bound or connected is
+    // released again. Otherwise the row starts counting, unless a stop gets in before the FX thread runs.
+    private boolean started(SessionStatus session, SSHTunnelManager manager) {
+        if (manager.isClosed()) {
+            manager.disconnect();
+            return false;
+        }
+        Platform.runLater(() -> {
+            if (isCurrent(session, manager)) {
+                session.startTimer();
+                sessionManager.saveSessions();
+            }
+        });
+        return true;
+    }
+
+    // Still the session's own start: not stopped, and not replaced by a later start. FX thread only.
+    private static boolean isCurrent(SessionStatus session, SSHTunnelManager manager) {
+        return session.getSshTunnelManager() == manager && !manager.isClosed();
+    }
+
+    // The session's profile plus its listed balancing profiles, without duplicates
+    private List<SSHProfile> resolveBackends(SessionStatus session, SSHProfile profile) throws JSchException {
+        List<SSHProfile> backends = new ArrayList<>();
+        backends.add(profile);
+        for (String name : JumpHosts.parse(session.getBalanceProfiles())) {
+            SSHProfile backend = profileManager.getProfileByName(name);
+            if (backend == null) {
+                throw new JSchException("Load balancing profile not found: " + name);
+            }
+            if (backends.stream().noneMatch(p -> p.getProfileName().equals(backend.getProfileName()))) {
+                backends.add(backend);
+            }
+        }
+        return backends;
+    }
+
+    private void reportProgress() {
+        int done;
+        int failed;
+        int total;
+        synchronized (this) {
+            done = batchDone;
+            failed = batchFailed;
+            total = batchTotal;
+        }
+        Platform.runLater(() -> progressListener.progress(done, failed, total));
+    }
+
+    private static class Job {
+        private final SessionStatus session;
+        private final SSHTunnelManager manager;
+        private final String host;
+        private final boolean start;
+
+        private Job(SessionStatus session, SSHTunnelManager manager, String host, boolean start) {
+            this.session = session;
+            this.manager = manager;
+            this.host = host;
+            this.start = start;
+        }
+    }
+
+    // Persisted launcher options
+    public static class Settings {
+        private boolean restoreOnStartup;
+        private int concurrency = 16;
+        private int perHost = 4;
+
+        public boolean isRestoreOnStartup() {
+            return restoreOnStartup;
+        }
+
+        public void setRestoreOnStartup(boolean restoreOnStartup) {
+            this.restoreOnStartup = restoreOnStartup;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        public int getPerHost() {
+            return perHost;
+        }
+
+        public void setPerHost(int perHost) {
+            this.perHost = perHost;
+        }
+    }
+}
@@ -2,22 +2,36 @@ package com.harveyvo.java.tunnel;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jcraft.jsch.JSchException;
 import javafx.application.Platform;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 public class SessionManager {
-    private final List<SessionStatus> sessions = new ArrayList<>();
+    // Copy-on-write so the background writer can snapshot it while the FX thread adds sessions
+    private final List<SessionStatus> sessions = new CopyOnWriteArrayList<>();
     private final FileManager fileManager = new FileManager();
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final WriteBehind writeBehind;
 
     private static final String SESSION_FILE_NAME = "ssh_sessions.json";
+    private static final long WRITE_DELAY_MILLIS = 250;
 
     public SessionManager() {
+        // Sessions are changed on the FX thread, so that is where the snapshot is taken
+        this(Platform::runLater);
+    }
+
+    // The thread that changes the sessions runs snapshotExecutor's tasks
+    SessionManager(Executor snapshotExecutor) {
+        writeBehind = new WriteBehind(fileManager.getFilePath(SESSION_FILE_NAME), this::snapshotSessions, snapshotExecutor,
+                WRITE_DELAY_MILLIS, null);
         loadSessions();
     }
 
@@ -46,9 +60,33 @@ public class SessionManager {
                         data.getLocalPort(),
                         data.getRemoteHost(),
                         data.getRemotePort(),
-                        data.getMode().equals("-L"),
+                        SSHTunnelManager.TunnelMode.fromFlag(data.getMode()),
                         "Disconnected"
                 );
+                if (data.getEngine() != null) {
+                    session.setEngine(SSHTunnelManager.ForwardingEngine.valueOf(data.getEngine()));
+                }
+                session.setLazyIdleSeconds(data.getLazyIdleSeconds());
+                session.setUploadLimit(data.getUploadLimit());
+                session.setDownloadLimit(data.getDownloadLimit());
+                session.setWeight(Math.max(1, data.getWeight()));
+                session.setStripes(Math.max(1, data.getStripes()));
+                if (data.getStripePolicy() != null) {
+                    session.setStripePolicy(SessionStripes.Policy.valueOf(data.getStripePolicy()));
+                }
+                session.setBalanceProfiles(data.getBalanceProfiles());
+                if (data.getBalancePolicy() != null) {
+                    session.setBalancePolicy(LoadBalancer.Policy.valueOf(data.getBalancePolicy()));
+                }
+                if (data.getTuning() != null) {
+                    session.setTuning(data.getTuning());  // Sessions saved before tuning existed keep the defaults
+                }
+                session.setWasRunning(data.isRunning());
+                if (data.getRules() != null) {
+                    for (ForwardRuleData rule : data.getRules()) {
+                        session.getRules().add(rule.toRule());
+                    }
+                }
                 sessions.add(session);
             }
         } catch (IOException e) {
@@ -56,41 +94,103 @@ public class SessionManager {
         }
     }
 
+    // Changes within a short window are coalesced into one atomic write off the calling thread
     public void saveSessions() {
-        try {
-            List<SessionStatusData> sessionDataList = sessions.stream()
-                    .map(session -> new SessionStatusData(
-                            session.getSessionNumber(),
-                            session.getSessionId(),
-                            session.getConnectionName(),
-                            session.getProfileId(),
-                            session.getSshHost(),
-                            session.getLocalHost(),
-                            session.getLocalPort(),
-                            session.getRemoteHost(),
-                            session.getRemotePort(),
-                            session.getMode()
-                    ))
-                    .collect(Collectors.toList());
-
-            File sessionFile = fileManager.getFilePath(SESSION_FILE_NAME).toFile();
-            objectMapper.writeValue(sessionFile, sessionDataList);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        writeBehind.markDirty();
+    }
+
+    // On the thread that changes the sessions (see the constructor)
+    List<SessionStatusData> snapshotSessions() {
+        return sessions.stream()
+                .map(session -> new SessionStatusData(
+                        session.getSessionNumber(),
+                        session.getSessionId(),
+                        session.getConnectionName(),
+                        session.getProfileId(),
+                        session.getSshHost(),
+                        session.getLocalHost(),
+                        session.getLocalPort(),
+                        session.getRemoteHost(),
+                        session.getRemotePort(),
+                        session.getMode(),
+                        session.getEngine().name(),
+                        session.getLazyIdleSeconds(),
+                        session.getUploadLimit(),
+                        session.getDownloadLimit(),
+                        session.getWeight(),
+                        session.getTuning(),
+                        session.getStripes(),
+                        session.getStripePolicy().name(),
+                        session.getBalanceProfiles(),
+                        session.getBalancePolicy().name(),
+                        session.getRules().stream().map(ForwardRuleData::new).collect(Collectors.toList()),
+                        session.getSshTunnelManager() != null || session.isWasRunning()
+                ))
+                .collect(Collectors.toList());
     }
 
     // Stop session method
     public void stopSession(SessionStatus session) {
-        session.stopTimer();
-        if (session.getSshTunnelManager() != null) {
-            session.getSshTunnelManager().disconnect();
-            session.setSshTunnelManager(null); // Remove the reference to the manager
+        SSHTunnelManager manager = detach(session);
+        if (manager != null) {
+            manager.disconnect();
         }
+        markStopped(session);
+    }
+
+    // Take the tunnel off the session so nothing restarts it; the caller disconnects the returned manager
+    SSHTunnelManager detach(SessionStatus session) {
+        session.stopTimer();
+        TunnelSupervisor.getInstance().unsupervise(session);
+        SSHTunnelManager manager = session.getSshTunnelManager();
+        session.setSshTunnelManager(null); // Remove the reference to the manager
+        return manager;
+    }
+
+    void markStopped(SessionStatus session) {
         session.setStatus("Stopped");
+        for (ForwardRule rule : session.getRules()) {
+            rule.setStatus("Stopped");
+        }
         saveSessions();
     }
 
+    // Add a rule to a session; a running tunnel gets it right away, a stopped one keeps it in the file
+    public void addRule(SessionStatus session, ForwardRule rule) {
+        session.getRules().add(rule);
+        saveSessions();
+        applyRule(session, rule);
+    }
+
+    // Bind the rule on the session's tunnel off the FX thread and report the outcome in its row
+    public void applyRule(SessionStatus session, ForwardRule rule) {
+        SSHTunnelManager manager = session.getSshTunnelManager();
+        if (manager == null) {
+            rule.setStatus("Stopped");
+            return;
+        }
+        rule.setStatus("Starting");
+        TaskExecutors.getInstance().blocking().execute(() -> {
+            try {
+                manager.addRule(rule);
+                Platform.runLater(() -> rule.setStatus("Active"));
+            } catch (JSchException | IOException e) {
+                LogManager.getInstance().log("Failed to add rule " + rule.describe() + " to " + session.getConnectionName() + ": "
+                        + e.getMessage(), LogManager.LogLevel.ERROR);
+                Platform.runLater(() -> rule.setStatus("Failed: " + e.getMessage()));
+            }
+        });
+    }
+
+    public void removeRule(SessionStatus session, ForwardRule rule) {
+        session.getRules().remove(rule);
+        saveSessions();
+        SSHTunnelManager manager = session.getSshTunnelManager();
+        if (manager != null) {
+            TaskExecutors.getInstance().blocking().execute(() -> manager.removeRule(rule));
+        }
+    }
+
     // Modify addSession to save sessions after adding
     public void addSession(SessionStatus session) {
         sessions.add(session);
@@ -109,13 +209,28 @@ public class SessionManager {
         private String remoteHost;
         private String remotePort;
         private String mode;
+        private String engine;
+        private long lazyIdleSeconds;
+        private long uploadLimit;
+        private long downloadLimit;
+        private int weight = 1;
+        private TunnelTuning tuning = new TunnelTuning();
+        private int stripes = 1;
+        private String stripePolicy;
+        private String balanceProfiles;
+        private String balancePolicy;
+        private List<ForwardRuleData> rules = new ArrayList<>();
+        private boolean running;
 
         // Constructors, getters, and setters
 
         public SessionStatusData() {}
 
         public SessionStatusData(String sessionNumber, String sessionId, String connectionName, String profileId, String sshHost,
-                                 String localHost, String localPort, String remoteHost, String remotePort, String mode) {
+                                 String localHost, String localPort, String remoteHost, String remotePort, String mode, String engine,
+                                 long lazyIdleSeconds, long uploadLimit, long downloadLimit, int weight,
+                                 TunnelTuning tuning, int stripes, String stripePolicy, String balanceProfiles,
+                                 String balancePolicy, List<ForwardRuleData> rules, boolean running) {
             this.sessionNumber = sessionNumber;
             this.sessionId = sessionId;
             this.connectionName = connectionName;
@@ -126,6 +241,18 @@ public class SessionManager {
             this.remoteHost = remoteHost;
             this.remotePort = remotePort;
             this.mode = mode;
+            this.engine = engine;
+            this.lazyIdleSeconds = lazyIdleSeconds;
+            this.uploadLimit = uploadLimit;
+            this.downloadLimit = downloadLimit;
+            this.weight = weight;
+            this.tuning = tuning;
+            this.stripes = stripes;
+            this.stripePolicy = stripePolicy;
+            this.balanceProfiles = balanceProfiles;
+            this.balancePolicy = balancePolicy;
+            this.rules = rules;
+            this.running = running;
         }
 
         public String getSessionNumber() {
@@ -207,5 +334,175 @@ public class SessionManager {
         public void setMode(String mode) {
             this.mode = mode;
         }
+
+        public String getEngine() {
+            return engine;
+        }
+
+        public void setEngine(String engine) {
+            this.engine = engine;
+        }
+
+        public long getLazyIdleSeconds() {
+            return lazyIdleSeconds;
+        }
+
+        public void setLazyIdleSeconds(long lazyIdleSeconds) {
+            this.lazyIdleSeconds = lazyIdleSeconds;
+        }
+
+        public long getUploadLimit() {
+            return uploadLimit;
+        }
+
+        public void setUploadLimit(long uploadLimit) {
+            this.uploadLimit = uploadLimit;
+        }
+
+        public long getDownloadLimit() {
+            return downloadLimit;
+        }
+
+        public void setDownloadLimit(long downloadLimit) {
+            this.downloadLimit = downloadLimit;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+
+        public TunnelTuning getTuning() {
+            return tuning;
+        }
+
+        public void setTuning(TunnelTuning tuning) {
+            this.tuning = tuning;
+        }
+
+        public int getStripes() {
+            return stripes;
+        }
+
+        public void setStripes(int stripes) {
+            this.stripes = stripes;
+        }
+
+        public String getStripePolicy() {
+            return stripePolicy;
+        }
+
+        public void setStripePolicy(String stripePolicy) {
+            this.stripePolicy = stripePolicy;
+        }
+
+        public String getBalanceProfiles() {
+            return balanceProfiles;
+        }
+
+        public void setBalanceProfiles(String balanceProfiles) {
+            this.balanceProfiles = balanceProfiles;
+        }
+
+        public String getBalancePolicy() {
+            return balancePolicy;
+        }
+
+        public void setBalancePolicy(String balancePolicy) {
+            this.balancePolicy = balancePolicy;
+        }
+
+        public List<ForwardRuleData> getRules() {
+            return rules;
+        }
+
+        public void setRules(List<ForwardRuleData> rules) {
+            this.rules = rules;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public void setRunning(boolean running) {
+            this.running = running;
+        }
+    }
+
+    // Nested class for forwarding rule serialization; counters and status are not persisted
+    public static class ForwardRuleData {
+        private String mode;
+        private String localHost;
+        private int localPort;
+        private String remoteHost;
+        private int remotePort;
+        private String engine;
+
+        public ForwardRuleData() {}
+
+        public ForwardRuleData(ForwardRule rule) {
+            this.mode = rule.getMode().getFlag();
+            this.localHost = rule.getLocalHost();
+            this.localPort = rule.getLocalPort();
+            this.remoteHost = rule.getRemoteHost();
+            this.remotePort = rule.getRemotePort();
+            this.engine = rule.getEngine().name();
+        }
+
+        ForwardRule toRule() {
+            return new ForwardRule(SSHTunnelManager.TunnelMode.fromFlag(mode), localHost, localPort, remoteHost, remotePort,
+                    engine != null ? SSHTunnelManager.ForwardingEngine.valueOf(engine) : SSHTunnelManager.ForwardingEngine.JSCH);
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public void setMode(String mode) {
+            this.mode = mode;
+        }
+
+        public String getLocalHost() {
+            return localHost;
+        }
+
+        public void setLocalHost(String localHost) {
+            this.localHost = localHost;
+        }
+
+        public int getLocalPort() {
+            return localPort;
+        }
+
+        public void setLocalPort(int localPort) {
+            this.localPort = localPort;
+        }
+
+        public String getRemoteHost() {
+            return remoteHost;
+        }
+
+        public void setRemoteHost(String remoteHost) {
+            this.remoteHost = remoteHost;
+        }
+
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        public void setRemotePort(int remotePort) {
+            this.remotePort = remotePort;
+        }
+
+        public String getEngine() {
+            return engine;
+        }
+
+        public void setEngine(String engine) {
+            this.engine = engine;
+        }
     }
 }
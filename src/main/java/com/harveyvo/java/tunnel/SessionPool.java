@@ -0,0 +1,148 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Reference-counted SSH sessions shared by every tunnel that uses the same profile identity
+// (host, port, user and credentials). The first tunnel pays for TCP, KEX and auth; later tunnels
+// attach their forwards to the live session, which is closed when the last lease is released.
+public class SessionPool {
+
+    private final Map<String, PooledSession> sessions = new ConcurrentHashMap<>();
+    private final LogManager logManager = LogManager.getInstance();
+
+    // Opens and connects a new session for a profile
+    public interface Connector {
+        Session connect(SSHProfile profile) throws JSchException;
+    }
+
+    private SessionPool() {
+    }
+
+    private static class SessionPoolHolder {
+        private static final SessionPool INSTANCE = new SessionPool();
+    }
+
+    public static SessionPool getInstance() {
+        return SessionPoolHolder.INSTANCE;
+    }
+
+    // Attach to the live session for this profile, connecting it first if there is none
+    public Lease acquire(SSHProfile profile, Connector connector) throws JSchException {
+        return acquire(profile, connector, 0);
+    }
+
+    // Stripe n > 0 is a further session to the same identity, for tunnels spread over several sessions
+    public Lease acquire(SSHProfile profile, Connector connector, int stripe) throws JSchException {
+        String key = stripe > 0 ? keyOf(profile) + "#" + stripe : keyOf(profile);
+        while (true) {
+            PooledSession pooled = sessions.computeIfAbsent(key, PooledSession::new);
+            synchronized (pooled) {
+                if (pooled.retired) {
+                    continue;  // Released concurrently, pick up the replacement entry
+                }
+                long start = System.nanoTime();
+                boolean reused = pooled.session != null && pooled.session.isConnected();
+                if (!reused) {
+                    if (pooled.session != null) {
+                        pooled.session.disconnect();  // Lost; make sure its threads and listeners are gone
+                    }
+                    try {
+                        pooled.session = connector.connect(profile);
+                    } catch (JSchException e) {
+                        if (pooled.refCount == 0) {
+                            pooled.retired = true;
+                            sessions.remove(key, pooled);
+                        }
+                        throw e;
+                    }
+                }
+                pooled.refCount++;
+                long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+                logManager.log((reused ? "Reused" : "Opened") + " SSH session to " + profile.getSshHost() + ":" + profile.getSshPort()
+                        + " in " + elapsedMs + " ms (" + pooled.refCount + " tunnel(s) attached)");
+                return new Lease(pooled);
+            }
+        }
+    }
+
+    private void release(PooledSession pooled) {
+        Session toClose = null;
+        synchronized (pooled) {
+            pooled.refCount--;
+            if (pooled.refCount <= 0) {
+                pooled.retired = true;
+                sessions.remove(pooled.key, pooled);
+                toClose = pooled.session;
+                pooled.session = null;
+            }
+        }
+        if (toClose != null && toClose.isConnected()) {
+            toClose.disconnect();
+            logManager.log("Closed pooled SSH session to " + toClose.getHost() + ":" + toClose.getPort());
+        }
+    }
+
+    // Sessions are shared only between identical identities, algorithm preferences and jump chains;
+    // credentials are hashed, never kept in the key
+    static String keyOf(SSHProfile profile) {
+        String secret = profile.getAuthMethod() == SSHProfile.AuthMethod.SSH_KEY
+                ? profile.getSshKeyContent() + "\0" + profile.getPassphrase()
+                : profile.getPassword();
+        String algorithms = profile.getCiphers() + "|" + profile.getMacs() + "|" + profile.getKexAlgorithms() + "|" + profile.isCompression();
+        return profile.getUsername() + "@" + profile.getSshHost() + ":" + profile.getSshPort()
+                + "/" + profile.getAuthMethod() + "/" + sha256(String.valueOf(secret)) + "/" + algorithms
+                + "/via " + String.join(",", JumpHosts.parse(profile.getJumpHosts()));
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class PooledSession {
+        private final String key;
+        private Session session;
+        private int refCount;
+        private boolean retired;
+
+        private PooledSession(String key) {
+            this.key = key;
+        }
+    }
+
+    // A tunnel's hold on a pooled session
+    public class Lease {
+        private final PooledSession pooled;
+        private final Session session;
+        private boolean released;
+
+        private Lease(PooledSession pooled) {
+            this.pooled = pooled;
+            this.session = pooled.session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            SessionPool.this.release(pooled);
+        }
+    }
+}
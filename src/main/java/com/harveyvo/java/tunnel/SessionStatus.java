@@ -1,12 +1,12 @@
 package com.harveyvo.java.tunnel;
 
-import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class SessionStatus {
     private final StringProperty sessionNumber;
@@ -23,14 +23,63 @@ public class SessionStatus {
     private final StringProperty bytesSent;
     private final StringProperty bytesReceived;
     private final StringProperty mode;
-
-    private Timer timer;
-    private int elapsedSeconds = 0;
-
-    private SSHTunnelManager sshTunnelManager;
+    private final StringProperty reconnects;
+    private final StringProperty rtt;
+    private final StringProperty warmup;
+    private final StringProperty rate;
+    private final StringProperty sessionBreakdown;
+    private final StringProperty connectBreakdown;
+
+    // Monotonic clock: elapsed time is derived from nanoTime stamps, so GC pauses and load cannot make it drift
+    private volatile long startedAtNanos;
+    private volatile long stoppedAtNanos;
+    private volatile boolean timerRunning;
+    private long displayedSeconds = -1;
+    // Last counter values shown, so unchanged rows are not re-rendered
+    private long displayedBytesSent = -1;
+    private long displayedBytesReceived = -1;
+    private long displayedRttMicros = -2;
+    // Throughput is measured over at least RATE_WINDOW_NANOS of counter samples
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private long rateSampleNanos;
+    private long rateSampleSent;
+    private long rateSampleReceived;
+    // What the rate column shows, at the precision it is shown with (see rateStep)
+    private long displayedUpStep = Long.MIN_VALUE;
+    private long displayedDownStep = Long.MIN_VALUE;
+    private long displayedUpLimit = -1;
+    private long displayedDownLimit = -1;
+    private long[] memberSampleBytes = new long[0];
+
+    // Written by TunnelSupervisor on the FX thread
+    private int reconnectCount;
+    // Written by lazy tunnels on the FX thread
+    private int warmupCount;
+    private long totalWarmupMillis;
+
+    // Set on the FX thread, read by the launcher and supervisor threads
+    private volatile SSHTunnelManager sshTunnelManager;
+    // Was running when last saved and has not been started or stopped since; startup restore picks these
+    private volatile boolean wasRunning;
+    private SSHTunnelManager.ForwardingEngine engine = SSHTunnelManager.ForwardingEngine.JSCH;
+    // Seconds without clients before a lazy tunnel closes its SSH session; 0 for a tunnel that stays connected
+    private long lazyIdleSeconds;
+    // Tunnel bandwidth limits in KB/s (0 = unlimited) and its weight when sharing a limited session
+    private long uploadLimit;
+    private long downloadLimit;
+    private int weight = 1;
+    private TunnelTuning tuning = new TunnelTuning();
+    // Parallel SSH sessions the tunnel's clients are spread over
+    private int stripes = 1;
+    private SessionStripes.Policy stripePolicy = SessionStripes.Policy.LEAST_LOADED;
+    // Further profiles a load-balanced tunnel spreads its clients over, besides profileId; empty otherwise
+    private String balanceProfiles;
+    private LoadBalancer.Policy balancePolicy = LoadBalancer.Policy.LEAST_CONNECTIONS;
+    // Further forwards on the same SSH session, shown as child rows
+    private final List<ForwardRule> rules = new CopyOnWriteArrayList<>();
 
     public SessionStatus(String sessionNumber, String connectionName, String profileId, String sshHost, String localHost, String localPort,
-                         String remoteHost, String remotePort, Boolean isLocal, String status) {
+                         String remoteHost, String remotePort, SSHTunnelManager.TunnelMode tunnelMode, String status) {
         this.sessionNumber = new SimpleStringProperty(sessionNumber);
         this.sessionId = new SimpleStringProperty(UUID.randomUUID().toString());
         this.connectionName = new SimpleStringProperty(connectionName);
@@ -41,10 +90,16 @@ public class SessionStatus {
         this.remoteHost = new SimpleStringProperty(remoteHost);
         this.remotePort = new SimpleStringProperty(remotePort);
         this.status = new SimpleStringProperty(status);
-        this.mode = new SimpleStringProperty(isLocal ? "-L" : "-R");
+        this.mode = new SimpleStringProperty(tunnelMode.getFlag());
         this.timerText = new SimpleStringProperty("00:00:00");
         this.bytesSent = new SimpleStringProperty("0 MB");
         this.bytesReceived = new SimpleStringProperty("0 MB");
+        this.reconnects = new SimpleStringProperty("0");
+        this.rtt = new SimpleStringProperty("-");
+        this.warmup = new SimpleStringProperty("-");
+        this.rate = new SimpleStringProperty("-");
+        this.sessionBreakdown = new SimpleStringProperty("-");
+        this.connectBreakdown = new SimpleStringProperty("-");
     }
 
     // Getter and setter for SSHTunnelManager
@@ -54,17 +109,287 @@ public class SessionStatus {
 
     public void setSshTunnelManager(SSHTunnelManager sshTunnelManager) {
         this.sshTunnelManager = sshTunnelManager;
+        this.wasRunning = false;
+    }
+
+    public boolean isWasRunning() {
+        return wasRunning;
+    }
+
+    public void setWasRunning(boolean wasRunning) {
+        this.wasRunning = wasRunning;
+    }
+
+    public SSHTunnelManager.ForwardingEngine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(SSHTunnelManager.ForwardingEngine engine) {
+        this.engine = engine;
+    }
+
+    public long getUploadLimit() {
+        return uploadLimit;
+    }
+
+    public void setUploadLimit(long uploadLimit) {
+        this.uploadLimit = uploadLimit;
+    }
+
+    public long getDownloadLimit() {
+        return downloadLimit;
+    }
+
+    public void setDownloadLimit(long downloadLimit) {
+        this.downloadLimit = downloadLimit;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public SessionStripes.Policy getStripePolicy() {
+        return stripePolicy;
+    }
+
+    public void setStripePolicy(SessionStripes.Policy stripePolicy) {
+        this.stripePolicy = stripePolicy;
+    }
+
+    public List<ForwardRule> getRules() {
+        return rules;
+    }
+
+    public boolean isBalanced() {
+        return balanceProfiles != null && !balanceProfiles.trim().isEmpty();
+    }
+
+    public String getBalanceProfiles() {
+        return balanceProfiles;
+    }
+
+    public void setBalanceProfiles(String balanceProfiles) {
+        this.balanceProfiles = balanceProfiles;
+    }
+
+    public LoadBalancer.Policy getBalancePolicy() {
+        return balancePolicy;
+    }
+
+    public void setBalancePolicy(LoadBalancer.Policy balancePolicy) {
+        this.balancePolicy = balancePolicy;
+    }
+
+    public TunnelTuning getTuning() {
+        return tuning;
+    }
+
+    public void setTuning(TunnelTuning tuning) {
+        this.tuning = tuning;
+    }
+
+    public boolean isLazy() {
+        return lazyIdleSeconds > 0;
+    }
+
+    public long getLazyIdleSeconds() {
+        return lazyIdleSeconds;
+    }
+
+    public void setLazyIdleSeconds(long lazyIdleSeconds) {
+        this.lazyIdleSeconds = lazyIdleSeconds;
+    }
+
+    // Pull the tunnel's traffic counters into the table; must run on the FX thread
+    public void refreshDataUsage() {
+        SSHTunnelManager manager = sshTunnelManager;
+        if (manager == null) {
+            return;
+        }
+        long sent = manager.getBytesSent();
+        long received = manager.getBytesReceived();
+        if (sent != displayedBytesSent) {
+            displayedBytesSent = sent;
+            bytesSent.set(formatMegabytes(sent));
+        }
+        if (received != displayedBytesReceived) {
+            displayedBytesReceived = received;
+            bytesReceived.set(formatMegabytes(received));
+        }
+        refreshRate(manager, sent, received);
+        for (ForwardRule rule : rules) {
+            rule.refresh();
+        }
+    }
+
+    // Observed throughput per direction next to the limit in force, e.g. "↑ 1.2 MB/s of 2.0 ↓ 40 KB/s"
+    private void refreshRate(SSHTunnelManager manager, long sent, long received) {
+        long now = System.nanoTime();
+        if (rateSampleNanos == 0) {
+            rateSampleNanos = now;
+            rateSampleSent = sent;
+            rateSampleReceived = received;
+            return;
+        }
+        long elapsed = now - rateSampleNanos;
+        if (elapsed < RATE_WINDOW_NANOS) {
+            return;
+        }
+        double seconds = elapsed / 1e9;
+        refreshStripeRates(manager.getStripes(), seconds);
+        refreshBackends(manager.getBalancer(), seconds);
+        refreshConnect(manager);
+        BandwidthShaper shaper = manager.getTrafficStats().getShaper();
+        double upRate = (sent - rateSampleSent) / seconds;
+        double downRate = (received - rateSampleReceived) / seconds;
+        long upStep = rateStep(upRate);
+        long downStep = rateStep(downRate);
+        long upLimit = shaper.getUpLimit();
+        long downLimit = shaper.getDownLimit();
+        // Formatted only when the text would differ, which for an idle or steady tunnel is rarely
+        if (upStep != displayedUpStep || downStep != displayedDownStep || upLimit != displayedUpLimit || downLimit != displayedDownLimit) {
+            displayedUpStep = upStep;
+            displayedDownStep = downStep;
+            displayedUpLimit = upLimit;
+            displayedDownLimit = downLimit;
+            rate.set("↑ " + formatRate(upRate) + formatLimit(upLimit) + "  ↓ " + formatRate(downRate) + formatLimit(downLimit));
+        }
+        rateSampleNanos = now;
+        rateSampleSent = sent;
+        rateSampleReceived = received;
     }
 
-    // Method to update data usage
-    public void updateDataUsage(long sentBytes, long receivedBytes) {
-        Platform.runLater(() -> {
-            String sentDisplay = String.format("%.2f MB", sentBytes / (1024.0 * 1024.0));
-            String receivedDisplay = String.format("%.2f MB", receivedBytes / (1024.0 * 1024.0));
+    // Both directions per stripe with its open channels, e.g. "#0 3.1 MB/s (4) | #1 down"
+    private void refreshStripeRates(SessionStripes set, double seconds) {
+        if (set == null) {
+            return;
+        }
+        List<SessionStripes.Stripe> list = set.getStripes();
+        if (memberSampleBytes.length != list.size()) {
+            memberSampleBytes = new long[list.size()];
+        }
+        StringBuilder text = new StringBuilder();
+        for (SessionStripes.Stripe stripe : list) {
+            long bytes = stripe.getBytesSent() + stripe.getBytesReceived();
+            long delta = bytes - memberSampleBytes[stripe.getIndex()];
+            memberSampleBytes[stripe.getIndex()] = bytes;
+            if (text.length() > 0) {
+                text.append(" | ");
+            }
+            text.append('#').append(stripe.getIndex()).append(' ');
+            if (stripe.isUp()) {
+                text.append(formatRate(delta / seconds)).append(" (").append(stripe.getActiveChannels()).append(')');
+            } else {
+                text.append("down");
+            }
+        }
+        if (!text.toString().equals(sessionBreakdown.get())) {
+            sessionBreakdown.set(text.toString());
+        }
+    }
+
+    // Each backend of a load-balanced tunnel, e.g. "bastion1 12.0 ms 2.1 MB/s (3) | bastion2 down (1 failed)"
+    private void refreshBackends(LoadBalancer balancer, double seconds) {
+        if (balancer == null) {
+            return;
+        }
+        List<LoadBalancer.Backend> list = balancer.getBackends();
+        if (memberSampleBytes.length != list.size()) {
+            memberSampleBytes = new long[list.size()];
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < list.size(); i++) {
+            LoadBalancer.Backend backend = list.get(i);
+            long bytes = backend.getBytesSent() + backend.getBytesReceived();
+            long delta = bytes - memberSampleBytes[i];
+            memberSampleBytes[i] = bytes;
+            if (text.length() > 0) {
+                text.append(" | ");
+            }
+            text.append(backend.getProfileName()).append(' ');
+            if (backend.isHealthy()) {
+                text.append(String.format("%.1f ms ", backend.getRttMicros() / 1000.0))
+                        .append(formatRate(delta / seconds)).append(" (").append(backend.getActiveChannels()).append(')');
+            } else {
+                text.append("down");
+            }
+            if (backend.getFailedChannels() > 0) {
+                text.append(" (").append(backend.getFailedChannels()).append(" failed)");
+            }
+        }
+        if (!text.toString().equals(sessionBreakdown.get())) {
+            sessionBreakdown.set(text.toString());
+        }
+    }
+
+    public StringProperty sessionBreakdownProperty() {
+        return sessionBreakdown;
+    }
+
+    // Phases of the handshake behind the current session, and how long the newest NIO client waited
+    // for its channel, e.g. "DNS 0.4 | TCP 21.0 | Banner 22.3 | KEX 48.9 | Auth 61.2 ms | Channel 20.8 ms"
+    private void refreshConnect(SSHTunnelManager manager) {
+        ConnectTiming timing = manager.getConnectTiming();
+        if (timing == null) {
+            return;  // Lazy tunnel while idle, or load-balanced; keep the last breakdown
+        }
+        String text = timing.describe();
+        long channelNanos = manager.getTrafficStats().getLastChannelOpenNanos();
+        if (channelNanos >= 0) {
+            text += " | Channel " + ConnectTiming.formatMillis(channelNanos) + " ms";
+        }
+        if (!text.equals(connectBreakdown.get())) {
+            connectBreakdown.set(text);
+        }
+    }
 
-            this.bytesSent.set(sentDisplay);
-            this.bytesReceived.set(receivedDisplay);
-        });
+    public StringProperty connectBreakdownProperty() {
+        return connectBreakdown;
+    }
+
+    static String formatRate(double bytesPerSecond) {
+        if (bytesPerSecond >= 1024 * 1024) {
+            return String.format("%.1f MB/s", bytesPerSecond / (1024 * 1024));
+        }
+        return String.format("%.0f KB/s", bytesPerSecond / 1024);
+    }
+
+    // formatRate's precision: tenths of MB/s from 1 MB/s (negative), whole KB/s below
+    private static long rateStep(double bytesPerSecond) {
+        if (bytesPerSecond >= 1024 * 1024) {
+            return -Math.round(bytesPerSecond * 10 / (1024 * 1024));
+        }
+        return Math.round(bytesPerSecond / 1024);
+    }
+
+    private static String formatLimit(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? " (max " + formatRate(bytesPerSecond) + ")" : "";
+    }
+
+    // Pull the last keepalive round trip into the table; must run on the FX thread
+    public void refreshLatency() {
+        SSHTunnelManager manager = sshTunnelManager;
+        long rttMicros = manager != null ? manager.getRttMicros() : -1;
+        if (rttMicros != displayedRttMicros) {
+            displayedRttMicros = rttMicros;
+            rtt.set(rttMicros < 0 ? "-" : String.format("%.1f ms", rttMicros / 1000.0));
+        }
+    }
+
+    static String formatMegabytes(long bytes) {
+        return String.format("%.2f MB", bytes / (1024.0 * 1024.0));
     }
 
     // Getters and setters for the new properties
@@ -80,27 +405,36 @@ public class SessionStatus {
         return profileId.get();
     }
 
-    public void startTimer(Runnable onTimerUpdate) {
-        timer = new Timer(true);
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                elapsedSeconds++;
-                String time = String.format("%02d:%02d:%02d", elapsedSeconds / 3600, (elapsedSeconds % 3600) / 60, elapsedSeconds % 60);
-                Platform.runLater(() -> {
-                    timerText.set(time);
-                    onTimerUpdate.run();
-                });
-            }
-        }, 1000, 1000);
+    // The clock is rendered by UiPulse; starting it only records the start stamp
+    public void startTimer() {
+        startedAtNanos = System.nanoTime();
+        timerRunning = true;
     }
 
     public void stopTimer() {
-        if (timer != null) {
-            timer.cancel();
+        if (timerRunning) {
+            stoppedAtNanos = System.nanoTime();
+            timerRunning = false;
         }
     }
 
+    // Update the clock text if the displayed second changed; must run on the FX thread
+    public void refreshClock(long nowNanos) {
+        if (startedAtNanos == 0) {
+            return;
+        }
+        long seconds = elapsedSeconds(nowNanos);
+        if (seconds != displayedSeconds) {
+            displayedSeconds = seconds;
+            timerText.set(String.format("%02d:%02d:%02d", seconds / 3600, (seconds % 3600) / 60, seconds % 60));
+        }
+    }
+
+    private long elapsedSeconds(long nowNanos) {
+        long end = timerRunning ? nowNanos : stoppedAtNanos;
+        return TimeUnit.NANOSECONDS.toSeconds(end - startedAtNanos);
+    }
+
     public String getSessionNumber() {
         return sessionNumber.get();
     }
@@ -249,6 +583,10 @@ public class SessionStatus {
         return mode.get();
     }
 
+    public SSHTunnelManager.TunnelMode getTunnelMode() {
+        return SSHTunnelManager.TunnelMode.fromFlag(mode.get());
+    }
+
     public StringProperty modeProperty() {
         return mode;
     }
@@ -257,20 +595,37 @@ public class SessionStatus {
         this.mode.set(mode);
     }
 
-    public Timer getTimer() {
-        return timer;
+    // Record a completed reconnect and how long the tunnel was down; must run on the FX thread
+    public void recordRecovery(long recoveryMillis) {
+        reconnectCount++;
+        reconnects.set(reconnectCount + " (last " + recoveryMillis + " ms)");
+    }
+
+    public StringProperty reconnectsProperty() {
+        return reconnects;
+    }
+
+    public StringProperty rttProperty() {
+        return rtt;
+    }
+
+    // Record how long the first client of a lazy tunnel waited for the SSH session; must run on the FX thread
+    public void recordWarmup(long warmupMillis) {
+        warmupCount++;
+        totalWarmupMillis += warmupMillis;
+        warmup.set(warmupMillis + " ms (avg " + totalWarmupMillis / warmupCount + " ms, " + warmupCount + "x)");
     }
 
-    public void setTimer(Timer timer) {
-        this.timer = timer;
+    public StringProperty rateProperty() {
+        return rate;
     }
 
-    public int getElapsedSeconds() {
-        return elapsedSeconds;
+    public StringProperty warmupProperty() {
+        return warmup;
     }
 
-    public void setElapsedSeconds(int elapsedSeconds) {
-        this.elapsedSeconds = elapsedSeconds;
+    public long getElapsedSeconds() {
+        return startedAtNanos == 0 ? 0 : elapsedSeconds(System.nanoTime());
     }
     // Method to handle log messages
     public void appendLog(String message) {
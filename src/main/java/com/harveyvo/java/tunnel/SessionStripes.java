@@ -0,0 +1,263 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spreads the clients of one NIO tunnel over several SSH sessions to the same profile. A session is a
+// single TCP flow with one cipher stream per direction, so one busy tunnel levels off well below what
+// the link carries; N stripes give it N of each. Stripe 0 is the tunnel's own session, which the
+// supervisor keeps alive. The others are pooled under their stripe number, so striped tunnels of one
+// profile share them, and a stripe that dies leaves the rotation until it is reopened in the background.
+public class SessionStripes implements NioForwarder.ChannelOpener {
+
+    public enum Policy {
+        LEAST_LOADED, ROUND_ROBIN
+    }
+
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 60_000;
+
+    // The tunnel's own session, failing while it is being reconnected
+    public interface PrimarySession {
+        Session get() throws JSchException;
+    }
+
+    private final SSHProfile profile;
+    private final Policy policy;
+    private final PrimarySession primary;
+    private final String name;
+    private final Stripe[] stripes;
+    // Which stripe carries each open channel, so closing it frees the right slot
+    private final Map<ChannelDirectTCPIP, Stripe> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final LogManager logManager = LogManager.getInstance();
+    private volatile boolean closed;
+
+    public SessionStripes(SSHProfile profile, int count, Policy policy, PrimarySession primary, String name) {
+        this.profile = profile;
+        this.policy = policy;
+        this.primary = primary;
+        this.name = name;
+        this.stripes = new Stripe[Math.max(1, count)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(i);
+        }
+    }
+
+    // Open the extra sessions in the background; clients use the stripes that are already up meanwhile
+    public void start() {
+        for (int i = 1; i < stripes.length; i++) {
+            Stripe stripe = stripes[i];
+            TaskExecutors.getInstance().blocking().execute(() -> open(stripe));
+        }
+    }
+
+    @Override
+    public ChannelDirectTCPIP openChannel(String host, int port) throws JSchException {
+        for (int attempt = 0; attempt < stripes.length; attempt++) {
+            Stripe stripe = pick();
+            if (stripe == null) {
+                break;
+            }
+            Session session = stripe.session();
+            if (session == null) {
+                continue;  // Went down since the pick
+            }
+            ChannelDirectTCPIP channel;
+            try {
+                channel = NioForwarder.sessionOpener(session).openChannel(host, port);
+            } catch (JSchException e) {
+                stripe.lost("channel open failed: " + e.getMessage());
+                continue;
+            }
+            stripe.activeChannels.incrementAndGet();
+            channels.put(channel, stripe);
+            return channel;
+        }
+        throw new JSchException("None of the " + stripes.length + " SSH sessions of " + name + " is connected");
+    }
+
+    // The client's bytes are also counted on the stripe, for the per-stripe rates
+    @Override
+    public void channelOpened(ChannelDirectTCPIP channel, TrafficStats.ConnectionTraffic traffic) {
+        Stripe stripe = channels.get(channel);
+        if (stripe != null) {
+            traffic.alsoCountIn(stripe.stats);
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelDirectTCPIP channel) {
+        Stripe stripe = channels.remove(channel);
+        if (stripe != null) {
+            stripe.activeChannels.decrementAndGet();
+        }
+    }
+
+    private Stripe pick() {
+        int start = Math.floorMod(nextStripe.getAndIncrement(), stripes.length);
+        Stripe best = null;
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(start + i) % stripes.length];
+            if (!stripe.isUp()) {
+                stripe.lost("session closed");  // Noticed here when the profile has no keepalive
+                continue;
+            }
+            if (policy == Policy.ROUND_ROBIN) {
+                return stripe;
+            }
+            // Ties go to the stripe after the last pick, so equal stripes still take turns
+            if (best == null || stripe.activeChannels.get() < best.activeChannels.get()) {
+                best = stripe;
+            }
+        }
+        return best;
+    }
+
+    // Connecting blocks, so this runs on the blocking executor; a failure retries with jittered backoff
+    private void open(Stripe stripe) {
+        if (closed) {
+            return;
+        }
+        SessionPool.Lease lease;
+        try {
+            lease = SessionPool.getInstance().acquire(profile, SSHTunnelManager::openSession, stripe.index);
+        } catch (JSchException e) {
+            logManager.log("Stripe " + stripe.index + " of " + name + " failed to connect: " + e.getMessage(), LogManager.LogLevel.WARNING);
+            stripe.scheduleRetry();
+            return;
+        }
+        synchronized (stripe) {
+            if (closed) {
+                lease.release();
+                return;
+            }
+            stripe.lease = lease;
+            stripe.attempt = 0;
+            KeepaliveMonitor.getInstance().watch(lease.getSession(), profile, stripe.onDead);
+        }
+        logManager.log("Stripe " + stripe.index + " of " + name + " connected");
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public int getConnectedStripeCount() {
+        int connected = 0;
+        for (Stripe stripe : stripes) {
+            if (stripe.isUp()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    public List<Stripe> getStripes() {
+        return List.of(stripes);
+    }
+
+    public void close() {
+        closed = true;
+        for (int i = 1; i < stripes.length; i++) {
+            stripes[i].release(true);
+        }
+    }
+
+    // One of the sessions and the channels it carries
+    public class Stripe {
+        private final int index;
+        private final AtomicInteger activeChannels = new AtomicInteger();
+        private final TrafficStats stats = new TrafficStats();
+        private final Runnable onDead = () -> lost("keepalive failed");
+        // Guarded by this; stripe 0 has no lease of its own
+        private SessionPool.Lease lease;
+        private ScheduledFuture<?> retry;
+        private int attempt;
+
+        private Stripe(int index) {
+            this.index = index;
+        }
+
+        private Session session() {
+            if (index == 0) {
+                try {
+                    return primary.get();
+                } catch (JSchException e) {
+                    return null;
+                }
+            }
+            SessionPool.Lease current;
+            synchronized (this) {
+                current = lease;
+            }
+            return current != null && current.getSession().isConnected() ? current.getSession() : null;
+        }
+
+        public boolean isUp() {
+            return session() != null;
+        }
+
+        // Out of the rotation until reopened; stripe 0 is left to the tunnel's supervisor
+        private void lost(String reason) {
+            if (index == 0 || closed) {
+                return;
+            }
+            synchronized (this) {
+                if (lease == null) {
+                    return;  // Already being reopened
+                }
+                release(false);
+            }
+            logManager.log("Stripe " + index + " of " + name + " went down (" + reason + "), reconnecting", LogManager.LogLevel.WARNING);
+            scheduleRetry();
+        }
+
+        private synchronized void release(boolean cancelRetry) {
+            if (cancelRetry && retry != null) {
+                retry.cancel(false);
+                retry = null;
+            }
+            if (lease != null) {
+                KeepaliveMonitor.getInstance().unwatch(lease.getSession(), onDead);
+                lease.release();
+                lease = null;
+            }
+        }
+
+        private synchronized void scheduleRetry() {
+            if (closed) {
+                return;
+            }
+            long bound = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt++, 16));
+            long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+            retry = SharedScheduler.getInstance().schedule(() -> TaskExecutors.getInstance().blocking().execute(() -> open(this)),
+                    delay, TimeUnit.MILLISECONDS);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getActiveChannels() {
+            return activeChannels.get();
+        }
+
+        public long getBytesSent() {
+            return stats.getBytesSent();
+        }
+
+        public long getBytesReceived() {
+            return stats.getBytesReceived();
+        }
+    }
+}
@@ -1,99 +1,248 @@
 package com.harveyvo.java.tunnel;
 
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.value.ObservableValue;
+import javafx.geometry.Pos;
+import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
-import javafx.scene.control.TableCell;
-import javafx.scene.control.TableColumn;
-import javafx.scene.control.TableView;
-import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.TextField;
+import javafx.scene.control.TreeItem;
+import javafx.scene.control.TreeTableCell;
+import javafx.scene.control.TreeTableColumn;
+import javafx.scene.control.TreeTableView;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
-import javafx.beans.property.SimpleStringProperty;
 
+import java.util.List;
+import java.util.function.Function;
+
+// Sessions and, folded under each one, the extra forwarding rules on its SSH connection
 public class SessionTable {
-    private final TableView<SessionStatus> sessionTable;
-    private final ObservableList<SessionStatus> sessionList = FXCollections.observableArrayList();
+    private final TreeTableView<Object> sessionTable;
+    private final TreeItem<Object> root = new TreeItem<>();
+    private final SessionManager sessionManager;
+    private final SessionLauncher sessionLauncher;
+    private final HBox bulkBar;
+
+    public SessionTable(SessionManager sessionManager, SessionLauncher sessionLauncher) {
+        this.sessionManager = sessionManager;
+        this.sessionLauncher = sessionLauncher;
+        this.bulkBar = createBulkBar();
+        sessionTable = new TreeTableView<>(root);
+        sessionTable.setShowRoot(false);
 
-    public SessionTable(SessionManager sessionManager) {
-        sessionTable = new TableView<>();
         // Number column
-        TableColumn<SessionStatus, String> numberCol = new TableColumn<>("No.");
-        numberCol.setCellValueFactory(new PropertyValueFactory<>("sessionNumber"));
+        TreeTableColumn<Object, String> numberCol = column("No.", SessionStatus::sessionNumberProperty, null);
 
-        // Connection Name column
-        TableColumn<SessionStatus, String> connectionNameCol = new TableColumn<>("Connection Name");
-        connectionNameCol.setCellValueFactory(new PropertyValueFactory<>("connectionName"));
+        // Connection Name column; a rule shows its ssh-style spec
+        TreeTableColumn<Object, String> connectionNameCol = column("Connection Name", SessionStatus::connectionNameProperty,
+                rule -> new SimpleStringProperty(rule.describe()));
 
         // SSH Host column
-        TableColumn<SessionStatus, String> sshHostCol = new TableColumn<>("SSH Host");
-        sshHostCol.setCellValueFactory(new PropertyValueFactory<>("sshHost"));
+        TreeTableColumn<Object, String> sshHostCol = column("SSH Host", SessionStatus::sshHostProperty, null);
 
         // Mode column
-        TableColumn<SessionStatus, String> modeCol = new TableColumn<>("Mode");
-        modeCol.setCellValueFactory(cellData -> cellData.getValue().modeProperty());
+        TreeTableColumn<Object, String> modeCol = column("Mode", SessionStatus::modeProperty,
+                rule -> new SimpleStringProperty(rule.getMode().getFlag()));
 
         // Local Host/Port column
-        TableColumn<SessionStatus, String> localCol = new TableColumn<>("Local");
-        localCol.setCellValueFactory(cellData ->
-                new SimpleStringProperty(cellData.getValue().getLocalHost() + ":" + cellData.getValue().getLocalPort())
-        );
+        TreeTableColumn<Object, String> localCol = column("Local",
+                session -> new SimpleStringProperty(session.getLocalHost() + ":" + session.getLocalPort()),
+                rule -> new SimpleStringProperty(rule.getLocalHost() + ":" + rule.getLocalPort()));
 
         // Remote Host/Port column
-        TableColumn<SessionStatus, String> remoteCol = new TableColumn<>("Remote");
-        remoteCol.setCellValueFactory(cellData ->
-                new SimpleStringProperty(cellData.getValue().getRemoteHost() + ":" + cellData.getValue().getRemotePort())
-        );
+        TreeTableColumn<Object, String> remoteCol = column("Remote",
+                session -> new SimpleStringProperty(session.getRemoteHost() + ":" + session.getRemotePort()),
+                rule -> new SimpleStringProperty(rule.getRemoteHost() == null ? "*" : rule.getRemoteHost() + ":" + rule.getRemotePort()));
 
         // Status and timer columns
-        TableColumn<SessionStatus, String> statusCol = new TableColumn<>("Status");
-        statusCol.setCellValueFactory(new PropertyValueFactory<>("status"));
+        TreeTableColumn<Object, String> statusCol = column("Status", SessionStatus::statusProperty, ForwardRule::statusProperty);
+        TreeTableColumn<Object, String> timerCol = column("Time", SessionStatus::timerTextProperty, null);
+
+        // Data usage columns (Bytes Sent/Received); a session counts its rules too
+        TreeTableColumn<Object, String> bytesSentCol = column("Sent", SessionStatus::bytesSentProperty, ForwardRule::bytesSentProperty);
+        TreeTableColumn<Object, String> bytesReceivedCol = column("Received", SessionStatus::bytesReceivedProperty,
+                ForwardRule::bytesReceivedProperty);
+
+        // Observed throughput per direction and the limit in force
+        TreeTableColumn<Object, String> rateCol = column("Rate", SessionStatus::rateProperty, ForwardRule::rateProperty);
 
-        TableColumn<SessionStatus, String> timerCol = new TableColumn<>("Time");
-        timerCol.setCellValueFactory(cellData -> cellData.getValue().timerTextProperty());
+        // Throughput and open channels of each session of a striped or load-balanced tunnel
+        TreeTableColumn<Object, String> stripesCol = column("Sessions", SessionStatus::sessionBreakdownProperty, null);
 
-        // Data usage columns (Bytes Sent/Received)
-        TableColumn<SessionStatus, String> bytesSentCol = new TableColumn<>("Sent");
-        bytesSentCol.setCellValueFactory(cellData -> cellData.getValue().bytesSentProperty());
+        // Round trip of the last keepalive
+        TreeTableColumn<Object, String> rttCol = column("RTT", SessionStatus::rttProperty, null);
 
-        TableColumn<SessionStatus, String> bytesReceivedCol = new TableColumn<>("Received");
-        bytesReceivedCol.setCellValueFactory(cellData -> cellData.getValue().bytesReceivedProperty());
+        // Automatic reconnects and the time the last one took to restore the forwards
+        TreeTableColumn<Object, String> reconnectsCol = column("Reconnects", SessionStatus::reconnectsProperty, null);
 
-        // Action column for stopping sessions
-        TableColumn<SessionStatus, Void> actionCol = new TableColumn<>("Action");
-        actionCol.setCellFactory(param -> new TableCell<>() {
+        // Time the first client of a lazy tunnel waited for the SSH session to come up
+        TreeTableColumn<Object, String> warmupCol = column("Cold Start", SessionStatus::warmupProperty, null);
+
+        // Where the connect time went: DNS, TCP, banner, key exchange, auth and the last channel open
+        TreeTableColumn<Object, String> connectCol = column("Connect", SessionStatus::connectBreakdownProperty, null);
+
+        // Action column: stop a session or add a rule to it, remove a rule
+        TreeTableColumn<Object, Void> actionCol = new TreeTableColumn<>("Action");
+        actionCol.setCellFactory(param -> new TreeTableCell<>() {
             private final Button stopButton = new Button("Stop");
+            private final Button addRuleButton = new Button("Add Rule");
+            private final Button removeButton = new Button("Remove");
+            private final HBox sessionButtons = new HBox(5, stopButton, addRuleButton);
 
             {
                 stopButton.setOnAction(event -> {
-                    SessionStatus session = getTableView().getItems().get(getIndex());
-                    sessionManager.stopSession(session); // Stop the session
-//                    sessionList.remove(session); // Remove it from the table
+                    // Disconnected on the launcher's pool like Stop All, never on the FX thread
+                    SessionStatus session = (SessionStatus) getTableRow().getItem();
+                    if (session.getSshTunnelManager() != null) {
+                        sessionLauncher.stop(List.of(session));
+                    } else {
+                        sessionManager.markStopped(session);
+                    }
+                });
+                addRuleButton.setOnAction(event -> showAddRule((SessionStatus) getTableRow().getItem()));
+                removeButton.setOnAction(event -> {
+                    TreeItem<Object> ruleItem = getTableRow().getTreeItem();
+                    TreeItem<Object> sessionItem = ruleItem.getParent();
+                    sessionManager.removeRule((SessionStatus) sessionItem.getValue(), (ForwardRule) ruleItem.getValue());
+                    sessionItem.getChildren().remove(ruleItem);
                 });
             }
 
             @Override
             public void updateItem(Void item, boolean empty) {
                 super.updateItem(item, empty);
-                if (empty) {
-                    setGraphic(null);
+                Object row = empty || getTableRow() == null ? null : getTableRow().getItem();
+                if (row instanceof SessionStatus) {
+                    setGraphic(sessionButtons);
+                } else if (row instanceof ForwardRule) {
+                    setGraphic(removeButton);
                 } else {
-                    setGraphic(stopButton);
+                    setGraphic(null);
                 }
             }
         });
 
         // Add all columns to the table
-        sessionTable.getColumns().addAll(numberCol, connectionNameCol, sshHostCol, modeCol, localCol, remoteCol, statusCol, timerCol, bytesSentCol, bytesReceivedCol, actionCol);
-        sessionTable.setItems(sessionList);
+        sessionTable.getColumns().addAll(numberCol, connectionNameCol, sshHostCol, modeCol, localCol, remoteCol, statusCol, timerCol, bytesSentCol, bytesReceivedCol, rateCol, stripesCol, rttCol, reconnectsCol, warmupCol, connectCol, actionCol);
+    }
+
+    // Start All / Stop All with the launcher limits and the progress of the current batch
+    private HBox createBulkBar() {
+        SessionLauncher.Settings settings = sessionLauncher.getSettings();
+        Button startAllButton = new Button("Start All");
+        startAllButton.setOnAction(event -> sessionLauncher.startAll());
+        Button stopAllButton = new Button("Stop All");
+        stopAllButton.setOnAction(event -> sessionLauncher.stopAll());
+
+        TextField concurrencyField = new TextField(String.valueOf(settings.getConcurrency()));
+        concurrencyField.setPrefColumnCount(3);
+        TextField perHostField = new TextField(String.valueOf(settings.getPerHost()));
+        perHostField.setPrefColumnCount(3);
+        CheckBox restoreCheckBox = new CheckBox("Restore on startup");
+        restoreCheckBox.setSelected(settings.isRestoreOnStartup());
+        // Invalid numbers fall back to the values in force
+        Runnable applySettings = () -> {
+            sessionLauncher.updateSettings(restoreCheckBox.isSelected(), parseCount(concurrencyField.getText(), settings.getConcurrency()),
+                    parseCount(perHostField.getText(), settings.getPerHost()));
+            concurrencyField.setText(String.valueOf(settings.getConcurrency()));
+            perHostField.setText(String.valueOf(settings.getPerHost()));
+        };
+        concurrencyField.setOnAction(event -> applySettings.run());
+        perHostField.setOnAction(event -> applySettings.run());
+        concurrencyField.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (!focused) {
+                applySettings.run();
+            }
+        });
+        perHostField.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (!focused) {
+                applySettings.run();
+            }
+        });
+        restoreCheckBox.setOnAction(event -> applySettings.run());
+
+        ProgressBar progressBar = new ProgressBar(0);
+        Label progressLabel = new Label();
+        sessionLauncher.setProgressListener((done, failed, total) -> {
+            progressBar.setProgress(total == 0 ? 0 : (double) done / total);
+            progressLabel.setText(done + "/" + total + " done" + (failed > 0 ? ", " + failed + " failed" : ""));
+        });
+
+        HBox bar = new HBox(10, startAllButton, stopAllButton, new Label("Parallel:"), concurrencyField,
+                new Label("Per host:"), perHostField, restoreCheckBox, progressBar, progressLabel);
+        bar.setAlignment(Pos.CENTER_LEFT);
+        return bar;
+    }
+
+    private static int parseCount(String text, int fallback) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    // A column showing a session property on session rows and a rule property (or nothing) on rule rows
+    private static TreeTableColumn<Object, String> column(String title, Function<SessionStatus, ObservableValue<String>> forSession,
+                                                          Function<ForwardRule, ObservableValue<String>> forRule) {
+        TreeTableColumn<Object, String> col = new TreeTableColumn<>(title);
+        col.setCellValueFactory(cellData -> {
+            Object row = cellData.getValue().getValue();
+            if (row instanceof SessionStatus) {
+                return forSession.apply((SessionStatus) row);
+            }
+            if (row instanceof ForwardRule && forRule != null) {
+                return forRule.apply((ForwardRule) row);
+            }
+            return new SimpleStringProperty("");
+        });
+        return col;
+    }
+
+    // Rules need the session's own SSH connection, which lazy and load-balanced tunnels do not keep
+    private void showAddRule(SessionStatus session) {
+        if (session.isLazy() || session.isBalanced()) {
+            Alert alert = new Alert(Alert.AlertType.WARNING);
+            alert.setTitle("Rules Not Supported");
+            alert.setHeaderText(null);
+            alert.setContentText("Forwarding rules can only be added to sessions that keep their own SSH connection open.");
+            alert.showAndWait();
+            return;
+        }
+        new ForwardRuleDialog().show(sessionTable.getScene().getWindow(), session.getConnectionName(), rule -> {
+            sessionManager.addRule(session, rule);
+            TreeItem<Object> sessionItem = findItem(session);
+            if (sessionItem != null) {
+                sessionItem.getChildren().add(new TreeItem<>(rule));
+                sessionItem.setExpanded(true);
+            }
+        });
+    }
+
+    private TreeItem<Object> findItem(SessionStatus session) {
+        for (TreeItem<Object> item : root.getChildren()) {
+            if (item.getValue() == session) {
+                return item;
+            }
+        }
+        return null;
     }
 
     // Return the session table view
     public VBox getSessionTable() {
-        return new VBox(sessionTable);
+        return new VBox(5, bulkBar, sessionTable);
     }
 
-    // Add a session to the table
+    // Add a session to the table, with a child row for each of its rules
     public void addSession(SessionStatus session) {
-        sessionList.add(session);
+        TreeItem<Object> sessionItem = new TreeItem<>(session);
+        for (ForwardRule rule : session.getRules()) {
+            sessionItem.getChildren().add(new TreeItem<>(rule));
+        }
+        root.getChildren().add(sessionItem);
     }
 }
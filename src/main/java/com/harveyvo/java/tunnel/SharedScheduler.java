@@ -0,0 +1,45 @@
+package com.harveyvo.java.tunnel;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// One scheduler thread for all periodic work (session clocks, UI pulses, housekeeping).
+// Tasks must be short; anything that blocks belongs on another executor.
+public class SharedScheduler {
+
+    private final ScheduledExecutorService executor;
+    private final LogManager logManager = LogManager.getInstance();
+
+    private SharedScheduler() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> TaskExecutors.newPlatformThread("shared-scheduler", runnable));
+    }
+
+    private static class SharedSchedulerHolder {
+        private static final SharedScheduler INSTANCE = new SharedScheduler();
+    }
+
+    public static SharedScheduler getInstance() {
+        return SharedSchedulerHolder.INSTANCE;
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(guard(task), initialDelay, period, unit);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor.schedule(guard(task), delay, unit);
+    }
+
+    // A periodic task that throws is silently cancelled by the executor, so failures are logged instead
+    private Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logManager.log("Scheduled task failed: " + e, LogManager.LogLevel.ERROR);
+            }
+        };
+    }
+}
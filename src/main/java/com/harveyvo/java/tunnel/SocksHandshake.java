@@ -0,0 +1,200 @@
+package com.harveyvo.java.tunnel;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Server side of a SOCKS4, SOCKS4a or SOCKS5 CONNECT handshake. It is fed whatever bytes have arrived
+// so far and never blocks, so one event loop can negotiate with any number of clients at once.
+// Host names are passed on unresolved: the SSH server resolves them when it opens the channel.
+public class SocksHandshake {
+
+    public enum Step {
+        NEED_MORE,  // Wait for more bytes from the client
+        REPLY,      // Send getReply() to the client, then feed again
+        CONNECT,    // Open a channel to getHost():getPort(), then send successReply() or failureReply()
+        FAIL        // Send getReply() and close
+    }
+
+    private static final int SOCKS4 = 4;
+    private static final int SOCKS5 = 5;
+    private static final int CMD_CONNECT = 1;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private int version;
+    private boolean methodChosen;
+    private byte[] reply;
+    private String host;
+    private int port;
+
+    // Consume one complete message from buffer (in read mode) if there is one
+    public Step feed(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return Step.NEED_MORE;
+        }
+        if (version == 0) {
+            version = buffer.get(buffer.position()) & 0xff;
+            if (version != SOCKS4 && version != SOCKS5) {
+                reply = new byte[0];
+                return Step.FAIL;
+            }
+        }
+        return version == SOCKS5 ? feedSocks5(buffer) : feedSocks4(buffer);
+    }
+
+    // VER NMETHODS METHODS..., then VER CMD RSV ATYP ADDR PORT
+    private Step feedSocks5(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (!methodChosen) {
+            if (buffer.remaining() < 2 || buffer.remaining() < 2 + (buffer.get(start + 1) & 0xff)) {
+                return Step.NEED_MORE;
+            }
+            int methodCount = buffer.get(start + 1) & 0xff;
+            boolean noAuthOffered = false;
+            for (int i = 0; i < methodCount; i++) {
+                noAuthOffered |= buffer.get(start + 2 + i) == 0;
+            }
+            buffer.position(start + 2 + methodCount);
+            if (!noAuthOffered) {
+                reply = new byte[]{SOCKS5, (byte) 0xff};  // No acceptable method
+                return Step.FAIL;
+            }
+            methodChosen = true;
+            reply = new byte[]{SOCKS5, 0};
+            return Step.REPLY;
+        }
+
+        if (buffer.remaining() < 5) {
+            return Step.NEED_MORE;
+        }
+        int command = buffer.get(start + 1) & 0xff;
+        int addressType = buffer.get(start + 3) & 0xff;
+        int addressLength;
+        int addressOffset = 4;
+        switch (addressType) {
+            case 1:
+                addressLength = 4;
+                break;
+            case 3:
+                addressLength = buffer.get(start + 4) & 0xff;
+                addressOffset = 5;
+                break;
+            case 4:
+                addressLength = 16;
+                break;
+            default:
+                reply = socks5Reply(8);  // Address type not supported
+                return Step.FAIL;
+        }
+        int length = addressOffset + addressLength + 2;
+        if (buffer.remaining() < length) {
+            return Step.NEED_MORE;
+        }
+        byte[] address = new byte[addressLength];
+        buffer.position(start + addressOffset);
+        buffer.get(address);
+        port = buffer.getShort() & 0xffff;
+        if (command != CMD_CONNECT) {
+            reply = socks5Reply(7);  // Command not supported
+            return Step.FAIL;
+        }
+        host = addressType == 3 ? new String(address, StandardCharsets.US_ASCII) : toHostAddress(address);
+        if (host == null || host.isEmpty()) {
+            reply = socks5Reply(1);
+            return Step.FAIL;
+        }
+        return Step.CONNECT;
+    }
+
+    // VER CMD DSTPORT DSTIP USERID NUL, plus HOST NUL for 4a when DSTIP is 0.0.0.x
+    private Step feedSocks4(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < 9) {
+            return Step.NEED_MORE;
+        }
+        int userIdEnd = indexOfNul(buffer, start + 8);
+        if (userIdEnd < 0) {
+            return tooLong(buffer) ? fail4() : Step.NEED_MORE;
+        }
+        int command = buffer.get(start + 1) & 0xff;
+        port = buffer.getShort(start + 2) & 0xffff;
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            address[i] = buffer.get(start + 4 + i);
+        }
+        int end = userIdEnd + 1;
+        boolean socks4a = address[0] == 0 && address[1] == 0 && address[2] == 0 && address[3] != 0;
+        if (socks4a) {
+            int hostEnd = indexOfNul(buffer, end);
+            if (hostEnd < 0) {
+                return tooLong(buffer) ? fail4() : Step.NEED_MORE;
+            }
+            byte[] name = new byte[hostEnd - end];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = buffer.get(end + i);
+            }
+            host = new String(name, StandardCharsets.US_ASCII);
+            end = hostEnd + 1;
+        } else {
+            host = toHostAddress(address);
+        }
+        buffer.position(end);
+        if (command != CMD_CONNECT || host == null || host.isEmpty()) {
+            return fail4();
+        }
+        return Step.CONNECT;
+    }
+
+    private Step fail4() {
+        reply = failureReply();
+        return Step.FAIL;
+    }
+
+    // A user id or host name longer than any legitimate one means the client is not speaking SOCKS4
+    private static boolean tooLong(ByteBuffer buffer) {
+        return buffer.remaining() > 8 + 2 * (MAX_NAME_LENGTH + 1);
+    }
+
+    private static int indexOfNul(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String toHostAddress(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();  // Literal address, no lookup
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static byte[] socks5Reply(int status) {
+        return new byte[]{SOCKS5, (byte) status, 0, 1, 0, 0, 0, 0, 0, 0};
+    }
+
+    public byte[] getReply() {
+        return reply;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // The channel is open; the bound address is not known on this side, so zeros are reported
+    public byte[] successReply() {
+        return version == SOCKS5 ? socks5Reply(0) : new byte[]{0, 0x5a, 0, 0, 0, 0, 0, 0};
+    }
+
+    public byte[] failureReply() {
+        return version == SOCKS5 ? socks5Reply(1) : new byte[]{0, 0x5b, 0, 0, 0, 0, 0, 0};
+    }
+}
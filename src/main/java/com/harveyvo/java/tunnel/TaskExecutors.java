@@ -0,0 +1,112 @@
+package com.harveyvo.java.tunnel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Where the application's threads come from. Blocking work (SSH connects, channel opens, JSch calls
+// that wait for the server) runs on virtual threads when the JVM has them (Java 21+), and on daemon
+// platform threads on Java 17. Virtual threads are found by reflection, so the build stays on 17.
+// Long-lived loops (selectors, the log writer, the file watcher, the scheduler) always get platform
+// threads. -Dtunnel.threads=platform or =virtual forces a mode; virtual falls back if unavailable.
+public class TaskExecutors {
+
+    public enum Mode {
+        VIRTUAL, PLATFORM
+    }
+
+    private final Mode mode;
+    private final ExecutorService blocking;
+
+    private TaskExecutors() {
+        String requested = System.getProperty("tunnel.threads", "virtual");
+        Mode selected = Mode.PLATFORM;
+        ExecutorService executor = null;
+        if (!"platform".equalsIgnoreCase(requested)) {
+            try {
+                executor = threadPerTask(virtualThreadFactory("blocking-task-"));
+                selected = Mode.VIRTUAL;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 17-20, or 19/20 without --enable-preview
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(platformThreadFactory("blocking-task"));
+        }
+        this.mode = selected;
+        this.blocking = executor;
+        LogManager.getInstance().log("Blocking tasks run on " + (selected == Mode.VIRTUAL ? "virtual" : "platform") + " threads");
+    }
+
+    private static class TaskExecutorsHolder {
+        private static final TaskExecutors INSTANCE = new TaskExecutors();
+    }
+
+    public static TaskExecutors getInstance() {
+        return TaskExecutorsHolder.INSTANCE;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Shared and unbounded: one virtual thread per task, or a cached platform pool. Callers that must
+    // limit their concurrency do so themselves or use newLimitedPool.
+    public ExecutorService blocking() {
+        return blocking;
+    }
+
+    // A pool that only exists to keep the number of platform threads down: sized on Java 17, a thread
+    // per task with virtual threads, where the cap would only add queueing
+    public ExecutorService newPool(String name, int platformThreads) {
+        if (mode == Mode.VIRTUAL) {
+            try {
+                return threadPerTask(virtualThreadFactory(name + "-"));
+            } catch (ReflectiveOperationException e) {
+                // Worked in the constructor; fall through to platform threads
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, platformThreadFactory(name));
+    }
+
+    // A pool whose size is a deliberate limit on concurrent work (reconnect storms, probes); the cap
+    // holds in both modes, only the kind of thread changes
+    public ExecutorService newLimitedPool(String name, int threads) {
+        ThreadFactory factory = platformThreadFactory(name);
+        if (mode == Mode.VIRTUAL) {
+            try {
+                factory = virtualThreadFactory(name + "-");
+            } catch (ReflectiveOperationException e) {
+                // Keep platform threads
+            }
+        }
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    // Daemon platform threads named name-1, name-2, ...
+    public static ThreadFactory platformThreadFactory(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> newPlatformThread(name + "-" + threadCount.incrementAndGet(), runnable);
+    }
+
+    // An unstarted daemon platform thread, for loops that live as long as the application
+    public static Thread newPlatformThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Thread.ofVirtual().name(prefix, 1).factory()
+    private static ThreadFactory virtualThreadFactory(String prefix) throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+        return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    }
+
+    // Executors.newThreadPerTaskExecutor(factory)
+    private static ExecutorService threadPerTask(ThreadFactory factory) throws ReflectiveOperationException {
+        return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+    }
+}
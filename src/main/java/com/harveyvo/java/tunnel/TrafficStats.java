@@ -0,0 +1,120 @@
+package com.harveyvo.java.tunnel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Byte counters for one tunnel and for each client connection forwarded through it.
+// "Sent" is traffic entering the SSH tunnel from this side, "received" is traffic coming out of it.
+// The data path only increments LongAdders; UiPulse reads the sums for the UI. The same calls
+// charge the tunnel's BandwidthShaper and tell the forwarder how long to pause. Each client
+// connection's peer, duration and bytes are logged when it closes, so usage can be billed per client.
+public class TrafficStats {
+
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final AtomicLong nextConnectionId = new AtomicLong(0);
+    // Names the tunnel or rule in the log line of every closed connection
+    private volatile String name = "tunnel";
+    private volatile BandwidthShaper shaper = BandwidthShaper.UNLIMITED;
+    // How long the newest client waited for its SSH channel; -1 until one opened (NIO engine only)
+    private volatile long lastChannelOpenNanos = -1;
+
+    // Register a new forwarded connection; the caller must close it when the connection ends
+    public ConnectionTraffic openConnection(String peer) {
+        return new ConnectionTraffic(nextConnectionId.incrementAndGet(), peer);
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public BandwidthShaper getShaper() {
+        return shaper;
+    }
+
+    public void setShaper(BandwidthShaper shaper) {
+        this.shaper = shaper;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public void recordChannelOpen(long nanos) {
+        lastChannelOpenNanos = nanos;
+    }
+
+    public long getLastChannelOpenNanos() {
+        return lastChannelOpenNanos;
+    }
+
+    public class ConnectionTraffic {
+        private final long id;
+        private final String peer;
+        private final long openedAt = System.currentTimeMillis();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder received = new LongAdder();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        // Further totals this connection counts towards, e.g. the stripe session carrying it
+        private volatile TrafficStats group;
+
+        private ConnectionTraffic(long id, String peer) {
+            this.id = id;
+            this.peer = peer;
+        }
+
+        // Count bytes relayed into the tunnel; returns the nanoseconds to wait before reading more from the client
+        public long addSent(long bytes) {
+            sent.add(bytes);
+            bytesSent.add(bytes);
+            TrafficStats also = group;
+            if (also != null) {
+                also.bytesSent.add(bytes);
+            }
+            return shaper.reserveUp(bytes);
+        }
+
+        // Count bytes relayed out of the tunnel; returns the nanoseconds to wait before writing more to the client
+        public long addReceived(long bytes) {
+            received.add(bytes);
+            bytesReceived.add(bytes);
+            TrafficStats also = group;
+            if (also != null) {
+                also.bytesReceived.add(bytes);
+            }
+            return shaper.reserveDown(bytes);
+        }
+
+        // Count bytes relayed out of the tunnel on a path that cannot pace them (JSch's own forwards)
+        public void countReceived(long bytes) {
+            received.add(bytes);
+            bytesReceived.add(bytes);
+            TrafficStats also = group;
+            if (also != null) {
+                also.bytesReceived.add(bytes);
+            }
+        }
+
+        // Count this connection's bytes in the totals of another TrafficStats as well
+        public void alsoCountIn(TrafficStats group) {
+            this.group = group;
+        }
+
+        // Logs the connection's totals once, however many times it is closed
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                LogManager.getInstance().log("Connection #" + id + " (" + peer + ") on " + name + " closed after "
+                        + (System.currentTimeMillis() - openedAt) + " ms: " + sent.sum() + " bytes sent, " + received.sum() + " bytes received");
+            }
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.harveyvo.java.tunnel;
+
+import javafx.application.Platform;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Watches connected tunnels and brings them back when their SSH session drops. Attempts back off
+// exponentially with full jitter and at most MAX_CONNECTS_PER_HOST run against one host at a time,
+// so a bastion restart does not get every tunnel reconnecting in the same instant.
+public class TunnelSupervisor {
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 60_000;
+    private static final int MAX_CONNECTS_PER_HOST = 2;
+    private static final int RECONNECT_THREADS = 4;
+
+    private final Map<SessionStatus, Supervised> supervised = new ConcurrentHashMap<>();
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final LogManager logManager = LogManager.getInstance();
+    // Connecting blocks on the network, so attempts run here and never on the shared scheduler
+    private final ExecutorService reconnectExecutor;
+
+    private TunnelSupervisor() {
+        // The size is a limit on simultaneous reconnects, so it also holds with virtual threads
+        reconnectExecutor = TaskExecutors.getInstance().newLimitedPool("tunnel-reconnect", RECONNECT_THREADS);
+        SharedScheduler.getInstance().scheduleAtFixedRate(this::checkSessions, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static class TunnelSupervisorHolder {
+        private static final TunnelSupervisor INSTANCE = new TunnelSupervisor();
+    }
+
+    public static TunnelSupervisor getInstance() {
+        return TunnelSupervisorHolder.INSTANCE;
+    }
+
+    // Start watching a tunnel that has connected and set up its forwards
+    public void supervise(SessionStatus session) {
+        SSHTunnelManager manager = session.getSshTunnelManager();
+        if (manager != null && !manager.isClosed()) {
+            supervised.put(session, new Supervised(session, manager));
+        }
+    }
+
+    // Stop watching; a reconnect already in flight gives up
+    public void unsupervise(SessionStatus session) {
+        Supervised entry = supervised.remove(session);
+        if (entry != null) {
+            entry.stopped = true;
+        }
+    }
+
+    // Report a session as lost without waiting for the next check, e.g. after a failed keepalive
+    public void reportLost(SessionStatus session) {
+        Supervised entry = supervised.get(session);
+        if (entry != null) {
+            markLost(entry);
+        }
+    }
+
+    private void checkSessions() {
+        for (Supervised entry : supervised.values()) {
+            if (!entry.manager.isSessionAlive()) {
+                markLost(entry);
+            }
+        }
+    }
+
+    private void markLost(Supervised entry) {
+        synchronized (entry) {
+            if (entry.reconnecting || entry.stopped) {
+                return;
+            }
+            entry.reconnecting = true;
+            entry.lostAtNanos = System.nanoTime();
+            entry.attempt = 0;
+        }
+        logManager.log("Lost SSH session for " + entry.session.getConnectionName() + ", reconnecting", LogManager.LogLevel.WARNING);
+        Platform.runLater(() -> setStatusUnlessStopped(entry, "Reconnecting..."));
+        scheduleAttempt(entry);
+    }
+
+    // Full jitter: a uniformly random delay up to the exponential bound spreads a storm evenly
+    private void scheduleAttempt(Supervised entry) {
+        long bound = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(entry.attempt, 16));
+        long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+        SharedScheduler.getInstance().schedule(() -> startAttempt(entry), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void startAttempt(Supervised entry) {
+        if (entry.stopped) {
+            return;
+        }
+        Semaphore permits = hostPermits.computeIfAbsent(entry.host, host -> new Semaphore(MAX_CONNECTS_PER_HOST));
+        if (!permits.tryAcquire()) {
+            // Host is busy with other reconnects; wait for another jittered slot
+            entry.attempt++;
+            scheduleAttempt(entry);
+            return;
+        }
+        reconnectExecutor.execute(() -> {
+            try {
+                attempt(entry);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private void attempt(Supervised entry) {
+        int attemptNumber = entry.attempt + 1;
+        try {
+            entry.manager.reconnect();
+        } catch (Exception e) {
+            if (entry.stopped || entry.manager.isClosed()) {
+                supervised.remove(entry.session, entry);
+                return;
+            }
+            entry.attempt++;
+            logManager.log("Reconnect attempt " + attemptNumber + " for " + entry.session.getConnectionName() + " failed: " + e.getMessage(),
+                    LogManager.LogLevel.WARNING);
+            Platform.runLater(() -> setStatusUnlessStopped(entry, "Reconnecting (attempt " + (attemptNumber + 1) + ")..."));
+            scheduleAttempt(entry);
+            return;
+        }
+        long recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.lostAtNanos);
+        synchronized (entry) {
+            entry.reconnecting = false;
+        }
+        logManager.log("Reconnected " + entry.session.getConnectionName() + " in " + recoveryMillis + " ms after " + attemptNumber + " attempt(s)");
+        Platform.runLater(() -> {
+            if (!entry.stopped) {
+                entry.session.setStatus("Connected");
+                entry.session.recordRecovery(recoveryMillis);
+            }
+        });
+    }
+
+    private static void setStatusUnlessStopped(Supervised entry, String status) {
+        if (!entry.stopped) {
+            entry.session.setStatus(status);
+        }
+    }
+
+    private static class Supervised {
+        private final SessionStatus session;
+        private final SSHTunnelManager manager;
+        private final String host;
+        private volatile boolean stopped;
+        // Guarded by this
+        private boolean reconnecting;
+        // Only touched by the single attempt in flight
+        private volatile int attempt;
+        private volatile long lostAtNanos;
+
+        private Supervised(SessionStatus session, SSHTunnelManager manager) {
+            this.session = session;
+            this.manager = manager;
+            SSHProfile profile = manager.getProfile();
+            this.host = profile != null ? profile.getSshHost() + ":" + profile.getSshPort() : session.getSshHost();
+        }
+    }
+}
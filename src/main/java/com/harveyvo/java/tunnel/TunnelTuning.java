@@ -0,0 +1,315 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Packet;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.TimeUnit;
+
+// Socket options for the forwarded client/target sockets and the SSH channel flow-control window of
+// one tunnel. JSch opens direct-tcpip channels with a 128 KB window, so one channel moves at most
+// 128 KB per round trip: about 1.3 MB/s at 100 ms. The window and packet setters are package-private
+// in JSch and are reached by reflection; when that fails the channel keeps JSch's defaults.
+// The same hooks let NIO relays hold a channel's window shut while their client is not reading.
+// Persisted with the session, so the fields follow bean conventions.
+public class TunnelTuning {
+
+    public static final int MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int MIN_PACKET_SIZE = 1024;
+    private static final int MAX_PACKET_SIZE = 128 * 1024;  // Well below JSch's 256 KB packet limit
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int DEFAULT_WINDOW_SIZE = 128 * 1024;  // JSch's direct-tcpip window
+    private static final byte SSH_MSG_CHANNEL_WINDOW_ADJUST = 93;
+
+    private static final Method SET_WINDOW_MAX = channelMethod("setLocalWindowSizeMax");
+    private static final Method SET_WINDOW = channelMethod("setLocalWindowSize");
+    private static final Method SET_PACKET = channelMethod("setLocalPacketSize");
+    private static final Method GET_RECIPIENT = channelMethod("getRecipient");
+    private static final Field WINDOW = channelField("lwsize");
+
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive;
+    private int receiveBufferSize;  // Bytes, 0 = OS default
+    private int sendBufferSize;  // Bytes, 0 = OS default
+    private int windowSize;  // Bytes, 0 = JSch default
+    private int packetSize;  // Bytes, 0 = JSch default
+    private boolean adaptiveWindow;  // Grow the window up to MAX_WINDOW_SIZE from the measured bandwidth-delay product
+
+    public TunnelTuning() {
+    }
+
+    private static Method channelMethod(String name) {
+        try {
+            Method method = name.startsWith("get") ? Channel.class.getDeclaredMethod(name)
+                    : Channel.class.getDeclaredMethod(name, int.class);
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LogManager.getInstance().log("Channel window tuning unavailable: " + e, LogManager.LogLevel.WARNING);
+            return null;
+        }
+    }
+
+    private static Field channelField(String name) {
+        try {
+            Field field = Channel.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LogManager.getInstance().log("Channel window tuning unavailable: " + e, LogManager.LogLevel.WARNING);
+            return null;
+        }
+    }
+
+    // For the blocking sockets of JSch's own forwards. JSch sets TCP_NODELAY on them again afterwards,
+    // so only tcpNoDelay = true holds there.
+    public void applyTo(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+    }
+
+    // Listening sockets pass their receive buffer on to accepted sockets; it must be set before bind
+    // for TCP window scaling to be negotiated
+    public void applyTo(ServerSocket serverSocket) throws IOException {
+        if (receiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    // For NIO client sockets and listeners; options a channel does not support are skipped
+    public void applyTo(NetworkChannel channel) throws IOException {
+        if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        if (sendBufferSize > 0 && channel.supportedOptions().contains(StandardSocketOptions.SO_SNDBUF)) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+    }
+
+    // Window and packet size go into the channel open request, so this must run before connect
+    public void applyTo(Channel channel) {
+        if (windowSize > 0) {
+            setWindow(channel, Math.min(windowSize, MAX_WINDOW_SIZE), true);
+        }
+        if (packetSize > 0) {
+            invoke(SET_PACKET, channel, Math.max(MIN_PACKET_SIZE, Math.min(MAX_PACKET_SIZE, packetSize)));
+        }
+    }
+
+    // Window control of a connected channel; grows only in adaptive mode
+    public ChannelWindow channelWindow(Channel channel, long openNanos) {
+        return new ChannelWindow(channel, windowSize > 0 ? Math.min(windowSize, MAX_WINDOW_SIZE) : DEFAULT_WINDOW_SIZE,
+                adaptiveWindow, openNanos);
+    }
+
+    // Raising the maximum after the open takes effect with JSch's next window adjust
+    private static void setWindow(Channel channel, int size, boolean initial) {
+        invoke(SET_WINDOW_MAX, channel, size);
+        if (initial) {
+            invoke(SET_WINDOW, channel, size);
+        }
+    }
+
+    private static void invoke(Method method, Channel channel, int value) {
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(channel, value);
+        } catch (ReflectiveOperationException e) {
+            LogManager.getInstance().log("Failed to tune channel: " + e, LogManager.LogLevel.WARNING);
+        }
+    }
+
+    // The receive window of one channel. In adaptive mode it doubles while the data of one round trip
+    // fills more than half of it, i.e. while the window rather than the link or the client is what
+    // limits the channel. A relay whose client falls behind holds it shut instead of blocking the
+    // session thread: JSch tops the window up after every data packet unless it is below half of the
+    // maximum, so a maximum of Integer.MIN_VALUE stops the top-ups and the server runs out of window.
+    // onData and hold are only called by the session thread that delivers the channel's data.
+    public static class ChannelWindow {
+        private final Channel channel;
+        private final boolean adaptive;
+        private final long fallbackRttNanos;
+        private volatile int window;
+        private long sampleStartNanos = System.nanoTime();
+        private long sampleBytes;
+        private boolean held;  // Guarded by this
+
+        private ChannelWindow(Channel channel, int window, boolean adaptive, long openNanos) {
+            this.channel = channel;
+            this.window = window;
+            this.adaptive = adaptive && SET_WINDOW_MAX != null;
+            // The channel open round trip stands in until the keepalive has measured the session
+            this.fallbackRttNanos = Math.max(openNanos, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        public void onData(int bytes) {
+            if (!adaptive) {
+                return;
+            }
+            sampleBytes += bytes;
+            long now = System.nanoTime();
+            long rttNanos = rttNanos();
+            long elapsed = now - sampleStartNanos;
+            if (elapsed < Math.max(rttNanos, MIN_SAMPLE_NANOS)) {
+                return;
+            }
+            double bandwidthDelayProduct = sampleBytes * (double) rttNanos / elapsed;
+            if (bandwidthDelayProduct > window / 2.0 && window < MAX_WINDOW_SIZE) {
+                synchronized (this) {
+                    window = (int) Math.min(MAX_WINDOW_SIZE, window * 2L);
+                    if (!held) {
+                        setWindow(channel, window, false);
+                    }
+                }
+            }
+            sampleStartNanos = now;
+            sampleBytes = 0;
+        }
+
+        // Whether hold and release work with this JSch; without them a relay can only cap its buffer
+        public boolean canHold() {
+            return SET_WINDOW_MAX != null && SET_WINDOW != null && GET_RECIPIENT != null && WINDOW != null;
+        }
+
+        // Stop granting the server more window; at most the window already granted is still on its way
+        public synchronized void hold() {
+            if (!held && canHold()) {
+                held = true;
+                invoke(SET_WINDOW_MAX, channel, Integer.MIN_VALUE);
+            }
+        }
+
+        // Grant the window again. With window left the session thread tops it up on the next packet;
+        // once it is used up no packet will come, so the adjust is sent from here, which is safe
+        // because nothing else touches the window while the server cannot send. Not for the session
+        // thread: the write waits out a key exchange.
+        public void release() {
+            int grant;
+            synchronized (this) {
+                if (!held) {
+                    return;
+                }
+                held = false;
+                invoke(SET_WINDOW_MAX, channel, window);
+                int remaining = remainingWindow();
+                if (remaining > 0) {
+                    return;
+                }
+                grant = window - remaining;
+                invoke(SET_WINDOW, channel, window);
+            }
+            try {
+                Buffer buffer = new Buffer(100);
+                Packet packet = new Packet(buffer);
+                packet.reset();
+                buffer.putByte(SSH_MSG_CHANNEL_WINDOW_ADJUST);
+                buffer.putInt((Integer) GET_RECIPIENT.invoke(channel));
+                buffer.putInt(grant);
+                synchronized (channel) {  // As JSch does, so a closing channel gets no adjust
+                    if (!channel.isClosed()) {
+                        channel.getSession().write(packet);
+                    }
+                }
+            } catch (Exception e) {
+                LogManager.getInstance().log("Failed to reopen channel window: " + e, LogManager.LogLevel.WARNING);
+            }
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        private int remainingWindow() {
+            try {
+                return WINDOW.getInt(channel);
+            } catch (IllegalAccessException e) {
+                return 0;
+            }
+        }
+
+        private long rttNanos() {
+            try {
+                long rttMicros = KeepaliveMonitor.getInstance().getRttMicros(channel.getSession());
+                return rttMicros > 0 ? TimeUnit.MICROSECONDS.toNanos(rttMicros) : fallbackRttNanos;
+            } catch (JSchException e) {
+                return fallbackRttNanos;
+            }
+        }
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public void setPacketSize(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    public boolean isAdaptiveWindow() {
+        return adaptiveWindow;
+    }
+
+    public void setAdaptiveWindow(boolean adaptiveWindow) {
+        this.adaptiveWindow = adaptiveWindow;
+    }
+}
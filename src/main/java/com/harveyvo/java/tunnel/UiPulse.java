@@ -0,0 +1,53 @@
+package com.harveyvo.java.tunnel;
+
+import javafx.application.Platform;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Refreshes session clocks, Sent/Received and RTT for all sessions with one batched FX update per tick.
+// Ticks come from the SharedScheduler; the forwarding threads never touch the UI.
+public class UiPulse {
+
+    private static final long TICK_MILLIS = 250;
+
+    private final List<SessionStatus> sessions;
+    // Set while a pulse is queued on the FX thread, so a busy UI thread gets one pulse and not a backlog
+    private final AtomicBoolean pulsePending = new AtomicBoolean(false);
+    private ScheduledFuture<?> tick;
+
+    public UiPulse(List<SessionStatus> sessions) {
+        this.sessions = sessions;
+    }
+
+    public void start() {
+        if (tick == null) {
+            tick = SharedScheduler.getInstance().scheduleAtFixedRate(this::onTick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+    }
+
+    private void onTick() {
+        if (pulsePending.compareAndSet(false, true)) {
+            Platform.runLater(this::pulse);
+        }
+    }
+
+    private void pulse() {
+        pulsePending.set(false);
+        long now = System.nanoTime();
+        for (SessionStatus session : sessions) {
+            session.refreshClock(now);
+            session.refreshDataUsage();
+            session.refreshLatency();
+        }
+    }
+}
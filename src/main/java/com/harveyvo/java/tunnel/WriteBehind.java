@@ -0,0 +1,133 @@
+package com.harveyvo.java.tunnel;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+// Coalesced JSON persistence: callers mark the data dirty, and a single background write of the
+// latest snapshot happens after a short delay. Any number of changes inside the window cost one write.
+// Files are replaced atomically (temp file, fsync, rename), so a crash leaves the old or the new version.
+// Data owned by one thread (the FX thread for sessions) is snapshotted on that thread through the
+// given executor; only the finished snapshot is serialized and written on the writer thread.
+public class WriteBehind {
+
+    // How long the exit flush waits for the owning thread before snapshotting on its own
+    private static final long EXIT_SNAPSHOT_TIMEOUT_MILLIS = 2000;
+
+    private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(
+            runnable -> TaskExecutors.newPlatformThread("write-behind", runnable));
+
+    private final Path path;
+    private final Supplier<Object> snapshot;
+    private final Executor snapshotExecutor;
+    private final long delayMillis;
+    private final Runnable afterWrite;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final LogManager logManager = LogManager.getInstance();
+
+    public WriteBehind(Path path, Supplier<Object> snapshot, long delayMillis, Runnable afterWrite) {
+        this(path, snapshot, Runnable::run, delayMillis, afterWrite);
+    }
+
+    public WriteBehind(Path path, Supplier<Object> snapshot, Executor snapshotExecutor, long delayMillis, Runnable afterWrite) {
+        this.path = path;
+        this.snapshot = snapshot;
+        this.snapshotExecutor = snapshotExecutor;
+        this.delayMillis = delayMillis;
+        this.afterWrite = afterWrite;
+
+        // Do not lose a change made just before exit
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushOnExit, "write-behind-flush"));
+    }
+
+    public void markDirty() {
+        if (dirty.compareAndSet(false, true)) {
+            WRITER.schedule(() -> snapshotExecutor.execute(this::takeSnapshot), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // On the owning thread. Cleared before the snapshot is taken, so a change made after it schedules another write.
+    private void takeSnapshot() {
+        if (dirty.compareAndSet(true, false)) {
+            Object data = snapshot.get();
+            WRITER.execute(() -> write(data));
+        }
+    }
+
+    public boolean isDirty() {
+        return dirty.get();
+    }
+
+    // Last chance at exit. The owning thread may have ended with the application (the FX toolkit refuses
+    // new work then), in which case nothing else changes the data any more and it is read from here.
+    private void flushOnExit() {
+        if (!dirty.compareAndSet(true, false)) {
+            return;
+        }
+        Object data;
+        try {
+            data = CompletableFuture.supplyAsync(snapshot, snapshotExecutor).get(EXIT_SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | IllegalStateException e) {
+            data = snapshot.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            data = snapshot.get();
+        }
+        write(data);
+    }
+
+    private synchronized void write(Object data) {
+        try {
+            writeAtomically(objectMapper.writeValueAsBytes(data));
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+        } catch (IOException e) {
+            logManager.log("Failed to write " + path + ": " + e.getMessage(), LogManager.LogLevel.ERROR);
+        }
+    }
+
+    private void writeAtomically(byte[] content) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory();
+    }
+
+    // Persist the rename itself; directories cannot be opened this way on every platform (e.g. Windows)
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(path.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Best effort
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.harveyvo.java.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Shapers on a clock that only moves when a test steps it. Rates are powers of two, so a 64 KB/s
+// bucket costs an exact 15258.7890625 ns per byte. Each test uses its own host, so its links are its own.
+class BandwidthShaperTest {
+
+    private static final long RATE = 64 * 1024;  // Bytes per second
+    private static final long BURST = 16 * 1024;  // A quarter second at RATE, and the smallest burst
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long now = SECOND;
+
+    @Test
+    void tunnelBucketStartsFullAndCapsItsBurst() {
+        BandwidthShaper shaper = BandwidthShaper.create(null, RATE, 0, 1, () -> now);
+
+        assertEquals(0, shaper.reserveUp(BURST), "a new bucket holds one burst");
+        assertEquals(15258, shaper.reserveUp(1), "the next byte waits for its own token");
+
+        now += 10 * SECOND;
+        assertEquals(0, shaper.reserveUp(BURST));
+        assertEquals(SECOND / 4, shaper.reserveUp(BURST), "ten idle seconds still refill only one burst");
+        assertEquals(0, shaper.reserveDown(10 * RATE), "no download limit");
+    }
+
+    @Test
+    void tunnelBucketDebtIsPaidOffAtTheLimit() {
+        BandwidthShaper shaper = BandwidthShaper.create(null, RATE, 0, 1, () -> now);
+
+        assertEquals(SECOND, shaper.reserveUp(BURST + RATE), "a second's worth beyond the burst");
+        now += SECOND;
+        assertEquals(SECOND, shaper.reserveUp(RATE), "the debt was paid off, no burst was saved up");
+        now += SECOND / 2;
+        assertEquals(SECOND / 2 + SECOND / 4, shaper.reserveUp(BURST), "half of the last second is still owed");
+    }
+
+    @Test
+    void linkDebtIsPaidOffAtTheMembersShare() {
+        SSHProfile profile = profile("debt.example.com");
+        BandwidthShaper alone = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        assertEquals(SECOND, alone.reserveUp(BURST + RATE), 1000, "the whole link rate");
+        alone.close();
+
+        BandwidthShaper light = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        BandwidthShaper heavy = BandwidthShaper.create(profile, 0, 0, 3, () -> now);
+        assertEquals(0, heavy.reserveUp(1));
+        assertEquals(SECOND, light.reserveUp(BURST + RATE / 4), 1000, "a quarter of the link rate next to weight 3");
+        light.close();
+        heavy.close();
+    }
+
+    @Test
+    void linkSplitsRefillsByWeightBetweenActiveMembers() {
+        SSHProfile profile = profile("split.example.com");
+        BandwidthShaper light = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        BandwidthShaper heavy = BandwidthShaper.create(profile, 0, 0, 3, () -> now);
+        assertEquals(0, light.reserveUp(BURST));
+        assertEquals(0, heavy.reserveUp(BURST));
+
+        // 6553.6 bytes arrive: 1638.4 for weight 1 and 4915.2 for weight 3
+        now += SECOND / 10;
+        assertEquals(0, light.reserveUp(1638));
+        assertTrue(light.reserveUp(1) > 0);
+        assertEquals(0, heavy.reserveUp(4915));
+        assertTrue(heavy.reserveUp(1) > 0);
+        light.close();
+        heavy.close();
+    }
+
+    @Test
+    void idleMemberTakesNoShare() {
+        SSHProfile profile = profile("idle.example.com");
+        BandwidthShaper busy = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        BandwidthShaper idle = BandwidthShaper.create(profile, 0, 0, 3, () -> now);
+        assertEquals(0, busy.reserveUp(BURST));
+
+        now += SECOND / 10;
+        assertEquals(0, busy.reserveUp(6553), "the whole refill");
+        assertTrue(busy.reserveUp(1) > 0);
+        busy.close();
+        idle.close();
+    }
+
+    // The nearly full member is capped at its burst in the first pass; what did not fit goes to the
+    // other one in the second
+    @Test
+    void overflowOfAFullMemberGoesToTheOthers() {
+        SSHProfile profile = profile("overflow.example.com");
+        BandwidthShaper full = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        BandwidthShaper empty = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        assertEquals(0, full.reserveUp(100));
+        assertEquals(0, empty.reserveUp(BURST));
+
+        // 6553.6 bytes arrive: 100 fill the first member, the other gets 6453.6 instead of 3276.8
+        now += SECOND / 10;
+        assertEquals(0, empty.reserveUp(6453));
+        assertTrue(empty.reserveUp(1) > 0);
+        assertEquals(0, full.reserveUp(BURST));
+        assertTrue(full.reserveUp(1) > 0, "no more than one burst");
+        full.close();
+        empty.close();
+    }
+
+    @Test
+    void linkIsRetiredWhenTheLastMemberLeaves() {
+        SSHProfile profile = profile("retire.example.com");
+        BandwidthShaper first = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        BandwidthShaper second = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        assertTrue(BandwidthShaper.hasLink(profile));
+
+        first.close();
+        assertTrue(BandwidthShaper.hasLink(profile), "one member left");
+        second.close();
+        assertFalse(BandwidthShaper.hasLink(profile));
+
+        // A tunnel that starts later gets a fresh link, holding a full burst again
+        BandwidthShaper later = BandwidthShaper.create(profile, 0, 0, 1, () -> now);
+        assertTrue(BandwidthShaper.hasLink(profile));
+        assertEquals(0, later.reserveUp(BURST));
+        later.close();
+        assertFalse(BandwidthShaper.hasLink(profile));
+    }
+
+    @Test
+    void noLimitsAtAllIsUnlimited() {
+        BandwidthShaper shaper = BandwidthShaper.create(profile("unlimited.example.com", 0), 0, 0, 1, () -> now);
+        assertTrue(shaper.isUnlimited());
+        assertEquals(0, shaper.reserveUp(Long.MAX_VALUE / 2));
+    }
+
+    private static SSHProfile profile(String host) {
+        return profile(host, RATE / 1024);
+    }
+
+    // Upload limit in KB/s for the whole session
+    private static SSHProfile profile(String host, long uploadKilobytes) {
+        SSHProfile profile = new SSHProfile("shaper", host, 22, "test", "test", SSHProfile.AuthMethod.PASSWORD, null, null);
+        profile.setUploadLimit(uploadKilobytes);
+        return profile;
+    }
+}
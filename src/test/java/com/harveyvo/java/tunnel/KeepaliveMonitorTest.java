@@ -0,0 +1,142 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Keepalive probes through an in-process SSH server. Sessions connect through a relay that can be
+// frozen: it keeps every connection open but stops passing bytes, as a NAT that dropped its mapping does.
+class KeepaliveMonitorTest {
+
+    private static final int SESSIONS = 10;
+
+    private volatile boolean frozen;
+    private SshServer sshd;
+    private ServerSocket relay;
+    private final List<Session> sessions = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider();
+        hostKeys.setAlgorithm("EC");
+        hostKeys.setKeySize(256);
+        sshd.setKeyPairProvider(hostKeys);
+        sshd.setPasswordAuthenticator((username, password, serverSession) -> true);
+        sshd.start();
+
+        relay = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        TaskExecutors.newPlatformThread("test-relay", this::acceptRelayed).start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (Session session : sessions) {
+            session.disconnect();
+        }
+        relay.close();
+        sshd.stop(true);
+    }
+
+    @Test
+    void answeredKeepaliveIsTimed() throws Exception {
+        Session session = connect();
+        CountDownLatch dead = new CountDownLatch(1);
+        Runnable onDead = dead::countDown;
+        KeepaliveMonitor.getInstance().watch(session, profile(), onDead);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (KeepaliveMonitor.getInstance().getRttMicros(session) < 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(KeepaliveMonitor.getInstance().getRttMicros(session) >= 0, "the keepalive was answered");
+            assertFalse(dead.await(3, TimeUnit.SECONDS), "an answering peer is not declared dead");
+            assertTrue(session.isConnected());
+        } finally {
+            KeepaliveMonitor.getInstance().unwatch(session, onDead);
+        }
+    }
+
+    // With interval 1 s and count max 2 each session is dead after about 3 s. Probes that waited their
+    // turn on a few shared threads would find the last of them only after several times that.
+    @Test
+    void peersThatStopAnsweringAreAllDeclaredDeadTogether() throws Exception {
+        CountDownLatch dead = new CountDownLatch(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            KeepaliveMonitor.getInstance().watch(connect(), profile(), dead::countDown);
+        }
+        frozen = true;
+        assertTrue(dead.await(6, TimeUnit.SECONDS), (SESSIONS - dead.getCount()) + " of " + SESSIONS + " dead peers noticed");
+        for (Session session : sessions) {
+            assertFalse(session.isConnected(), "a dead peer's session is closed");
+        }
+        assertEquals(-1, KeepaliveMonitor.getInstance().getRttMicros(sessions.get(0)), "a dead session is no longer watched");
+    }
+
+    private Session connect() throws Exception {
+        Session session = new JSch().getSession("test", "127.0.0.1", relay.getLocalPort());
+        session.setPassword("test");
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.connect(10000);
+        sessions.add(session);
+        return session;
+    }
+
+    private static SSHProfile profile() {
+        SSHProfile profile = new SSHProfile("keepalive", "127.0.0.1", 22, "test", "test", SSHProfile.AuthMethod.PASSWORD, null, null);
+        profile.setServerAliveInterval(1);
+        profile.setServerAliveCountMax(2);
+        return profile;
+    }
+
+    private void acceptRelayed() {
+        while (!relay.isClosed()) {
+            try {
+                Socket client = relay.accept();
+                Socket server = new Socket("127.0.0.1", sshd.getPort());
+                TaskExecutors.newPlatformThread("test-relay-up", () -> pump(client, server)).start();
+                TaskExecutors.newPlatformThread("test-relay-down", () -> pump(server, client)).start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    // Once frozen, bytes are read and dropped, so neither side sees a close or a full buffer
+    private void pump(Socket from, Socket to) {
+        try (from; to) {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (!frozen) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            // Either side closed
+        }
+    }
+}
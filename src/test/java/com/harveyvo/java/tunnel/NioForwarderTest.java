@@ -0,0 +1,219 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// NIO -L forwards through an in-process SSH server. The target streams to clients that send 'S',
+// echoes for clients that send 'E' and never reads from clients that send 'U'.
+class NioForwarderTest {
+
+    private static final int STREAM_BYTES = 64 * 1024 * 1024;
+    private static final int CHUNK = 32 * 1024;
+    // More uploads stuck on a full channel window than a fixed pool of channel threads would have
+    private static final int STALLED_UPLOADS = 12;
+
+    private final AtomicLong streamed = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private SshServer sshd;
+    private ServerSocket target;
+    private Session session;
+    private NioForwarder.Forward forward;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider();
+        hostKeys.setAlgorithm("EC");
+        hostKeys.setKeySize(256);
+        sshd.setKeyPairProvider(hostKeys);
+        sshd.setPasswordAuthenticator((username, password, serverSession) -> true);
+        sshd.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+        sshd.start();
+
+        target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        TaskExecutors.newPlatformThread("test-target", this::acceptTargets).start();
+
+        session = new JSch().getSession("test", "127.0.0.1", sshd.getPort());
+        session.setPassword("test");
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.connect(10000);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (forward != null) {
+            forward.close();
+        }
+        session.disconnect();
+        target.close();
+        sshd.stop(true);
+    }
+
+    @Test
+    void stalledClientDoesNotHoldUpOtherChannelsOnTheSession() throws Exception {
+        int localPort = freePort();
+        forward = NioForwarder.getInstance().openLocalForward("127.0.0.1", localPort, "127.0.0.1", target.getLocalPort(),
+                NioForwarder.sessionOpener(session), new TrafficStats(), new TunnelTuning());
+
+        try (Socket stalled = new Socket(); Socket live = new Socket()) {
+            stalled.setReceiveBufferSize(64 * 1024);
+            stalled.connect(new InetSocketAddress("127.0.0.1", localPort), 5000);
+            stalled.getOutputStream().write('S');  // And never read
+            waitToStall(streamed);
+
+            live.connect(new InetSocketAddress("127.0.0.1", localPort), 5000);
+            live.setSoTimeout(5000);
+            OutputStream out = live.getOutputStream();
+            InputStream in = live.getInputStream();
+            out.write('E');
+            byte[] sent = new byte[4096];
+            byte[] received = new byte[sent.length];
+            for (int round = 0; round < 20; round++) {
+                Arrays.fill(sent, (byte) round);
+                out.write(sent);
+                readFully(in, received);
+                assertArrayEquals(sent, received, "echo round " + round);
+            }
+            assertTrue(session.isConnected(), "session survived the stalled client");
+            assertTrue(streamed.get() < STREAM_BYTES / 4,
+                    "the stalled client's channel stopped at its window, target wrote " + streamed.get() + " bytes");
+        }
+    }
+
+    @Test
+    void stalledUploadsDoNotHoldUpOtherClients() throws Exception {
+        int localPort = freePort();
+        forward = NioForwarder.getInstance().openLocalForward("127.0.0.1", localPort, "127.0.0.1", target.getLocalPort(),
+                NioForwarder.sessionOpener(session), new TrafficStats(), new TunnelTuning());
+
+        List<Socket> uploads = new ArrayList<>();
+        try (Socket live = new Socket()) {
+            for (int i = 0; i < STALLED_UPLOADS; i++) {
+                Socket upload = new Socket("127.0.0.1", localPort);
+                uploads.add(upload);
+                TaskExecutors.getInstance().blocking().execute(() -> upload(upload));
+            }
+            waitToStall(uploaded);
+
+            live.connect(new InetSocketAddress("127.0.0.1", localPort), 5000);
+            live.setSoTimeout(5000);
+            OutputStream out = live.getOutputStream();
+            InputStream in = live.getInputStream();
+            out.write('E');
+            byte[] sent = new byte[4096];
+            byte[] received = new byte[sent.length];
+            Arrays.fill(sent, (byte) 7);
+            out.write(sent);
+            readFully(in, received);
+            assertArrayEquals(sent, received, "echo behind " + STALLED_UPLOADS + " stalled uploads");
+        } finally {
+            for (Socket upload : uploads) {
+                upload.close();
+            }
+        }
+    }
+
+    // Writes until the channel's window and every buffer on the way are full, then blocks until closed
+    private void upload(Socket upload) {
+        try {
+            OutputStream out = upload.getOutputStream();
+            out.write('U');
+            byte[] buffer = new byte[CHUNK];
+            while (true) {
+                out.write(buffer);
+                uploaded.addAndGet(CHUNK);
+            }
+        } catch (IOException e) {
+            // Test over
+        }
+    }
+
+    // Until the counter has not moved for half a second: the window is held and every buffer on the way
+    // is full
+    private static void waitToStall(AtomicLong bytes) throws InterruptedException {
+        long last = -1;
+        for (int i = 0; i < 60 && bytes.get() != last; i++) {
+            last = bytes.get();
+            Thread.sleep(500);
+        }
+    }
+
+    private void acceptTargets() {
+        while (!target.isClosed()) {
+            try {
+                Socket socket = target.accept();
+                TaskExecutors.newPlatformThread("test-target-connection", () -> serve(socket)).start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            InputStream in = connection.getInputStream();
+            OutputStream out = connection.getOutputStream();
+            int mode = in.read();
+            byte[] buffer = new byte[CHUNK];
+            if (mode == 'S') {
+                for (int total = 0; total < STREAM_BYTES; total += CHUNK) {
+                    out.write(buffer);
+                    streamed.addAndGet(CHUNK);
+                }
+            } else if (mode == 'E') {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } else if (mode == 'U') {
+                while (!target.isClosed()) {
+                    Thread.sleep(100);
+                }
+            }
+        } catch (IOException e) {
+            // Test over
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int n = in.read(buffer, offset, buffer.length - offset);
+            if (n < 0) {
+                throw new IOException("closed after " + offset + " bytes");
+            }
+            offset += n;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
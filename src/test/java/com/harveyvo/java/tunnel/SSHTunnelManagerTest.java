@@ -0,0 +1,59 @@
+package com.harveyvo.java.tunnel;
+
+import com.jcraft.jsch.JSchException;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SSHTunnelManagerTest {
+
+    // The server accepts the TCP connection and never sends its version, so the handshake hangs
+    @Test
+    void stopDuringConnectReturnsAtOnceAndTheConnectGivesUp() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<Socket> accepted = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return silent.accept();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, TaskExecutors.getInstance().blocking());
+            SSHProfile profile = new SSHProfile("silent", "127.0.0.1", silent.getLocalPort(), "test", "test",
+                    SSHProfile.AuthMethod.PASSWORD, null, null);
+            profile.setServerAliveInterval(0);
+            SessionStatus status = new SessionStatus("1", "silent", "silent", "127.0.0.1", "127.0.0.1", "0", "127.0.0.1", "0",
+                    SSHTunnelManager.TunnelMode.LOCAL, "Connecting");
+            SSHTunnelManager manager = new SSHTunnelManager(status, (level, message) -> { });
+
+            CompletableFuture<Void> connect = CompletableFuture.runAsync(() -> {
+                try {
+                    manager.connect(profile);
+                } catch (JSchException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, TaskExecutors.getInstance().blocking());
+            // Held open until the end, so the handshake hangs rather than fails
+            Socket client = accepted.get(5, TimeUnit.SECONDS);
+            try {
+                // On its own thread, so a stop stuck behind the handshake fails the test instead of hanging it
+                CompletableFuture.runAsync(manager::disconnect, TaskExecutors.getInstance().blocking()).get(1, TimeUnit.SECONDS);
+
+                ExecutionException failed = assertThrows(ExecutionException.class, () -> connect.get(15, TimeUnit.SECONDS),
+                        "the handshake has a timeout");
+                assertInstanceOf(JSchException.class, failed.getCause().getCause());
+                assertTrue(manager.isClosed());
+            } finally {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.harveyvo.java.tunnel;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Cost of adding many sessions one by one, as a bulk import or a restore does. "write-behind" is
+// SessionManager as shipped: adds only mark the store dirty and the background writer saves the latest
+// snapshot. "per-add" rewrites the whole file after every add, as ssh_sessions.json used to be saved; that
+// cost grows with the store, so it runs on fewer sessions by default. One thread plays the FX thread:
+// it makes every add and takes the snapshots, like Platform.runLater does in the application.
+//
+//   mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+//   java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.harveyvo.java.tunnel.SessionStoreBenchmark [sessions] [per-add sessions]
+//
+// The files go to a fresh user.home under the temp directory, never to the real one.
+public class SessionStoreBenchmark {
+
+    private static final int DEFAULT_SESSIONS = 10_000;
+    private static final int DEFAULT_PER_ADD_SESSIONS = 1_000;
+    private static final long WRITE_TIMEOUT_MILLIS = 60_000;
+
+    private SessionStoreBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SESSIONS;
+        int perAddSessions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PER_ADD_SESSIONS;
+        // Every FileManager made after this resolves its files here
+        System.setProperty("user.home", Files.createTempDirectory("session-store-benchmark").toString());
+
+        ExecutorService owner = Executors.newSingleThreadExecutor(runnable -> TaskExecutors.newPlatformThread("benchmark-owner", runnable));
+        try {
+            System.out.printf("%-12s %9s %10s %13s %10s%n", "store", "sessions", "adds ms", "ms to saved", "file KB");
+            writeBehind(owner, sessions);
+            perAdd(owner, perAddSessions);
+        } finally {
+            owner.shutdown();
+        }
+    }
+
+    private static void writeBehind(ExecutorService owner, int sessions) throws Exception {
+        SessionManager manager = owner.submit(() -> new SessionManager(owner)).get();
+        Path file = new FileManager().getFilePath("ssh_sessions.json");
+        long start = System.nanoTime();
+        owner.submit(() -> {
+            for (int i = 0; i < sessions; i++) {
+                manager.addSession(newSession(i));
+            }
+        }).get();
+        long added = System.nanoTime();
+        waitForSaved(file, sessions);
+        long saved = System.nanoTime();
+        report("write-behind", sessions, added - start, saved - start, Files.size(file));
+    }
+
+    private static void perAdd(ExecutorService owner, int sessions) throws Exception {
+        SessionManager manager = owner.submit(() -> new SessionManager(owner)).get();
+        manager.getSessions().clear();
+        Path file = Files.createTempFile("sessions-per-add", ".json");
+        ObjectMapper objectMapper = new ObjectMapper();
+        long start = System.nanoTime();
+        owner.submit(() -> {
+            for (int i = 0; i < sessions; i++) {
+                manager.getSessions().add(newSession(i));
+                objectMapper.writeValue(file.toFile(), manager.snapshotSessions());
+            }
+            return null;
+        }).get();
+        long elapsed = System.nanoTime() - start;
+        report("per-add", sessions, elapsed, elapsed, Files.size(file));
+    }
+
+    // The write-behind store is saved once the file holds every session
+    private static void waitForSaved(Path file, int sessions) throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(file) && Files.size(file) > 0
+                    && objectMapper.readTree(file.toFile()).size() == sessions) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("ssh_sessions.json not saved within " + WRITE_TIMEOUT_MILLIS + " ms");
+    }
+
+    private static SessionStatus newSession(int i) {
+        return new SessionStatus(String.valueOf(i + 1), "connection-" + i, "profile-" + (i % 50), "host-" + (i % 50) + ".example.com",
+                "127.0.0.1", String.valueOf(20000 + i % 40000), "10.0.0." + (i % 250), "5432", SSHTunnelManager.TunnelMode.LOCAL, "Stopped");
+    }
+
+    private static void report(String store, int sessions, long addNanos, long savedNanos, long fileBytes) {
+        System.out.printf("%-12s %9d %10.1f %13.1f %10d%n", store, sessions, addNanos / 1e6, savedNanos / 1e6, fileBytes / 1024);
+    }
+}
@@ -0,0 +1,259 @@
+package com.harveyvo.java.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The handshake is fed the way the event loop feeds it: a buffer in read mode holding whatever has
+// arrived, compacted between reads so unconsumed bytes stay at the front.
+class SocksHandshakeTest {
+
+    private static final byte[] NO_AUTH_GREETING = {5, 1, 0};
+
+    @Test
+    void socks5ConnectToDomain() {
+        SocksHandshake handshake = new SocksHandshake();
+        ByteBuffer buffer = read(NO_AUTH_GREETING, socks5Request(1, 3, domain("db.internal"), 5432));
+
+        assertEquals(SocksHandshake.Step.REPLY, handshake.feed(buffer));
+        assertArrayEquals(new byte[]{5, 0}, handshake.getReply());
+        assertEquals(SocksHandshake.Step.CONNECT, handshake.feed(buffer));
+        assertEquals("db.internal", handshake.getHost());
+        assertEquals(5432, handshake.getPort());
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void socks5ConnectToIpv4AndIpv6() {
+        SocksHandshake ipv4 = new SocksHandshake();
+        ByteBuffer buffer = read(NO_AUTH_GREETING, socks5Request(1, 1, new byte[]{10, 0, 0, (byte) 200}, 22));
+        ipv4.feed(buffer);
+        assertEquals(SocksHandshake.Step.CONNECT, ipv4.feed(buffer));
+        assertEquals("10.0.0.200", ipv4.getHost());
+        assertEquals(22, ipv4.getPort());
+
+        SocksHandshake ipv6 = new SocksHandshake();
+        byte[] loopback = new byte[16];
+        loopback[15] = 1;
+        buffer = read(NO_AUTH_GREETING, socks5Request(1, 4, loopback, 65535));
+        ipv6.feed(buffer);
+        assertEquals(SocksHandshake.Step.CONNECT, ipv6.feed(buffer));
+        assertEquals("0:0:0:0:0:0:0:1", ipv6.getHost());
+        assertEquals(65535, ipv6.getPort());
+    }
+
+    // Every split of the greeting and request waits for the rest, then ends exactly as in one piece
+    @Test
+    void socks5ArrivingByteByByte() {
+        byte[] all = concat(NO_AUTH_GREETING, socks5Request(1, 3, domain("example.com"), 443));
+        SocksHandshake handshake = new SocksHandshake();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int replies = 0;
+        SocksHandshake.Step step = SocksHandshake.Step.NEED_MORE;
+        for (int i = 0; i < all.length; i++) {
+            buffer.put(all[i]).flip();
+            while ((step = handshake.feed(buffer)) == SocksHandshake.Step.REPLY) {
+                replies++;
+            }
+            buffer.compact();
+            if (i < all.length - 1) {
+                assertEquals(SocksHandshake.Step.NEED_MORE, step, "after " + (i + 1) + " of " + all.length + " bytes");
+            }
+        }
+        assertEquals(1, replies);
+        assertEquals(SocksHandshake.Step.CONNECT, step);
+        assertEquals("example.com", handshake.getHost());
+        assertEquals(443, handshake.getPort());
+    }
+
+    // Data the client sends right behind its request stays in the buffer for the channel
+    @Test
+    void socks5LeavesEarlyDataInTheBuffer() {
+        SocksHandshake handshake = new SocksHandshake();
+        ByteBuffer buffer = read(NO_AUTH_GREETING, socks5Request(1, 3, domain("web"), 80), "GET /".getBytes(StandardCharsets.US_ASCII));
+        handshake.feed(buffer);
+        assertEquals(SocksHandshake.Step.CONNECT, handshake.feed(buffer));
+        byte[] early = new byte[buffer.remaining()];
+        buffer.get(early);
+        assertEquals("GET /", new String(early, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void socks5DomainLengthBounds() {
+        String longest = "a".repeat(255);
+        SocksHandshake handshake = new SocksHandshake();
+        ByteBuffer buffer = read(NO_AUTH_GREETING, socks5Request(1, 3, domain(longest), 8080));
+        handshake.feed(buffer);
+        assertEquals(SocksHandshake.Step.CONNECT, handshake.feed(buffer));
+        assertEquals(longest, handshake.getHost());
+
+        // The length byte promises more than has arrived
+        SocksHandshake truncated = new SocksHandshake();
+        byte[] request = socks5Request(1, 3, domain("example.com"), 443);
+        buffer = read(NO_AUTH_GREETING, Arrays.copyOf(request, request.length - 3));
+        truncated.feed(buffer);
+        assertEquals(SocksHandshake.Step.NEED_MORE, truncated.feed(buffer));
+
+        SocksHandshake empty = new SocksHandshake();
+        buffer = read(NO_AUTH_GREETING, socks5Request(1, 3, domain(""), 443));
+        empty.feed(buffer);
+        assertEquals(SocksHandshake.Step.FAIL, empty.feed(buffer));
+        assertArrayEquals(new byte[]{5, 1, 0, 1, 0, 0, 0, 0, 0, 0}, empty.getReply());
+    }
+
+    @Test
+    void socks5WithoutNoAuthMethodIsRefused() {
+        SocksHandshake handshake = new SocksHandshake();
+        assertEquals(SocksHandshake.Step.FAIL, handshake.feed(read(new byte[]{5, 2, 1, 2})));  // GSSAPI, user/password
+        assertArrayEquals(new byte[]{5, (byte) 0xff}, handshake.getReply());
+
+        SocksHandshake none = new SocksHandshake();
+        assertEquals(SocksHandshake.Step.FAIL, none.feed(read(new byte[]{5, 0})));
+        assertArrayEquals(new byte[]{5, (byte) 0xff}, none.getReply());
+    }
+
+    @Test
+    void socks5UnsupportedCommandAndAddressType() {
+        SocksHandshake bind = new SocksHandshake();
+        ByteBuffer buffer = read(NO_AUTH_GREETING, socks5Request(2, 1, new byte[]{127, 0, 0, 1}, 80));
+        bind.feed(buffer);
+        assertEquals(SocksHandshake.Step.FAIL, bind.feed(buffer));
+        assertArrayEquals(new byte[]{5, 7, 0, 1, 0, 0, 0, 0, 0, 0}, bind.getReply());
+
+        SocksHandshake udp = new SocksHandshake();
+        buffer = read(NO_AUTH_GREETING, socks5Request(3, 3, domain("dns"), 53));
+        udp.feed(buffer);
+        assertEquals(SocksHandshake.Step.FAIL, udp.feed(buffer));
+        assertEquals(7, udp.getReply()[1]);
+
+        SocksHandshake unknownType = new SocksHandshake();
+        buffer = read(NO_AUTH_GREETING, new byte[]{5, 1, 0, 9, 0});
+        unknownType.feed(buffer);
+        assertEquals(SocksHandshake.Step.FAIL, unknownType.feed(buffer));
+        assertArrayEquals(new byte[]{5, 8, 0, 1, 0, 0, 0, 0, 0, 0}, unknownType.getReply());
+    }
+
+    @Test
+    void socks5ReplyEncoding() {
+        SocksHandshake handshake = new SocksHandshake();
+        ByteBuffer buffer = read(NO_AUTH_GREETING, socks5Request(1, 3, domain("host"), 1));
+        handshake.feed(buffer);
+        handshake.feed(buffer);
+        assertArrayEquals(new byte[]{5, 0, 0, 1, 0, 0, 0, 0, 0, 0}, handshake.successReply());
+        assertArrayEquals(new byte[]{5, 1, 0, 1, 0, 0, 0, 0, 0, 0}, handshake.failureReply());
+    }
+
+    @Test
+    void socks4Connect() {
+        SocksHandshake handshake = new SocksHandshake();
+        ByteBuffer buffer = read(socks4Request(1, 8080, new byte[]{(byte) 192, (byte) 168, 1, 10}, "alice", null));
+        assertEquals(SocksHandshake.Step.CONNECT, handshake.feed(buffer));
+        assertEquals("192.168.1.10", handshake.getHost());
+        assertEquals(8080, handshake.getPort());
+        assertEquals(0, buffer.remaining());
+        assertArrayEquals(new byte[]{0, 0x5a, 0, 0, 0, 0, 0, 0}, handshake.successReply());
+        assertArrayEquals(new byte[]{0, 0x5b, 0, 0, 0, 0, 0, 0}, handshake.failureReply());
+    }
+
+    @Test
+    void socks4aConnectToDomainByteByByte() {
+        byte[] all = socks4Request(1, 443, new byte[]{0, 0, 0, 1}, "", "example.com");
+        SocksHandshake handshake = new SocksHandshake();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        SocksHandshake.Step step = SocksHandshake.Step.NEED_MORE;
+        for (int i = 0; i < all.length; i++) {
+            buffer.put(all[i]).flip();
+            step = handshake.feed(buffer);
+            buffer.compact();
+            if (i < all.length - 1) {
+                assertEquals(SocksHandshake.Step.NEED_MORE, step, "after " + (i + 1) + " of " + all.length + " bytes");
+            }
+        }
+        assertEquals(SocksHandshake.Step.CONNECT, step);
+        assertEquals("example.com", handshake.getHost());
+        assertEquals(443, handshake.getPort());
+    }
+
+    @Test
+    void socks4UnsupportedCommandAndEmptyHost() {
+        SocksHandshake bind = new SocksHandshake();
+        assertEquals(SocksHandshake.Step.FAIL, bind.feed(read(socks4Request(2, 80, new byte[]{127, 0, 0, 1}, "", null))));
+        assertArrayEquals(new byte[]{0, 0x5b, 0, 0, 0, 0, 0, 0}, bind.getReply());
+
+        SocksHandshake emptyHost = new SocksHandshake();
+        assertEquals(SocksHandshake.Step.FAIL, emptyHost.feed(read(socks4Request(1, 80, new byte[]{0, 0, 0, 1}, "", ""))));
+        assertArrayEquals(new byte[]{0, 0x5b, 0, 0, 0, 0, 0, 0}, emptyHost.getReply());
+    }
+
+    // Without a NUL the user id or host name could grow without end; past any legitimate length it fails
+    @Test
+    void socks4NameWithoutEndIsBounded() {
+        byte[] header = {4, 1, 0, 80, 0, 0, 0, 1};
+        SocksHandshake handshake = new SocksHandshake();
+        assertEquals(SocksHandshake.Step.NEED_MORE, handshake.feed(read(header, filled(2 * 256))));
+
+        SocksHandshake runaway = new SocksHandshake();
+        assertEquals(SocksHandshake.Step.FAIL, runaway.feed(read(header, filled(2 * 256 + 1))));
+        assertArrayEquals(new byte[]{0, 0x5b, 0, 0, 0, 0, 0, 0}, runaway.getReply());
+    }
+
+    @Test
+    void unknownVersionClosesWithoutReply() {
+        SocksHandshake handshake = new SocksHandshake();
+        assertEquals(SocksHandshake.Step.FAIL, handshake.feed(read("GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII))));
+        assertEquals(0, handshake.getReply().length);
+    }
+
+    @Test
+    void emptyBufferNeedsMore() {
+        assertEquals(SocksHandshake.Step.NEED_MORE, new SocksHandshake().feed(ByteBuffer.allocate(0)));
+    }
+
+    private static byte[] socks5Request(int command, int addressType, byte[] address, int port) {
+        return concat(new byte[]{5, (byte) command, 0, (byte) addressType}, address, new byte[]{(byte) (port >> 8), (byte) port});
+    }
+
+    private static byte[] socks4Request(int command, int port, byte[] address, String userId, String host) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{4, (byte) command, (byte) (port >> 8), (byte) port});
+        out.writeBytes(address);
+        out.writeBytes(userId.getBytes(StandardCharsets.US_ASCII));
+        out.write(0);
+        if (host != null) {
+            out.writeBytes(host.getBytes(StandardCharsets.US_ASCII));
+            out.write(0);
+        }
+        return out.toByteArray();
+    }
+
+    // Length byte and name, as ATYP 3 carries it
+    private static byte[] domain(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        return concat(new byte[]{(byte) bytes.length}, bytes);
+    }
+
+    private static byte[] filled(int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) 'x');
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    // A buffer in read mode holding everything sent so far
+    private static ByteBuffer read(byte[]... parts) {
+        return ByteBuffer.wrap(concat(parts));
+    }
+}
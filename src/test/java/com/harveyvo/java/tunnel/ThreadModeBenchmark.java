@@ -0,0 +1,213 @@
+package com.harveyvo.java.tunnel;
+
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Thread count and memory of a -L tunnel holding many open client connections, per forwarding engine
+// and thread mode. Each row is a tunnel set up the way the application does it (SSHTunnelManager
+// connect and setUpTunnel) in a JVM of its own, so one row's threads and heap cannot show up in
+// another's. This process runs the SSH server and a single-threaded echo target; each client sends a
+// byte and waits for the echo, so every relay is up and idle when the numbers are taken.
+//
+// JSch 0.1.55 relays every connection on a platform thread it starts itself, with no hook for a thread
+// factory, so the JSch rows are the same in both modes: virtual threads only change the application's
+// own blocking work (connects, channel opens, bulk starts), not JSch's relays. The NIO engine relays
+// without a thread per connection.
+//
+//   mvn -q test-compile dependency:build-classpath -Dmdep.includeScope=test -Dmdep.outputFile=target/cp.txt
+//   java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.harveyvo.java.tunnel.ThreadModeBenchmark [connections]
+//
+// Each connection uses two file descriptors in the tunnel's JVM and two here, so ulimit -n must be
+// above twice the connection count.
+public class ThreadModeBenchmark {
+
+    private static final int DEFAULT_CONNECTIONS = 5000;
+    private static final int ECHO_TIMEOUT_MILLIS = 30_000;
+
+    private ThreadModeBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+        if (args.length > 1) {
+            run(connections, SSHTunnelManager.ForwardingEngine.valueOf(args[1]), TaskExecutors.Mode.valueOf(args[2]),
+                    Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+        SshServer sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider();
+        hostKeys.setAlgorithm("EC");
+        hostKeys.setKeySize(256);
+        sshd.setKeyPairProvider(hostKeys);
+        sshd.setPasswordAuthenticator((username, password, serverSession) -> true);
+        sshd.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+        sshd.start();
+        try (ServerSocketChannel target = ServerSocketChannel.open()) {
+            target.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), connections);
+            TaskExecutors.newPlatformThread("benchmark-echo", () -> echo(target)).start();
+
+            String home = Files.createTempDirectory("thread-mode-benchmark").toString();
+            System.out.printf("%-6s %-9s %11s %11s %10s %9s %10s%n", "engine", "mode", "connections", "OS threads", "heap MB", "RSS MB", "setup ms");
+            for (SSHTunnelManager.ForwardingEngine engine : SSHTunnelManager.ForwardingEngine.values()) {
+                for (TaskExecutors.Mode mode : TaskExecutors.Mode.values()) {
+                    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+                    Process child = new ProcessBuilder(java, "-Dtunnel.threads=" + mode.name().toLowerCase(), "-Duser.home=" + home,
+                            "-cp", System.getProperty("java.class.path"), ThreadModeBenchmark.class.getName(), String.valueOf(connections),
+                            engine.name(), mode.name(), String.valueOf(sshd.getPort()), String.valueOf(target.socket().getLocalPort()))
+                            .redirectErrorStream(true)
+                            .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                            .start();
+                    child.waitFor();
+                }
+            }
+        } finally {
+            sshd.stop(true);
+        }
+    }
+
+    private static void run(int connections, SSHTunnelManager.ForwardingEngine engine, TaskExecutors.Mode mode, int sshPort, int targetPort)
+            throws IOException {
+        String row = String.format("%-6s %-9s", engine.name().toLowerCase(), mode.name().toLowerCase());
+        // The tunnel's own console messages would break up the table
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        if (TaskExecutors.getInstance().getMode() != mode) {
+            results.printf("%s not available on Java %d, skipped%n", row, Runtime.version().feature());
+            return;
+        }
+        SSHProfile profile = new SSHProfile("benchmark", "127.0.0.1", sshPort, "benchmark", "benchmark", SSHProfile.AuthMethod.PASSWORD,
+                null, null);
+        profile.setServerAliveInterval(0);
+        int localPort = freePort();
+        SessionStatus status = new SessionStatus("1", "benchmark", "benchmark", "127.0.0.1", "127.0.0.1", String.valueOf(localPort),
+                "127.0.0.1", String.valueOf(targetPort), SSHTunnelManager.TunnelMode.LOCAL, "Connecting");
+        SSHTunnelManager manager = new SSHTunnelManager(status, (level, message) -> { });
+        List<Socket> clients = new ArrayList<>(connections);
+        try {
+            manager.connect(profile);
+            manager.setUpTunnel("127.0.0.1", localPort, "127.0.0.1", targetPort, engine);
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Socket client = new Socket("127.0.0.1", localPort);
+                clients.add(client);
+                client.setSoTimeout(ECHO_TIMEOUT_MILLIS);
+                client.getOutputStream().write(1);
+                if (client.getInputStream().read() != 1) {
+                    results.printf("%s only %d of %d connections came up%n", row, i, connections);
+                    return;
+                }
+            }
+            long setupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heapBytes = runtime.totalMemory() - runtime.freeMemory();
+            String osThreads = procStatus("Threads:");
+            results.printf("%s %11d %11s %10.1f %9s %10d%n", row, connections,
+                    osThreads != null ? osThreads : String.valueOf(Thread.getAllStackTraces().size()),
+                    heapBytes / (1024.0 * 1024.0), formatRss(), setupMillis);
+        } catch (Exception e) {
+            results.printf("%s failed: %s%n", row, e);
+        } finally {
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            manager.disconnect();
+            System.exit(0);  // JSch's relay threads are not daemons
+        }
+    }
+
+    // Echo every byte back, all connections on one thread, so the target adds nothing per connection
+    private static void echo(ServerSocketChannel target) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try (Selector selector = Selector.open()) {
+            target.configureBlocking(false);
+            target.register(selector, SelectionKey.OP_ACCEPT);
+            while (target.isOpen()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isAcceptable()) {
+                        SocketChannel accepted = target.accept();
+                        if (accepted != null) {
+                            accepted.configureBlocking(false);
+                            accepted.register(selector, SelectionKey.OP_READ);
+                        }
+                    } else if (key.isReadable()) {
+                        SocketChannel connection = (SocketChannel) key.channel();
+                        buffer.clear();
+                        try {
+                            if (connection.read(buffer) < 0) {
+                                connection.close();
+                                continue;
+                            }
+                            buffer.flip();
+                            connection.write(buffer);
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            // Target closed
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Resident set size; platform threads count here mostly through their stacks
+    private static String formatRss() {
+        String kilobytes = procStatus("VmRSS:");
+        return kilobytes != null ? String.format("%.1f", Long.parseLong(kilobytes) / 1024.0) : "-";
+    }
+
+    // Number from a line of /proc/self/status on Linux, null elsewhere. The OS thread count covers
+    // every thread of the JVM, including the carriers of virtual threads and GC and JIT threads.
+    private static String procStatus(String key) {
+        File status = new File("/proc/self/status");
+        if (status.exists()) {
+            try {
+                for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+                    if (line.startsWith(key)) {
+                        return line.replaceAll("[^0-9]", "");
+                    }
+                }
+            } catch (IOException e) {
+                // Not available
+            }
+        }
+        return null;
+    }
+}